@@ -1,5 +1,7 @@
 package communications;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -7,6 +9,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Abstract connection handling for standard sending and receiving.
@@ -31,6 +38,16 @@ public abstract class AbstractConnection
 	 */
 	private InputStream in;
 
+	/**
+	 * Channel for writing buffers to the output stream
+	 */
+	private WritableByteChannel outChannel;
+
+	/**
+	 * Channel for reading buffers from the input stream
+	 */
+	private ReadableByteChannel inChannel;
+
 	/**
 	 * The bytes to shift by during the encryption and decryption process
 	 */
@@ -51,6 +68,8 @@ public abstract class AbstractConnection
 		socket.setSoTimeout(5000);
 		out = s.getOutputStream();
 		in = s.getInputStream();
+		outChannel = Channels.newChannel(out);
+		inChannel = Channels.newChannel(in);
 		if(null != cipherKey)
 		{
 			shiftBytes = cipherKey.getBytes();
@@ -58,52 +77,57 @@ public abstract class AbstractConnection
 	}
 
 	/**
-	 * Sends the given file. Writes file size to receiver first then sends file one
-	 * byte at a time to easily accommodate large files and prevent errors.
+	 * Sends the given file. Writes file size to receiver first then sends the file
+	 * through a pooled buffer to easily accommodate large files.
 	 * @param f
 	 *     The file to send
 	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
 	 */
-	public void sendFile(File f) throws IOException
+	public void sendFile(File f) throws IOException, InterruptedException
 	{
 		FileInputStream fileRead = null;
+		ByteBuffer bytes = null;
 		System.out.println("Sending: " + f);
 		try
 		{
 			fileRead = new FileInputStream(f);
+			FileChannel fileChannel = fileRead.getChannel();
 
 			// Send file size to receiver for how many bytes to expect
-			out.write(ByteHelp.toBytes(f.length()));
 			long length = f.length();
-			byte[] bytes = new byte[(int) Math.min(length, 1073741824)];
+			out.write(ByteHelp.toBytes(length));
+			bytes = BufferPool.acquire(length);
 			int start = 0;
 			while(length > 0)
 			{
-				int read = 0;
-				if(length >= bytes.length)
+				bytes.clear();
+				bytes.limit((int) Math.min(length, bytes.capacity()));
+				int read = fileChannel.read(bytes);
+				if(-1 == read)
 				{
-					read = fileRead.read(bytes);
+					throw new EOFException("File " + f + " changed size while being sent.");
 				}
-				else
+				bytes.flip();
+
+				start = encrypt(bytes, start);
+				while(bytes.hasRemaining())
 				{
-					read = fileRead.read(bytes, 0, (int) length);
+					outChannel.write(bytes);
 				}
-
-				start = encrypt(bytes, read, start);
-				out.write(bytes, 0, read);
 				length -= read;
 			}
 		}
-		catch(IOException e)
+		finally
 		{
+			BufferPool.release(bytes);
 			if(null != fileRead)
 			{
 				fileRead.close();
 			}
-			throw e;
 		}
 
-		fileRead.close();
 		System.out.println("Done sending");
 	}
 
@@ -161,13 +185,14 @@ public abstract class AbstractConnection
 	/**
 	 * Overwrites given file with the new received data. Expects the first eight
 	 * bytes to be the file size and only reads that many bytes. Reads and writes
-	 * one byte at a time to accommodate large files easily.
+	 * through a pooled buffer to accommodate large files easily.
 	 * @param write
 	 *     The file to write the received file to
 	 * @throws IOException
 	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
 	 */
-	public void receiveFile(File write) throws IOException
+	public void receiveFile(File write) throws IOException, InterruptedException
 	{
 		System.out.println("Receiving: " + write);
 		File temp = new File(write.getPath() + ".temp");
@@ -177,49 +202,54 @@ public abstract class AbstractConnection
 		}
 		write.renameTo(temp);
 		FileOutputStream fileWrite = null;
+		ByteBuffer bytes = null;
+		boolean success = false;
 		try
 		{
 			write.createNewFile();
 			fileWrite = new FileOutputStream(write);
+			FileChannel fileChannel = fileWrite.getChannel();
 
-			byte[] size = new byte[Long.BYTES];
-			in.read(size);
-			long bytesLeft = ByteHelp.bytesToLong(size);
-			double totalBytes = bytesLeft;
-			byte[] bytes = new byte[(int) Math.min(totalBytes, 1073741824)];
+			long bytesLeft = new DataInputStream(in).readLong();
+			bytes = BufferPool.acquire(bytesLeft);
 			int start = 0;
 			while(bytesLeft > 0)
 			{
-				int read = 0;
-				if(bytesLeft >= bytes.length)
+				bytes.clear();
+				bytes.limit((int) Math.min(bytesLeft, bytes.capacity()));
+				int read = inChannel.read(bytes);
+				if(-1 == read)
 				{
-					read = in.read(bytes);
+					throw new EOFException("Connection ended before the file was received.");
 				}
-				else
+				bytes.flip();
+
+				start = decrypt(bytes, start);
+				while(bytes.hasRemaining())
 				{
-					read = in.read(bytes, 0, (int) bytesLeft);
+					fileChannel.write(bytes);
 				}
-
-				start = decrypt(bytes, read, start);
-				fileWrite.write(bytes, 0, read);
 				bytesLeft -= read;
 			}
 
 			fileWrite.close();
 			temp.delete();
+			success = true;
 		}
-		catch(Exception e)
+		finally
 		{
-			// TODO actually do this correctly
-			write.delete();
-			temp.renameTo(write);
-
-			if(null != fileWrite)
+			BufferPool.release(bytes);
+			if(!success)
 			{
-				fileWrite.close();
-			}
+				// Put the original back whatever stopped the transfer
+				if(null != fileWrite)
+				{
+					fileWrite.close();
+				}
 
-			throw e;
+				write.delete();
+				temp.renameTo(write);
+			}
 		}
 
 		System.out.println("Got: " + write);
@@ -233,12 +263,9 @@ public abstract class AbstractConnection
 	 */
 	public Packet receivePacket() throws IOException, InterruptedException
 	{
-		byte[] sizeBytes = new byte[Integer.BYTES];
-		in.read(sizeBytes);
-
-		int packetSize = ByteHelp.bytesToInt(sizeBytes);
-		byte[] bytes = new byte[packetSize];
-		in.read(bytes);
+		DataInputStream dataIn = new DataInputStream(in);
+		byte[] bytes = new byte[dataIn.readInt()];
+		dataIn.readFully(bytes);
 
 		return new Packet(bytes);
 	}
@@ -324,17 +351,15 @@ public abstract class AbstractConnection
 	}
 
 	/**
-	 * Encrypts the given bytes up until end using a basic password shift beginning
-	 * with the index start.
+	 * Encrypts the remaining bytes in the buffer using a basic password shift
+	 * beginning with the index start. The position of the buffer is not changed.
 	 * @param bytes
 	 *     The bytes to encrypt
-	 * @param end
-	 *     The number of bytes to encrypt
 	 * @param start
 	 *     The start index for the shift bytes
 	 * @return The new start index for the next set of encryption
 	 */
-	private static int encrypt(byte[] bytes, int end, int start)
+	private static int encrypt(ByteBuffer bytes, int start)
 	{
 		// Return if shiftBytes is null meaning no encryption
 		if(null == shiftBytes)
@@ -342,10 +367,10 @@ public abstract class AbstractConnection
 			return 0;
 		}
 
-		for(int i = 0; i < end; i++)
+		for(int i = bytes.position(); i < bytes.limit(); i++)
 		{
 			// shift byte
-			bytes[i] = (byte) (bytes[i] + shiftBytes[start]);
+			bytes.put(i, (byte) (bytes.get(i) + shiftBytes[start]));
 
 			start++;
 			if(start >= shiftBytes.length)
@@ -358,17 +383,16 @@ public abstract class AbstractConnection
 	}
 
 	/**
-	 * Decrypts the given bytes from a basic password shift up until the end index
-	 * starting with the given start of the shift bytes.
+	 * Decrypts the remaining bytes in the buffer from a basic password shift
+	 * starting with the given start of the shift bytes. The position of the buffer
+	 * is not changed.
 	 * @param bytes
 	 *     The bytes to decrypt
-	 * @param end
-	 *     The number of bytes to decrypt
 	 * @param start
 	 *     The index to start at in the decryption bytes
 	 * @return The index to start at for the next round of decryption
 	 */
-	private static int decrypt(byte[] bytes, int end, int start)
+	private static int decrypt(ByteBuffer bytes, int start)
 	{
 		// Return if shiftBytes is null meaning data is not encrypted
 		if(null == shiftBytes)
@@ -376,10 +400,10 @@ public abstract class AbstractConnection
 			return 0;
 		}
 
-		for(int i = 0; i < end; i++)
+		for(int i = bytes.position(); i < bytes.limit(); i++)
 		{
 			// Shift byte
-			bytes[i] = (byte) (bytes[i] - shiftBytes[start]);
+			bytes.put(i, (byte) (bytes.get(i) - shiftBytes[start]));
 
 			start++;
 			if(start >= shiftBytes.length)
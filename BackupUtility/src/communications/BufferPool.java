@@ -0,0 +1,262 @@
+package communications;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Shared pool of direct byte buffers used for every file transfer and copy.
+ * Buffers come in a few fixed size classes and the total memory held by the
+ * pool is limited by a budget. When the budget is used up, callers wait for
+ * another transfer to release a buffer instead of allocating more memory.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BufferPool
+{
+	/**
+	 * The sizes of the buffers the pool hands out, smallest first
+	 */
+	private static final int[] SIZE_CLASSES = {8 * 1024, 16 * 1024, 64 * 1024, 1024 * 1024};
+
+	/**
+	 * The largest buffer the pool hands out
+	 */
+	public static final int MAX_BUFFER_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+	/**
+	 * The least number of bytes the pool may hold, enough for the largest set of
+	 * buffers any caller takes at once
+	 */
+	private static final long MIN_BUDGET = 2L * MAX_BUFFER_SIZE;
+
+	/**
+	 * The default number of bytes the pool may hold
+	 */
+	private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	/**
+	 * Lock for all pool state
+	 */
+	private static final Object LOCK = new Object();
+
+	/**
+	 * Released buffers waiting to be reused for each size class
+	 */
+	private static final ArrayDeque<ByteBuffer>[] FREE = createFreeLists();
+
+	/**
+	 * The most bytes the pool may allocate
+	 */
+	private static long budget = DEFAULT_BUDGET;
+
+	/**
+	 * The number of bytes currently allocated by the pool, both in use and free
+	 */
+	private static long allocated = 0;
+
+	/**
+	 * Don't construct static
+	 */
+	private BufferPool()
+	{
+	}
+
+	/**
+	 * Creates an empty free list for each size class.
+	 * @return The free lists
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayDeque<ByteBuffer>[] createFreeLists()
+	{
+		ArrayDeque<ByteBuffer>[] lists = new ArrayDeque[SIZE_CLASSES.length];
+		for(int i = 0; i < lists.length; i++)
+		{
+			lists[i] = new ArrayDeque<>();
+		}
+
+		return lists;
+	}
+
+	/**
+	 * Sets the most bytes the pool may allocate. Buffers already allocated past a
+	 * lowered budget are dropped as they are released.
+	 * @param bytes
+	 *     The new budget in bytes
+	 */
+	public static void setBudget(long bytes)
+	{
+		synchronized(LOCK)
+		{
+			budget = Math.max(bytes, MIN_BUDGET);
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns a cleared buffer with a limit of the requested size or the largest
+	 * buffer size, whichever is smaller. Waits if the budget is used up until
+	 * another buffer is released. The buffer must be given back with release.
+	 * @param size
+	 *     The number of bytes needed
+	 * @return The buffer to use
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public static ByteBuffer acquire(long size) throws InterruptedException
+	{
+		return acquire(1, size)[0];
+	}
+
+	/**
+	 * Returns the given number of cleared buffers, each with a limit of the
+	 * requested size or the largest buffer size, whichever is smaller. All the
+	 * buffers are taken at once so callers needing several never hold some while
+	 * waiting for the rest. Each buffer must be given back with release.
+	 * @param count
+	 *     The number of buffers needed
+	 * @param size
+	 *     The number of bytes needed in each buffer
+	 * @return The buffers to use
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for buffers
+	 */
+	public static ByteBuffer[] acquire(int count, long size) throws InterruptedException
+	{
+		int sizeClass = getSizeClass(size);
+		int capacity = SIZE_CLASSES[sizeClass];
+		if((long) count * capacity > MIN_BUDGET)
+		{
+			throw new IllegalArgumentException("Cannot take " + count + " buffers of " + capacity + " bytes at once.");
+		}
+
+		ByteBuffer[] buffers;
+		synchronized(LOCK)
+		{
+			buffers = take(count, sizeClass);
+			while(null == buffers)
+			{
+				LOCK.wait();
+				buffers = take(count, sizeClass);
+			}
+		}
+
+		for(ByteBuffer buffer : buffers)
+		{
+			buffer.clear();
+			buffer.limit((int) Math.min(size, capacity));
+		}
+		return buffers;
+	}
+
+	/**
+	 * Returns a cleared buffer the same as acquire if the budget has room for it
+	 * without waiting. Used by threads that must never wait on other transfers.
+	 * The buffer must be given back with release.
+	 * @param size
+	 *     The number of bytes needed
+	 * @return The buffer to use or null if the budget is used up
+	 */
+	public static ByteBuffer tryAcquire(long size)
+	{
+		int sizeClass = getSizeClass(size);
+		ByteBuffer[] buffers;
+		synchronized(LOCK)
+		{
+			buffers = take(1, sizeClass);
+		}
+		if(null == buffers)
+		{
+			return null;
+		}
+
+		buffers[0].clear();
+		buffers[0].limit((int) Math.min(size, SIZE_CLASSES[sizeClass]));
+		return buffers[0];
+	}
+
+	/**
+	 * Gives a buffer from acquire back to the pool to be reused.
+	 * @param buffer
+	 *     The buffer to release, null and buffers not from the pool are ignored
+	 */
+	public static void release(ByteBuffer buffer)
+	{
+		if(null == buffer || !buffer.isDirect())
+		{
+			return;
+		}
+
+		int sizeClass = getSizeClass(buffer.capacity());
+		synchronized(LOCK)
+		{
+			if(allocated > budget)
+			{
+				// Budget was lowered, let the buffer be collected
+				allocated -= buffer.capacity();
+			}
+			else
+			{
+				FREE[sizeClass].addLast(buffer);
+			}
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Takes the given number of buffers of the size class from the free list or
+	 * allocates them if the budget allows. Must hold the lock.
+	 * @param count
+	 *     The number of buffers needed
+	 * @param sizeClass
+	 *     The index of the size class
+	 * @return The buffers or null if the budget is used up
+	 */
+	private static ByteBuffer[] take(int count, int sizeClass)
+	{
+		int capacity = SIZE_CLASSES[sizeClass];
+		ArrayDeque<ByteBuffer> free = FREE[sizeClass];
+		long needed = (long) Math.max(0, count - free.size()) * capacity;
+		// Drop unused buffers of other sizes to make room
+		for(int i = 0; i < FREE.length && allocated + needed > budget; i++)
+		{
+			while(i != sizeClass && !FREE[i].isEmpty() && allocated + needed > budget)
+			{
+				FREE[i].pollLast();
+				allocated -= SIZE_CLASSES[i];
+			}
+		}
+
+		if(allocated + needed > budget)
+		{
+			return null;
+		}
+
+		ByteBuffer[] buffers = new ByteBuffer[count];
+		for(int i = 0; i < count; i++)
+		{
+			buffers[i] = free.isEmpty() ? ByteBuffer.allocateDirect(capacity) : free.pollLast();
+		}
+		allocated += needed;
+		return buffers;
+	}
+
+	/**
+	 * Returns the index of the smallest size class that fits the given size.
+	 * @param size
+	 *     The number of bytes needed
+	 * @return The index of the size class
+	 */
+	private static int getSizeClass(long size)
+	{
+		for(int i = 0; i < SIZE_CLASSES.length; i++)
+		{
+			if(size <= SIZE_CLASSES[i])
+			{
+				return i;
+			}
+		}
+
+		return SIZE_CLASSES.length - 1;
+	}
+}
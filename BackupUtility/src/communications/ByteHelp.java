@@ -24,12 +24,7 @@ public class ByteHelp
 	public static byte[] toBytes(long l)
 	{
 		byte[] bytes = new byte[Long.BYTES];
-
-		for(int i = bytes.length - 1; i >= 0; i--)
-		{
-			bytes[i] = (byte) (l & 0xFF);
-			l >>= Byte.SIZE;
-		}
+		toBytes(l, bytes, 0);
 		return bytes;
 	}
 
@@ -42,14 +37,44 @@ public class ByteHelp
 	public static byte[] toBytes(int num)
 	{
 		byte[] bytes = new byte[Integer.BYTES];
+		toBytes(num, bytes, 0);
+		return bytes;
+	}
 
-		for(int i = bytes.length - 1; i >= 0; i--)
+	/**
+	 * Writes a long as eight bytes into the given array so no new array is needed.
+	 * @param l
+	 *     The long to be converted to bytes
+	 * @param bytes
+	 *     The array to write to
+	 * @param offset
+	 *     The index of the most significant byte
+	 */
+	public static void toBytes(long l, byte[] bytes, int offset)
+	{
+		for(int i = offset + Long.BYTES - 1; i >= offset; i--)
+		{
+			bytes[i] = (byte) (l & 0xFF);
+			l >>= Byte.SIZE;
+		}
+	}
+
+	/**
+	 * Writes an int as four bytes into the given array so no new array is needed.
+	 * @param num
+	 *     The int to be converted to bytes
+	 * @param bytes
+	 *     The array to write to
+	 * @param offset
+	 *     The index of the most significant byte
+	 */
+	public static void toBytes(int num, byte[] bytes, int offset)
+	{
+		for(int i = offset + Integer.BYTES - 1; i >= offset; i--)
 		{
 			bytes[i] = (byte) (num & 0xFF);
 			num >>= Byte.SIZE;
 		}
-
-		return bytes;
 	}
 
 	/**
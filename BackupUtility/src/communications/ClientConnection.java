@@ -1,6 +1,7 @@
 package communications;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
 
 import lists.DoublyLinkedList;
@@ -37,22 +38,18 @@ public class ClientConnection extends AbstractConnection
 	public DoublyLinkedList<String> receiveFileList() throws IOException
 	{
 		DoublyLinkedList<String> list = new DoublyLinkedList<>();
-
-		String cur = "";
-		int got = read();
-		while(0xFF != got)
+		FileListing listing = new FileListing(new InputStream()
 		{
-			if(0x0D == got)
-			{
-				list.add(cur);
-				cur = "";
-			}
-			else
+			@Override
+			public int read()
 			{
-				cur += (char) got;
+				return ClientConnection.this.read();
 			}
+		});
 
-			got = read();
+		while(listing.next())
+		{
+			list.add(listing.getPath());
 		}
 		return list;
 	}
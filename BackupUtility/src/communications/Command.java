@@ -12,11 +12,18 @@ public enum Command
 	// Request
 	CLOSE((byte) 0x04),
 	RECEIVE_FILE((byte) 0x52),
+	RECEIVE_DELTA((byte) 0x54),
 	RECEIVE_FILE_LIST((byte) 0x49),
 	SEND_FILE((byte) 0x53),
 	SEND_FILE_LIST((byte) 0x4C),
 	CREATE_DIRECTORY((byte) 0x44),
 	GET_STATUS((byte) 0x3F),
+	GET_OFFSET((byte) 0x4F),
+	BATCH_STATUS((byte) 0x42),
+	PREPARE_RANGES((byte) 0x70),
+	RECEIVE_RANGE((byte) 0x72),
+	COMMIT_RANGES((byte) 0x63),
+	GET_TREE((byte) 0x48),
 	// Response
 	SUCCESS((byte) 0x55),
 	FAILED((byte) 0x21);
@@ -26,6 +33,19 @@ public enum Command
 	 */
 	private byte cmd;
 
+	/**
+	 * Lookup table from command byte to command
+	 */
+	private static final Command[] LOOKUP = new Command[256];
+
+	static
+	{
+		for(Command c : Command.values())
+		{
+			LOOKUP[c.cmd & 0xFF] = c;
+		}
+	}
+
 	/**
 	 * Creates new enum option.
 	 * @param command
@@ -54,14 +74,6 @@ public enum Command
 	 */
 	public static Command byteToCommand(byte command)
 	{
-		for(Command c : Command.values())
-		{
-			if(c.cmd == command)
-			{
-				return c;
-			}
-		}
-
-		return null;
+		return LOOKUP[command & 0xFF];
 	}
 }
\ No newline at end of file
@@ -1,16 +1,26 @@
 package communications;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Abstract connection handling for standard sending and receiving.
@@ -20,6 +30,32 @@ import javax.crypto.IllegalBlockSizeException;
  */
 public abstract class CommunicationHelp
 {
+	/**
+	 * Transfer option flag to send files unencrypted on trusted networks
+	 */
+	public static final byte PLAINTEXT_TRANSFER = 0x01;
+
+	/**
+	 * Transfer option flag to compress file records with Deflate
+	 */
+	public static final byte DEFLATE_COMPRESSION = 0x02;
+
+	/**
+	 * Transfer option flag to carry many streams over the connection
+	 */
+	public static final byte MULTIPLEXED_STREAMS = 0x04;
+
+	/**
+	 * File extensions of types that are already compressed
+	 */
+	private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList("7z", "aac", "avi", "bz2", "docx", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "m4a",
+			"mkv", "mov", "mp3", "mp4", "ogg", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+	/**
+	 * Reused buffer for encoding and decoding packets on each thread
+	 */
+	private static final ThreadLocal<ByteBuffer> PACKET_BUFFER = ThreadLocal.withInitial(()->ByteBuffer.allocate(1024));
+
 	/**
 	 * Static class not for construction.
 	 */
@@ -28,66 +64,201 @@ public abstract class CommunicationHelp
 	}
 
 	/**
-	 * Sends the given file. Writes file size to receiver first then sends file one
-	 * byte at a time to easily accommodate large files and prevent errors.
+	 * Sends the whole given file.
 	 * @param f
 	 *     The file to send
 	 * @param s
-	 * @param out
+	 *     The socket to send through
 	 * @param encryption
+	 *     The record cipher to encrypt the file with, null to send the file
+	 *     unencrypted directly from the file to the socket
 	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
 	 */
-	public static void sendFile(File f, Socket s, Cipher encryption) throws IOException
+	public static void sendFile(File f, Socket s, RecordCipher encryption) throws IOException, InterruptedException
 	{
-		OutputStream out = s.getOutputStream();
-		FileInputStream fileRead = null;
-		try
+		sendFile(f, s, encryption, 0);
+	}
+
+	/**
+	 * Sends the given file starting from the given offset. Writes file size and
+	 * offset to receiver first then sends the file as a series of encrypted records
+	 * using pooled buffers so large files use a constant amount of memory.
+	 * @param f
+	 *     The file to send
+	 * @param s
+	 *     The socket to send through
+	 * @param encryption
+	 *     The record cipher to encrypt the file with, null to send the file
+	 *     unencrypted directly from the file to the socket
+	 * @param offset
+	 *     The number of bytes the receiver already committed, 0 to send the whole
+	 *     file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public static void sendFile(File f, Socket s, RecordCipher encryption, long offset) throws IOException, InterruptedException
+	{
+		try(FileInputStream fileRead = new FileInputStream(f))
 		{
-			fileRead = new FileInputStream(f);
+			// Send file size and where to start to receiver for how many bytes to expect
+			long fileSize = f.length();
+			offset = Math.min(offset, fileSize);
+			OutputStream out = s.getOutputStream();
+			out.write(ByteHelp.toBytes(fileSize));
+			out.write(ByteHelp.toBytes(offset));
+			sendData(f, fileRead.getChannel(), offset, fileSize, fileSize, s, encryption);
+		}
+
+		System.out.println("Done sending");
+	}
+
+	/**
+	 * Sends one range of the given file to be written into a file that was already
+	 * sized to hold all of it. Writes file size, offset, and length of the range
+	 * first so several ranges can be sent over different connections at once.
+	 * @param f
+	 *     The file to send part of
+	 * @param s
+	 *     The socket to send through
+	 * @param encryption
+	 *     The record cipher to encrypt the range with, null to send unencrypted
+	 * @param offset
+	 *     The position of the first byte of the range
+	 * @param length
+	 *     The number of bytes in the range
+	 * @throws IOException
+	 *     If the range is not in the file
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public static void sendRange(File f, Socket s, RecordCipher encryption, long offset, long length) throws IOException, InterruptedException
+	{
+		try(FileInputStream fileRead = new FileInputStream(f))
+		{
+			long fileSize = f.length();
+			if(offset < 0 || length < 0 || offset + length > fileSize)
+			{
+				throw new IOException("Range is outside of " + f + ".");
+			}
+
+			OutputStream out = s.getOutputStream();
+			out.write(ByteHelp.toBytes(fileSize));
+			out.write(ByteHelp.toBytes(offset));
+			out.write(ByteHelp.toBytes(length));
+			sendData(f, fileRead.getChannel(), offset, offset + length, fileSize, s, encryption);
+		}
+	}
+
+	/**
+	 * Sends the bytes of the file between the given positions. Every read is
+	 * positional so several ranges of one file can be sent at the same time. A
+	 * whole file that is read to be encrypted has its hash kept in the hash cache.
+	 * @param f
+	 *     The file being sent
+	 * @param fileChannel
+	 *     The channel to read the file from
+	 * @param position
+	 *     The position of the first byte to send
+	 * @param end
+	 *     The position after the last byte to send
+	 * @param fileSize
+	 *     The size of the whole file
+	 * @param s
+	 *     The socket to send through
+	 * @param encryption
+	 *     The record cipher to encrypt with, null to send unencrypted
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	private static void sendData(File f, FileChannel fileChannel, long position, long end, long fileSize, Socket s, RecordCipher encryption) throws IOException, InterruptedException
+	{
+		WritableByteChannel socketChannel = null != s.getChannel() ? s.getChannel() : Channels.newChannel(s.getOutputStream());
+		if(null == encryption)
+		{
+			// Let the system copy the file straight to the socket
+			while(position < end)
+			{
+				long sent = fileChannel.transferTo(position, end - position, socketChannel);
+				if(0 == sent && position >= fileChannel.size())
+				{
+					throw new EOFException("File " + f + " changed size while being sent.");
+				}
+				position += sent;
+			}
+			return;
+		}
 
-			// Send file size to receiver for how many bytes to expect
-			out.write(ByteHelp.toBytes(f.length()));
-			long bytesRemaining = f.length();
-			byte[] readData = new byte[(int) Math.min(bytesRemaining, Integer.MAX_VALUE / 8)]; // Limit maximum size of array arbitrarily
-			while(bytesRemaining > 0)
+		// Files that are already compressed are sent raw without trying
+		boolean compress = encryption.isCompressing() && !isCompressedType(f);
+		RecordBuffers buffers = new RecordBuffers(compress);
+		BasicFileAttributes before = 0 == position && end == fileSize && HashCache.isOpen() ? HashCache.readAttributes(f) : null;
+		MessageDigest digest = null == before ? null : TransferCheckpoint.createDigest();
+		try
+		{
+			ByteBuffer plaintext = buffers.plaintext;
+			ByteBuffer record = buffers.record;
+			ByteBuffer header = buffers.header;
+			while(position < end)
 			{
-				int bytesRead = 0;
-				if(bytesRemaining >= readData.length)
+				// Fill a whole record, only the last record may be smaller
+				plaintext.clear();
+				plaintext.limit((int) Math.min(end - position, RecordCipher.RECORD_SIZE));
+				while(plaintext.hasRemaining())
 				{
-					bytesRead = fileRead.read(readData);
+					if(-1 == fileChannel.read(plaintext, position + plaintext.position()))
+					{
+						throw new EOFException("File " + f + " changed size while being sent.");
+					}
 				}
-				else
+				plaintext.flip();
+				int length = plaintext.remaining();
+				if(null != digest)
 				{
-					bytesRead = fileRead.read(readData, 0, (int) bytesRemaining);
+					digest.update(plaintext.duplicate());
 				}
 
-				byte[] encryptedData = encryption.doFinal(readData, 0, bytesRead);
-				out.write(ByteHelp.toBytes(encryptedData.length));
-				out.write(encryptedData);
-				bytesRemaining -= bytesRead;
+				ByteBuffer payload = plaintext;
+				byte flag = RecordCipher.RAW;
+				if(compress && encryption.compress(plaintext, buffers.compressed))
+				{
+					payload = buffers.compressed;
+					flag = RecordCipher.COMPRESSED;
+				}
+
+				record.clear();
+				int recordLength = encryption.encrypt(payload, record, fileSize, position, flag);
+				if(encryption.isCompressing())
+				{
+					// Record sizes vary so send the flag and length first
+					header.clear();
+					header.put(flag);
+					header.putInt(recordLength);
+					header.flip();
+					while(header.hasRemaining())
+					{
+						socketChannel.write(header);
+					}
+				}
+				while(record.hasRemaining())
+				{
+					socketChannel.write(record);
+				}
+				position += length;
 			}
-		}
-		catch(IOException e)
-		{
-			if(null != fileRead)
+
+			if(null != digest)
 			{
-				fileRead.close();
+				HashCache.put(f, before, digest.digest());
 			}
-			throw e;
-		}
-		catch(IllegalBlockSizeException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
-		catch(BadPaddingException e)
+		finally
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			buffers.release();
 		}
-
-		fileRead.close();
-		System.out.println("Done sending");
 	}
 
 	/**
@@ -98,9 +269,27 @@ public abstract class CommunicationHelp
 	 * @throws IOException
 	 */
 	public static void sendPacket(Packet p, Socket s) throws IOException
+	{
+		// Encode the length and packet into the reused buffer and send in one write
+		ByteBuffer buffer = getPacketBuffer(Integer.BYTES + p.encodedLength());
+		buffer.putInt(0);
+		p.encode(buffer);
+		buffer.putInt(0, buffer.position() - Integer.BYTES);
+		s.getOutputStream().write(buffer.array(), 0, buffer.position());
+	}
+
+	/**
+	 * Sends the given data prefixed with its length so the receiver knows how many
+	 * bytes to expect.
+	 * @param data
+	 *     The data to send
+	 * @param s
+	 *     The socket to send through
+	 * @throws IOException
+	 */
+	public static void sendFrame(byte[] data, Socket s) throws IOException
 	{
 		OutputStream out = s.getOutputStream();
-		byte[] data = p.byteData();
 		out.write(ByteHelp.toBytes(data.length));
 		out.write(data);
 	}
@@ -145,76 +334,323 @@ public abstract class CommunicationHelp
 	}
 
 	/**
-	 * Overwrites given file with the new received data. Expects the first eight
-	 * bytes to be the file size and only reads that many bytes. Reads and writes
-	 * one byte at a time to accommodate large files easily.
+	 * Overwrites given file with the new received data. Expects the first sixteen
+	 * bytes to be the file size and the offset to start from and only reads that
+	 * many bytes. The data is written to the partial file and each record is
+	 * authenticated before it is written. The partial file replaces the given file
+	 * once all data is received so the original file is kept if the transfer
+	 * fails. Large files are checkpointed as they are received so an interrupted
+	 * transfer can be resumed from the last checkpoint.
 	 * @param write
 	 *     The file to write the received file to
 	 * @param s
+	 *     The socket to receive from
 	 * @param decryption
+	 *     The record cipher to decrypt the file with, null if the file is sent
+	 *     unencrypted and should be written directly from the socket to the file
 	 * @throws IOException
 	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
 	 */
-	public static void receiveFile(File write, Socket s, Cipher decryption) throws IOException
+	public static void receiveFile(File write, Socket s, RecordCipher decryption) throws IOException, InterruptedException
 	{
-		InputStream in = s.getInputStream();
-		File temp = new File(write.getPath() + ".temp");
-		if(temp.exists())
-		{
-			temp.delete();
-		}
-		write.renameTo(temp);
-		FileOutputStream fileWrite = null;
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		File partial = TransferCheckpoint.getPartialFile(write);
+		FileChannel fileChannel = null;
+		boolean received = false;
 		try
 		{
-			write.createNewFile();
-			fileWrite = new FileOutputStream(write);
+			long fileSize = in.readLong();
+			long offset = in.readLong();
+			if(0 == offset)
+			{
+				TransferCheckpoint.delete(write);
+			}
+			else
+			{
+				TransferCheckpoint checkpoint = TransferCheckpoint.load(write);
+				if(null == checkpoint || checkpoint.getOffset() != offset || offset > fileSize)
+				{
+					throw new IOException("No partial file to resume " + write + " from.");
+				}
+			}
 
-			byte[] size = new byte[Long.BYTES];
-			in.read(size);
-			long bytesLeft = ByteHelp.bytesToLong(size);
-			while(bytesLeft > 0)
+			fileChannel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			fileChannel.truncate(offset);
+			// Only files large enough to be checkpointed need to be hashed
+			MessageDigest digest = null;
+			if(fileSize >= TransferCheckpoint.CHECKPOINT_INTERVAL)
 			{
-				byte[] num = new byte[4];
-				in.read(num);
-				int amountToReceive = ByteHelp.bytesToInt(num);
-				int read = 0;
-				byte[] encryptedData = new byte[amountToReceive];
-				while(amountToReceive > read)
+				digest = TransferCheckpoint.createDigest();
+				TransferCheckpoint.hash(fileChannel, 0, offset, digest);
+				if(offset > 0 && !TransferCheckpoint.create(offset, digest).matches(TransferCheckpoint.load(write)))
 				{
-					read += in.read(encryptedData, read, amountToReceive - read);
+					throw new IOException("Partial file " + partial + " does not match its checkpoint.");
 				}
-				byte[] decryptedData = decryption.doFinal(encryptedData);
-				fileWrite.write(decryptedData);
-				bytesLeft -= decryptedData.length;
 			}
 
-			fileWrite.close();
-			temp.delete();
+			ReadableByteChannel socketChannel = null != s.getChannel() ? s.getChannel() : Channels.newChannel(in);
+			receiveData(socketChannel, fileChannel, offset, fileSize, fileSize, decryption, digest, write);
+
+			fileChannel.close();
+			Files.move(partial.toPath(), write.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			TransferCheckpoint.delete(write);
+			received = true;
 		}
-		catch(BadPaddingException e)
+		finally
 		{
-			// TODO
+			if(!received)
+			{
+				if(null != fileChannel)
+				{
+					fileChannel.close();
+				}
+
+				// Keep the partial file only if there is a checkpoint to resume from
+				if(null == TransferCheckpoint.load(write))
+				{
+					partial.delete();
+				}
+			}
 		}
-		catch(IllegalBlockSizeException e)
+	}
+
+	/**
+	 * Receives a range sent with sendRange and writes it at its position in the
+	 * given file, which must already be the size of the whole file. The range is
+	 * flushed to the drive before returning so it is safe to acknowledge.
+	 * @param write
+	 *     The file to write the range into
+	 * @param s
+	 *     The socket to receive from
+	 * @param decryption
+	 *     The record cipher to decrypt the range with, null if unencrypted
+	 * @return A checkpoint with only the received range
+	 * @throws IOException
+	 *     If the range does not fit in the file or could not be received
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public static RangeCheckpoint receiveRange(File write, Socket s, RecordCipher decryption) throws IOException, InterruptedException
+	{
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		long fileSize = in.readLong();
+		long offset = in.readLong();
+		long length = in.readLong();
+		try(FileChannel fileChannel = FileChannel.open(write.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
 		{
-			// TODO
+			if(offset < 0 || length < 0 || offset + length > fileSize || fileChannel.size() != fileSize)
+			{
+				throw new IOException("Range does not fit in " + write + ".");
+			}
+
+			ReadableByteChannel socketChannel = null != s.getChannel() ? s.getChannel() : Channels.newChannel(in);
+			MessageDigest digest = TransferCheckpoint.createDigest();
+			receiveData(socketChannel, fileChannel, offset, offset + length, fileSize, decryption, digest, null);
+			fileChannel.force(false);
+
+			RangeCheckpoint received = new RangeCheckpoint(fileSize);
+			received.add(offset, length, digest.digest());
+			return received;
 		}
-		catch(Exception e)
+	}
+
+	/**
+	 * Receives the bytes of a file between the given positions and writes them at
+	 * the same positions in the file.
+	 * @param socketChannel
+	 *     The channel to receive from
+	 * @param fileChannel
+	 *     The file to write to
+	 * @param position
+	 *     The position of the first byte to receive
+	 * @param end
+	 *     The position after the last byte to receive
+	 * @param fileSize
+	 *     The size of the whole file
+	 * @param decryption
+	 *     The record cipher to decrypt with, null if unencrypted
+	 * @param digest
+	 *     The digest of every byte before the position to checkpoint the file
+	 *     with, null to not hash
+	 * @param write
+	 *     The file being received, used to save checkpoints, null to only hash
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	private static void receiveData(ReadableByteChannel socketChannel, FileChannel fileChannel, long position, long end, long fileSize, RecordCipher decryption, MessageDigest digest,
+			File write) throws IOException, InterruptedException
+	{
+		long nextCheckpoint = position + TransferCheckpoint.CHECKPOINT_INTERVAL;
+		if(null == decryption)
+		{
+			// Let the system copy straight from the socket to the file
+			while(position < end)
+			{
+				long got = fileChannel.transferFrom(socketChannel, position, Math.min(end, nextCheckpoint) - position);
+				if(0 >= got)
+				{
+					throw new EOFException("Connection ended before the file was received.");
+				}
+				if(null != digest)
+				{
+					TransferCheckpoint.hash(fileChannel, position, position + got, digest);
+				}
+				position += got;
+				if(null != digest && null != write && position >= nextCheckpoint)
+				{
+					checkpoint(fileChannel, write, position, digest);
+					nextCheckpoint = position + TransferCheckpoint.CHECKPOINT_INTERVAL;
+				}
+			}
+			return;
+		}
+
+		RecordBuffers buffers = new RecordBuffers(decryption.isCompressing());
+		try
+		{
+			ByteBuffer plaintext = buffers.plaintext;
+			while(position < end)
+			{
+				readRecord(socketChannel, buffers, position, end, fileSize, decryption);
+				int length = plaintext.remaining();
+				if(null != digest)
+				{
+					digest.update(plaintext.duplicate());
+				}
+				while(plaintext.hasRemaining())
+				{
+					fileChannel.write(plaintext, position + plaintext.position());
+				}
+				position += length;
+
+				if(null != digest && null != write && position >= nextCheckpoint)
+				{
+					checkpoint(fileChannel, write, position, digest);
+					nextCheckpoint = position + TransferCheckpoint.CHECKPOINT_INTERVAL;
+				}
+			}
+		}
+		finally
 		{
-			// TODO actually do this correctly
-			write.delete();
-			temp.renameTo(write);
+			buffers.release();
+		}
+	}
 
-			if(null != fileWrite)
+	/**
+	 * Receives and authenticates the next record and leaves its file bytes in the
+	 * plaintext buffer ready to be written.
+	 * @param socketChannel
+	 *     The channel to receive from
+	 * @param buffers
+	 *     The buffers to receive the record with
+	 * @param position
+	 *     The position in the file the record will be written to
+	 * @param end
+	 *     The position after the last byte being received
+	 * @param fileSize
+	 *     The size of the whole file
+	 * @param decryption
+	 *     The record cipher to decrypt with
+	 * @throws IOException
+	 *     If the record is not valid
+	 */
+	private static void readRecord(ReadableByteChannel socketChannel, RecordBuffers buffers, long position, long end, long fileSize, RecordCipher decryption) throws IOException
+	{
+		ByteBuffer record = buffers.record;
+		ByteBuffer plaintext = buffers.plaintext;
+
+		// Records are full size except the last one unless the header says otherwise
+		byte flag = RecordCipher.RAW;
+		int recordLength = (int) Math.min(end - position, RecordCipher.RECORD_SIZE) + RecordCipher.TAG_LENGTH;
+		if(decryption.isCompressing())
+		{
+			ByteBuffer header = buffers.header;
+			header.clear();
+			fill(socketChannel, header);
+			flag = header.get(0);
+			recordLength = header.getInt(1);
+			if(recordLength < RecordCipher.TAG_LENGTH || recordLength > record.capacity())
 			{
-				fileWrite.close();
+				throw new IOException("Received record has an invalid length.");
 			}
+		}
+		record.clear();
+		record.limit(recordLength);
+		fill(socketChannel, record);
+		record.flip();
+
+		if(RecordCipher.COMPRESSED == flag)
+		{
+			buffers.compressed.clear();
+			decryption.decrypt(record, buffers.compressed, fileSize, position, flag);
+			decryption.decompress(buffers.compressed, plaintext);
+		}
+		else
+		{
+			plaintext.clear();
+			decryption.decrypt(record, plaintext, fileSize, position, flag);
+		}
 
-			throw e;
+		if(plaintext.remaining() > end - position)
+		{
+			throw new IOException("Received more data than the size of the file.");
 		}
 	}
 
+	/**
+	 * Flushes the received data to the drive and saves a checkpoint for it.
+	 * @param fileChannel
+	 *     The partial file being written
+	 * @param write
+	 *     The file being received
+	 * @param position
+	 *     The number of bytes received
+	 * @param digest
+	 *     The digest of the received bytes
+	 * @throws IOException
+	 */
+	private static void checkpoint(FileChannel fileChannel, File write, long position, MessageDigest digest) throws IOException
+	{
+		fileChannel.force(false);
+		TransferCheckpoint.create(position, digest).save(write);
+	}
+
+	/**
+	 * Reads from the channel until the buffer has no space remaining.
+	 * @param channel
+	 *     The channel to read from
+	 * @param buffer
+	 *     The buffer to fill
+	 * @throws IOException
+	 *     If the channel ends before the buffer is full
+	 */
+	private static void fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(-1 == channel.read(buffer))
+			{
+				throw new EOFException("Connection ended before the file was received.");
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the file is a type that is already compressed so trying to
+	 * compress it again would only waste time.
+	 * @param f
+	 *     The file to check
+	 * @return True if the file extension is a compressed type, false otherwise
+	 */
+	private static boolean isCompressedType(File f)
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		return -1 != dot && COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase());
+	}
+
 	/**
 	 * Receives a packet.
 	 * @param s
@@ -223,16 +659,91 @@ public abstract class CommunicationHelp
 	 * @throws InterruptedException
 	 */
 	public static Packet receivePacket(Socket s) throws IOException, InterruptedException
+	{
+		return receivePacket(s, new Packet());
+	}
+
+	/**
+	 * Receives a packet into the given packet so the same packet can be reused for
+	 * every request.
+	 * @param s
+	 *     The socket to receive from
+	 * @param into
+	 *     The packet to replace the data of
+	 * @return The given packet with the received data
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static Packet receivePacket(Socket s, Packet into) throws IOException, InterruptedException
 	{
 		InputStream in = s.getInputStream();
-		byte[] sizeBytes = new byte[Integer.BYTES];
-		in.read(sizeBytes);
+		ByteBuffer buffer = getPacketBuffer(Integer.BYTES);
+		readFully(in, buffer.array(), Integer.BYTES);
+		int packetSize = buffer.getInt(0);
 
-		int packetSize = ByteHelp.bytesToInt(sizeBytes);
-		byte[] bytes = new byte[packetSize];
-		in.read(bytes);
+		buffer = getPacketBuffer(packetSize);
+		readFully(in, buffer.array(), packetSize);
+		buffer.limit(packetSize);
+		into.decode(buffer);
 
-		return new Packet(bytes);
+		return into;
+	}
+
+	/**
+	 * Reads exactly the given number of bytes into the start of the array.
+	 * @param in
+	 *     The stream to read from
+	 * @param bytes
+	 *     The array to read into
+	 * @param length
+	 *     The number of bytes to read
+	 * @throws IOException
+	 *     If the stream ends before all bytes are read
+	 */
+	private static void readFully(InputStream in, byte[] bytes, int length) throws IOException
+	{
+		if(in.readNBytes(bytes, 0, length) < length)
+		{
+			throw new EOFException("Connection ended before the packet was received.");
+		}
+	}
+
+	/**
+	 * Returns the packet buffer for the current thread cleared and with room for at
+	 * least the given number of bytes. Each connection is handled by its own thread
+	 * so the buffer is reused for every packet on the connection.
+	 * @param size
+	 *     The number of bytes needed
+	 * @return The cleared buffer
+	 */
+	private static ByteBuffer getPacketBuffer(int size)
+	{
+		ByteBuffer buffer = PACKET_BUFFER.get();
+		if(buffer.capacity() < size)
+		{
+			buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+			PACKET_BUFFER.set(buffer);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Receives data sent using sendFrame. Reads the length first then waits until
+	 * all the data has been received.
+	 * @param s
+	 *     The socket to receive from
+	 * @return The data that was received
+	 * @throws IOException
+	 */
+	public static byte[] receiveFrame(Socket s) throws IOException
+	{
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+
+		return bytes;
 	}
 
 	/**
@@ -298,4 +809,62 @@ public abstract class CommunicationHelp
 	{
 		s.getOutputStream().write(bytes);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The pooled buffers used to send or receive records.
+	 */
+	private static class RecordBuffers
+	{
+		/**
+		 * The flag and length sent before each record when compressing
+		 */
+		private ByteBuffer header;
+
+		/**
+		 * The file bytes of a record
+		 */
+		private ByteBuffer plaintext;
+
+		/**
+		 * The encrypted record with its tag
+		 */
+		private ByteBuffer record;
+
+		/**
+		 * The compressed file bytes of a record, null if not compressing
+		 */
+		private ByteBuffer compressed;
+
+		/**
+		 * Gets the buffers from the BufferPool.
+		 * @param compressing
+		 *     True if a buffer for compressed bytes is needed
+		 * @throws InterruptedException
+		 *     If interrupted while waiting for a buffer
+		 */
+		private RecordBuffers(boolean compressing) throws InterruptedException
+		{
+			header = ByteBuffer.allocate(RecordCipher.HEADER_SIZE);
+			// Taken together so transfers never wait on each other holding part of a set
+			ByteBuffer[] buffers = BufferPool.acquire(compressing ? 3 : 2, RecordCipher.RECORD_SIZE + RecordCipher.TAG_LENGTH);
+			plaintext = buffers[0];
+			plaintext.limit(RecordCipher.RECORD_SIZE);
+			record = buffers[1];
+			if(compressing)
+			{
+				compressed = buffers[2];
+				compressed.limit(RecordCipher.RECORD_SIZE);
+			}
+		}
+
+		/**
+		 * Gives the buffers back to the BufferPool.
+		 */
+		private void release()
+		{
+			BufferPool.release(plaintext);
+			BufferPool.release(record);
+			BufferPool.release(compressed);
+		}
+	}
+}
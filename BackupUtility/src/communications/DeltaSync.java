@@ -0,0 +1,472 @@
+package communications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Creates and applies rsync style deltas so only the changed parts of a large
+ * file need to be sent. The side with the old version writes a signature of
+ * rolling and strong checksums for each block. The side with the new version
+ * uses the signature to write a delta of block references and literal data,
+ * which is applied to the old version to rebuild the new one.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class DeltaSync
+{
+	/**
+	 * Files smaller than this are sent whole since a delta would save little
+	 */
+	public static final long MIN_SIZE = 1024 * 1024;
+
+	/**
+	 * The smallest block size used for a signature
+	 */
+	private static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+	/**
+	 * The largest block size used for a signature
+	 */
+	private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	/**
+	 * The number of bytes of the strong checksum kept for each block
+	 */
+	private static final int STRONG_LENGTH = 16;
+
+	/**
+	 * The most literal bytes written in a single delta operation
+	 */
+	private static final int MAX_LITERAL = 64 * 1024;
+
+	/**
+	 * Delta operation to copy blocks from the old version
+	 */
+	private static final byte COPY = 'B';
+
+	/**
+	 * Delta operation for bytes that are not in the old version
+	 */
+	private static final byte LITERAL = 'L';
+
+	/**
+	 * Delta operation ending the delta followed by the size of the new version
+	 */
+	private static final byte END = 'E';
+
+	/**
+	 * Don't construct static
+	 */
+	private DeltaSync()
+	{
+	}
+
+	/**
+	 * Writes the signature of the given file. The signature holds the block size,
+	 * the number of blocks and the rolling and strong checksum of each full block.
+	 * @param original
+	 *     The old version of the file
+	 * @param signature
+	 *     The file to write the signature to
+	 * @throws IOException
+	 */
+	public static void writeSignature(File original, File signature) throws IOException
+	{
+		int blockSize = getBlockSize(original.length());
+		int numBlocks = (int) (original.length() / blockSize);
+		MessageDigest digest = getDigest();
+		byte[] block = new byte[blockSize];
+
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(original), blockSize));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(signature))))
+		{
+			out.writeInt(blockSize);
+			out.writeInt(numBlocks);
+			for(int i = 0; i < numBlocks; i++)
+			{
+				in.readFully(block);
+				out.writeInt(weakChecksum(block, 0, blockSize));
+				digest.update(block);
+				out.write(digest.digest(), 0, STRONG_LENGTH);
+			}
+		}
+	}
+
+	/**
+	 * Compares the new version of a file against the signature of the old version
+	 * and writes the delta needed to rebuild the new version from the old one.
+	 * @param signature
+	 *     The signature of the old version
+	 * @param updated
+	 *     The new version of the file
+	 * @param delta
+	 *     The file to write the delta to
+	 * @throws IOException
+	 */
+	public static void writeDelta(File signature, File updated, File delta) throws IOException
+	{
+		// Read signature into a map from rolling checksum to block numbers
+		int blockSize;
+		byte[] strong;
+		HashMap<Integer, int[]> blocks = new HashMap<>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(signature))))
+		{
+			blockSize = in.readInt();
+			int numBlocks = in.readInt();
+			if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || numBlocks < 0)
+			{
+				throw new IOException("Signature is not valid.");
+			}
+
+			strong = new byte[numBlocks * STRONG_LENGTH];
+			for(int i = 0; i < numBlocks; i++)
+			{
+				int weak = in.readInt();
+				in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+				int[] got = blocks.get(weak);
+				if(null == got)
+				{
+					blocks.put(weak, new int[] {i});
+				}
+				else
+				{
+					got = Arrays.copyOf(got, got.length + 1);
+					got[got.length - 1] = i;
+					blocks.put(weak, got);
+				}
+			}
+		}
+
+		MessageDigest digest = getDigest();
+		byte[] buffer = new byte[blockSize * 4];
+		byte[] literal = new byte[MAX_LITERAL];
+		int literalLength = 0;
+		try(FileInputStream in = new FileInputStream(updated); DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta))))
+		{
+			// Window of blockSize bytes starting at start, valid data ends at end
+			int start = 0;
+			int end = 0;
+			boolean endOfFile = false;
+			boolean fresh = true;
+			int a = 0;
+			int b = 0;
+			// Pending run of consecutive blocks to copy
+			int runStart = -1;
+			int runLength = 0;
+			while(true)
+			{
+				// Need one byte past the window to roll the checksum
+				if(end - start <= blockSize && !endOfFile)
+				{
+					System.arraycopy(buffer, start, buffer, 0, end - start);
+					end -= start;
+					start = 0;
+					int read = in.read(buffer, end, buffer.length - end);
+					if(-1 == read)
+					{
+						endOfFile = true;
+					}
+					else
+					{
+						end += read;
+					}
+					continue;
+				}
+
+				if(end - start < blockSize)
+				{
+					// Remaining bytes are too few to match a block
+					break;
+				}
+
+				if(fresh)
+				{
+					int weak = weakChecksum(buffer, start, blockSize);
+					a = weak & 0xFFFF;
+					b = weak >>> 16;
+					fresh = false;
+				}
+
+				int match = findBlock(blocks.get(a | (b << 16)), strong, digest, buffer, start, blockSize);
+				if(-1 != match)
+				{
+					if(literalLength > 0)
+					{
+						writeLiteral(out, literal, literalLength);
+						literalLength = 0;
+					}
+
+					// Extend the run of blocks if this one follows it
+					if(-1 != runStart && runStart + runLength == match)
+					{
+						runLength++;
+					}
+					else
+					{
+						writeCopy(out, runStart, runLength);
+						runStart = match;
+						runLength = 1;
+					}
+					start += blockSize;
+					fresh = true;
+					continue;
+				}
+
+				// No match, move the window forward one byte
+				writeCopy(out, runStart, runLength);
+				runStart = -1;
+				runLength = 0;
+				int leaving = buffer[start] & 0xFF;
+				literal[literalLength] = buffer[start];
+				literalLength++;
+				if(MAX_LITERAL == literalLength)
+				{
+					writeLiteral(out, literal, literalLength);
+					literalLength = 0;
+				}
+				if(end - start > blockSize)
+				{
+					a = (a - leaving + (buffer[start + blockSize] & 0xFF)) & 0xFFFF;
+					b = (b - blockSize * leaving + a) & 0xFFFF;
+				}
+				start++;
+			}
+
+			writeCopy(out, runStart, runLength);
+			// Any bytes left at the end are literal
+			for(int i = start; i < end; i++)
+			{
+				literal[literalLength] = buffer[i];
+				literalLength++;
+				if(MAX_LITERAL == literalLength)
+				{
+					writeLiteral(out, literal, literalLength);
+					literalLength = 0;
+				}
+			}
+			if(literalLength > 0)
+			{
+				writeLiteral(out, literal, literalLength);
+			}
+
+			out.writeByte(END);
+			out.writeLong(updated.length());
+		}
+	}
+
+	/**
+	 * Rebuilds the new version of a file by applying the delta to the old version.
+	 * @param original
+	 *     The old version of the file
+	 * @param delta
+	 *     The delta created from the signature of the old version
+	 * @param result
+	 *     The file to write the new version to
+	 * @throws IOException
+	 *     If the delta is not valid for the old version
+	 */
+	public static void applyDelta(File original, File delta, File result) throws IOException
+	{
+		int blockSize = getBlockSize(original.length());
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+				FileInputStream oldIn = new FileInputStream(original);
+				FileOutputStream out = new FileOutputStream(result))
+		{
+			FileChannel oldChannel = oldIn.getChannel();
+			FileChannel outChannel = out.getChannel();
+			byte[] literal = new byte[MAX_LITERAL];
+			while(true)
+			{
+				byte op = in.readByte();
+				if(COPY == op)
+				{
+					long position = (long) in.readInt() * blockSize;
+					long length = (long) in.readInt() * blockSize;
+					if(position < 0 || length < 0 || position + length > oldChannel.size())
+					{
+						throw new IOException("Delta refers to blocks outside of the file.");
+					}
+					while(length > 0)
+					{
+						long copied = oldChannel.transferTo(position, length, outChannel);
+						if(copied <= 0)
+						{
+							throw new IOException("File " + original + " changed while applying the delta.");
+						}
+						position += copied;
+						length -= copied;
+					}
+				}
+				else if(LITERAL == op)
+				{
+					int length = in.readInt();
+					if(length < 0 || length > MAX_LITERAL)
+					{
+						throw new IOException("Delta has an invalid literal.");
+					}
+					in.readFully(literal, 0, length);
+					out.write(literal, 0, length);
+				}
+				else if(END == op)
+				{
+					if(in.readLong() != outChannel.size())
+					{
+						throw new IOException("Rebuilt file does not match the expected size.");
+					}
+					return;
+				}
+				else
+				{
+					throw new IOException("Delta has an unknown operation.");
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			throw new IOException("Delta ended early.", e);
+		}
+	}
+
+	/**
+	 * Returns the block size to use for a file of the given size, about the square
+	 * root of the size so the signature and delta both stay small.
+	 * @param size
+	 *     The size of the old version of the file
+	 * @return The block size
+	 */
+	private static int getBlockSize(long size)
+	{
+		long root = Long.highestOneBit(Math.max(1, (long) Math.sqrt(size)));
+		return (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, root));
+	}
+
+	/**
+	 * Computes the rolling checksum of the given bytes.
+	 * @param bytes
+	 *     The bytes to check
+	 * @param offset
+	 *     The index of the first byte
+	 * @param length
+	 *     The number of bytes
+	 * @return The rolling checksum
+	 */
+	private static int weakChecksum(byte[] bytes, int offset, int length)
+	{
+		int a = 0;
+		int b = 0;
+		for(int i = 0; i < length; i++)
+		{
+			int x = bytes[offset + i] & 0xFF;
+			a += x;
+			b += (length - i) * x;
+		}
+
+		return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+	}
+
+	/**
+	 * Returns the block number whose strong checksum matches the window or -1 if
+	 * none of the candidates match.
+	 * @param candidates
+	 *     The blocks with a matching rolling checksum, may be null
+	 * @param strong
+	 *     The strong checksums of every block
+	 * @param digest
+	 *     The digest to compute the strong checksum with
+	 * @param buffer
+	 *     The buffer holding the window
+	 * @param start
+	 *     The start of the window
+	 * @param blockSize
+	 *     The size of the window
+	 * @return The matching block number or -1
+	 */
+	private static int findBlock(int[] candidates, byte[] strong, MessageDigest digest, byte[] buffer, int start, int blockSize)
+	{
+		if(null == candidates)
+		{
+			return -1;
+		}
+
+		digest.update(buffer, start, blockSize);
+		byte[] hash = digest.digest();
+		for(int block : candidates)
+		{
+			if(Arrays.equals(hash, 0, STRONG_LENGTH, strong, block * STRONG_LENGTH, (block + 1) * STRONG_LENGTH))
+			{
+				return block;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Writes an operation to copy a run of blocks if there is one.
+	 * @param out
+	 *     The delta being written
+	 * @param runStart
+	 *     The first block of the run or -1 for no run
+	 * @param runLength
+	 *     The number of blocks in the run
+	 * @throws IOException
+	 */
+	private static void writeCopy(DataOutputStream out, int runStart, int runLength) throws IOException
+	{
+		if(-1 == runStart)
+		{
+			return;
+		}
+
+		out.writeByte(COPY);
+		out.writeInt(runStart);
+		out.writeInt(runLength);
+	}
+
+	/**
+	 * Writes an operation for bytes that are not in the old version.
+	 * @param out
+	 *     The delta being written
+	 * @param literal
+	 *     The bytes to write
+	 * @param length
+	 *     The number of bytes to write
+	 * @throws IOException
+	 */
+	private static void writeLiteral(DataOutputStream out, byte[] literal, int length) throws IOException
+	{
+		out.writeByte(LITERAL);
+		out.writeInt(length);
+		out.write(literal, 0, length);
+	}
+
+	/**
+	 * Returns the digest used for strong checksums.
+	 * @return The digest
+	 */
+	private static MessageDigest getDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			// Every Java platform must support MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
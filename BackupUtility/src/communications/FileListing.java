@@ -0,0 +1,201 @@
+package communications;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes the list of files available for backup on the host. Every
+ * entry is a type byte followed by the length of the UTF-8 relative path, the
+ * path, the file size and the date last modified. The list ends with an end
+ * byte. Entries are decoded one at a time as they are received so a list of any
+ * length is read using the same amount of memory.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class FileListing
+{
+	/**
+	 * Type byte of a file entry
+	 */
+	public static final byte FILE = 0x46;
+
+	/**
+	 * Type byte of a directory entry
+	 */
+	public static final byte DIRECTORY = 0x44;
+
+	/**
+	 * Byte sent after the last entry
+	 */
+	private static final byte END = (byte) 0xFF;
+
+	/**
+	 * The longest path accepted in bytes
+	 */
+	private static final int MAX_PATH_LENGTH = 64 * 1024;
+
+	/**
+	 * The stream the list is received from
+	 */
+	private DataInputStream in;
+
+	/**
+	 * Buffer reused to decode every path
+	 */
+	private byte[] pathBytes;
+
+	/**
+	 * True if paths need to be converted to Windows file separators
+	 */
+	private boolean windows;
+
+	/**
+	 * The type of the current entry, END once the list is finished
+	 */
+	private byte type;
+
+	/**
+	 * The relative path of the current entry
+	 */
+	private String path;
+
+	/**
+	 * The size of the current entry in bytes
+	 */
+	private long fileSize;
+
+	/**
+	 * The date the current entry was last modified
+	 */
+	private long fileDate;
+
+	/**
+	 * Creates a reader for the list being received from the given stream.
+	 * @param in
+	 *     The stream to receive the list from
+	 */
+	public FileListing(InputStream in)
+	{
+		this.in = new DataInputStream(in);
+		pathBytes = new byte[256];
+		windows = "\\".equals(System.getProperty("file.separator"));
+		type = FILE;
+	}
+
+	/**
+	 * Receives the next entry of the list.
+	 * @return True if there is a new current entry, false if the list is finished
+	 * @throws IOException
+	 *     If the list could not be received or is not valid
+	 */
+	public boolean next() throws IOException
+	{
+		if(END == type)
+		{
+			return false;
+		}
+
+		type = in.readByte();
+		if(END == type)
+		{
+			path = null;
+			return false;
+		}
+		if(FILE != type && DIRECTORY != type)
+		{
+			throw new IOException("Received file list entry is not valid.");
+		}
+
+		int pathLength = in.readInt();
+		if(pathLength < 0 || pathLength > MAX_PATH_LENGTH)
+		{
+			throw new IOException("Received file list path is too long.");
+		}
+		if(pathLength > pathBytes.length)
+		{
+			pathBytes = new byte[Math.max(pathLength, pathBytes.length * 2)];
+		}
+		in.readFully(pathBytes, 0, pathLength);
+		path = new String(pathBytes, 0, pathLength, StandardCharsets.UTF_8);
+		// Convert between different operating systems file separators
+		path = windows ? path.replace('/', '\\') : path.replace('\\', '/');
+		fileSize = in.readLong();
+		fileDate = in.readLong();
+		return true;
+	}
+
+	/**
+	 * Returns whether the current entry is a directory.
+	 * @return True if a directory, false if a file
+	 */
+	public boolean isDirectory()
+	{
+		return DIRECTORY == type;
+	}
+
+	/**
+	 * Returns the relative path of the current entry.
+	 * @return The relative path
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Returns the size of the current entry.
+	 * @return The size in bytes, 0 for directories
+	 */
+	public long getFileSize()
+	{
+		return fileSize;
+	}
+
+	/**
+	 * Returns the date the current entry was last modified.
+	 * @return The date last modified
+	 */
+	public long getFileDate()
+	{
+		return fileDate;
+	}
+
+	/**
+	 * Writes one entry of the list.
+	 * @param out
+	 *     The stream to write to
+	 * @param relativePath
+	 *     The relative path of the entry
+	 * @param directory
+	 *     True if the entry is a directory
+	 * @param fileSize
+	 *     The size of the entry in bytes
+	 * @param fileDate
+	 *     The date the entry was last modified
+	 * @throws IOException
+	 */
+	public static void write(DataOutputStream out, String relativePath, boolean directory, long fileSize, long fileDate) throws IOException
+	{
+		byte[] encodedPath = relativePath.getBytes(StandardCharsets.UTF_8);
+		out.writeByte(directory ? DIRECTORY : FILE);
+		out.writeInt(encodedPath.length);
+		out.write(encodedPath);
+		out.writeLong(fileSize);
+		out.writeLong(fileDate);
+	}
+
+	/**
+	 * Writes the byte that ends the list.
+	 * @param out
+	 *     The stream to write to
+	 * @throws IOException
+	 */
+	public static void writeEnd(DataOutputStream out) throws IOException
+	{
+		out.writeByte(END);
+	}
+}
@@ -0,0 +1,385 @@
+package communications;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Shared cache of the content hashes of files so the contents of a file only
+ * need to be read again once it changed. Each hash is kept for the identity of
+ * the file on its drive, the device and inode where the system has them or the
+ * path otherwise, along with its size and date last modified. A hash is only
+ * given out while all of them still match. Hashes are added while files are
+ * read to be copied or sent, a file is never read just to find its hash.
+ *
+ * Nothing is kept until the cache is opened. The cache is saved by writing a
+ * temp file and moving it over the old one, and a cache file that is damaged
+ * is treated as empty.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class HashCache
+{
+	/**
+	 * The first bytes of every cache file
+	 */
+	private static final int MAGIC = 0x48434331;
+
+	/**
+	 * The number of bytes in a hash
+	 */
+	private static final int HASH_LENGTH = 32;
+
+	/**
+	 * The most entries saved before entries not used since the cache was opened
+	 * are dropped
+	 */
+	private static final int MAX_ENTRIES = 1 << 20;
+
+	/**
+	 * Lock for all cache state
+	 */
+	private static final Object LOCK = new Object();
+
+	/**
+	 * The file the cache is saved in, null if not opened
+	 */
+	private static File file;
+
+	/**
+	 * The entries by identity of the file
+	 */
+	private static HashMap<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * True if the entries changed since the cache was loaded
+	 */
+	private static boolean changed;
+
+	/**
+	 * Don't construct static
+	 */
+	private HashCache()
+	{
+	}
+
+	/**
+	 * Loads the cache from the given file and starts keeping hashes.
+	 * @param cacheFile
+	 *     The file the cache is saved in
+	 */
+	public static void open(File cacheFile)
+	{
+		synchronized(LOCK)
+		{
+			file = cacheFile;
+			entries.clear();
+			changed = false;
+			try
+			{
+				load();
+			}
+			catch(IOException e)
+			{
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether hashes are being kept.
+	 * @return True if the cache was opened
+	 */
+	public static boolean isOpen()
+	{
+		synchronized(LOCK)
+		{
+			return null != file;
+		}
+	}
+
+	/**
+	 * Reads the attributes of the given file to pass to get or put.
+	 * @param f
+	 *     The file to read
+	 * @return The attributes, null if the file could not be read
+	 */
+	public static BasicFileAttributes readAttributes(File f)
+	{
+		try
+		{
+			return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the cached hash of the given file.
+	 * @param f
+	 *     The file
+	 * @return The SHA-256 hash of the file, null if not known or the file changed
+	 */
+	public static byte[] get(File f)
+	{
+		return isOpen() ? get(f, readAttributes(f)) : null;
+	}
+
+	/**
+	 * Returns the cached hash of the given file using attributes that were
+	 * already read.
+	 * @param f
+	 *     The file
+	 * @param attributes
+	 *     The current attributes of the file
+	 * @return The SHA-256 hash of the file, null if not known or the file changed
+	 */
+	public static byte[] get(File f, BasicFileAttributes attributes)
+	{
+		if(null == attributes || !attributes.isRegularFile())
+		{
+			return null;
+		}
+
+		synchronized(LOCK)
+		{
+			Entry entry = entries.get(getIdentity(f, attributes));
+			if(null == entry || !entry.matches(attributes))
+			{
+				return null;
+			}
+
+			entry.used = true;
+			return entry.hash;
+		}
+	}
+
+	/**
+	 * Keeps the hash of the given file made from reading all of it. The hash is
+	 * only kept if the file did not change since the attributes were read.
+	 * @param f
+	 *     The file that was read
+	 * @param before
+	 *     The attributes of the file read before its contents
+	 * @param hash
+	 *     The SHA-256 hash of the contents
+	 */
+	public static void put(File f, BasicFileAttributes before, byte[] hash)
+	{
+		if(!isOpen() || null == before || !before.isRegularFile())
+		{
+			return;
+		}
+
+		BasicFileAttributes after = readAttributes(f);
+		Entry entry = new Entry(before.size(), getDate(before), hash);
+		if(null == after || !entry.matches(after) || !getIdentity(f, before).equals(getIdentity(f, after)))
+		{
+			// Changed while being read
+			return;
+		}
+
+		entry.used = true;
+		synchronized(LOCK)
+		{
+			entries.put(getIdentity(f, after), entry);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Saves the cache to its file if it changed. Entries not used since the cache
+	 * was opened are left out once there are too many.
+	 * @throws IOException
+	 *     If the cache could not be saved
+	 */
+	public static void save() throws IOException
+	{
+		synchronized(LOCK)
+		{
+			if(null == file || !changed)
+			{
+				return;
+			}
+
+			if(entries.size() > MAX_ENTRIES)
+			{
+				Iterator<Entry> iter = entries.values().iterator();
+				while(iter.hasNext())
+				{
+					if(!iter.next().used)
+					{
+						iter.remove();
+					}
+				}
+			}
+
+			if(null != file.getParentFile())
+			{
+				file.getParentFile().mkdirs();
+			}
+			File temp = new File(file.getPath() + ".temp");
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			CRC32 crc = new CRC32();
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(entries.size());
+				for(Map.Entry<String, Entry> got : entries.entrySet())
+				{
+					Entry entry = got.getValue();
+					out.writeUTF(got.getKey());
+					out.writeLong(entry.fileSize);
+					out.writeLong(entry.fileDate);
+					out.write(entry.hash);
+				}
+				out.flush();
+				new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			changed = false;
+		}
+	}
+
+	/**
+	 * Reads the cache from its file.
+	 * @throws IOException
+	 *     If the cache is damaged
+	 */
+	private static void load() throws IOException
+	{
+		if(!file.isFile())
+		{
+			return;
+		}
+
+		// The checksum at the end covers everything before it
+		byte[] data = Files.readAllBytes(file.toPath());
+		if(data.length < 3 * Integer.BYTES)
+		{
+			throw new IOException("Hash cache " + file + " is not valid.");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - Integer.BYTES);
+		if((int) crc.getValue() != ByteBuffer.wrap(data, data.length - Integer.BYTES, Integer.BYTES).getInt())
+		{
+			throw new IOException("Hash cache " + file + " is damaged.");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - Integer.BYTES));
+		if(MAGIC != in.readInt())
+		{
+			throw new IOException("Hash cache " + file + " is not valid.");
+		}
+
+		int count = in.readInt();
+		for(int i = 0; i < count; i++)
+		{
+			String identity = in.readUTF();
+			long fileSize = in.readLong();
+			long fileDate = in.readLong();
+			byte[] hash = new byte[HASH_LENGTH];
+			in.readFully(hash);
+			entries.put(identity, new Entry(fileSize, fileDate, hash));
+		}
+	}
+
+	/**
+	 * Returns the identity of the file on its drive, the device and inode if the
+	 * system has them or the path otherwise.
+	 * @param f
+	 *     The file
+	 * @param attributes
+	 *     The attributes of the file
+	 * @return The identity
+	 */
+	private static String getIdentity(File f, BasicFileAttributes attributes)
+	{
+		Object key = attributes.fileKey();
+		return null == key ? f.getAbsolutePath() : key.toString();
+	}
+
+	/**
+	 * Returns the date last modified as precisely as the drive keeps it.
+	 * @param attributes
+	 *     The attributes of the file
+	 * @return The date in nanoseconds
+	 */
+	private static long getDate(BasicFileAttributes attributes)
+	{
+		return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * The size and date of a file when its hash was made.
+	 */
+	private static class Entry
+	{
+		/**
+		 * The size of the file
+		 */
+		private long fileSize;
+
+		/**
+		 * The date the file was last modified in nanoseconds
+		 */
+		private long fileDate;
+
+		/**
+		 * The SHA-256 hash of the contents
+		 */
+		private byte[] hash;
+
+		/**
+		 * True if the entry was used since the cache was opened
+		 */
+		private boolean used;
+
+		/**
+		 * Creates an entry.
+		 * @param fileSize
+		 *     The size of the file
+		 * @param fileDate
+		 *     The date the file was last modified in nanoseconds
+		 * @param hash
+		 *     The hash of the contents
+		 */
+		private Entry(long fileSize, long fileDate, byte[] hash)
+		{
+			this.fileSize = fileSize;
+			this.fileDate = fileDate;
+			this.hash = hash;
+			used = false;
+		}
+
+		/**
+		 * Returns whether the file still has the size and date the hash was made
+		 * with.
+		 * @param attributes
+		 *     The current attributes of the file
+		 * @return True if the hash is still valid
+		 */
+		private boolean matches(BasicFileAttributes attributes)
+		{
+			return fileSize == attributes.size() && fileDate == getDate(attributes);
+		}
+	}
+}
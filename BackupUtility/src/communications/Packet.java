@@ -1,5 +1,9 @@
 package communications;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import fileUsage.FileStatus;
 
 /**
@@ -10,6 +14,17 @@ import fileUsage.FileStatus;
  */
 public class Packet
 {
+	/**
+	 * The number of bytes in a packet before the path
+	 */
+	private static final int HEADER_SIZE = 1 + Long.BYTES + 1 + Integer.BYTES;
+
+	/**
+	 * The file separator used by other operating systems that is converted to the
+	 * one used here
+	 */
+	private static final char OTHER_SEPARATOR = '\\' == File.separatorChar ? '/' : '\\';
+
 	/**
 	 * The command for this packet
 	 */
@@ -97,82 +112,211 @@ public class Packet
 	 */
 	public Packet(byte[] bytes)
 	{
-		cmd = Command.byteToCommand(bytes[0]);
+		decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Sets all the data in this packet so it can be reused instead of creating a
+	 * new packet for every request.
+	 * @param command
+	 *     The command that will be sent
+	 * @param fileStatus
+	 *     The status of the file
+	 * @param dateModified
+	 *     The date the file was last modified
+	 * @param relativePath
+	 *     The relative path of the file
+	 * @return This packet
+	 */
+	public Packet set(Command command, FileStatus fileStatus, long dateModified, String relativePath)
+	{
+		cmd = command;
+		status = fileStatus;
+		fileDate = dateModified;
+		path = relativePath;
+		return this;
+	}
+
+	/**
+	 * Replaces the data in this packet with the packet at the position of the given
+	 * buffer. The buffer position is moved past the packet.
+	 * @param buffer
+	 *     The buffer to read the packet from
+	 */
+	public void decode(ByteBuffer buffer)
+	{
+		cmd = Command.byteToCommand(buffer.get());
 
 		if(cmd == null)
 		{
 			throw new IllegalStateException("Byte received did not correspond with any command");
 		}
 
-		fileDate = 0;
-		for(int i = 1; i < 9; i++)
+		fileDate = buffer.getLong();
+		status = FileStatus.byteToStatus(buffer.get());
+
+		int pathLength = buffer.getInt();
+		if(-1 == pathLength)
 		{
-			fileDate <<= 8;
-			fileDate |= (bytes[i] & 0xFF);
+			path = null;
 		}
-
-		status = FileStatus.byteToStatus(bytes[9]);
-
-		path = new String(bytes, 10, bytes.length - 10);
-		// Convert between different operating systems file separators
-		String separator = System.getProperty("file.separator");
-		if("\\".equals(separator))
+		else if(buffer.hasArray())
 		{
-			path = path.replace('/', '\\');
+			path = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), pathLength, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + pathLength);
 		}
 		else
 		{
-			path = path.replace('\\', '/');
+			byte[] bytes = new byte[pathLength];
+			buffer.get(bytes);
+			path = new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		// Convert between different operating systems file separators
+		if(null != path && path.indexOf(OTHER_SEPARATOR) >= 0)
+		{
+			path = path.replace(OTHER_SEPARATOR, File.separatorChar);
 		}
 	}
 
 	/**
-	 * Converts the data in the packet into a byte array to be sent.
-	 * @return The array of bytes to be sent
+	 * Returns the number of bytes needed to encode this packet.
+	 * @return The encoded size
 	 */
-	public byte[] byteData()
+	public int encodedLength()
 	{
-		// 1 byte for command, 8 bytes for long, 1 byte file status, 1 byte per
-		// character in string
-		int size = 10;
-		if(null != path)
-		{
-			size += path.length();
-		}
-		byte[] bytes = new byte[size];
+		// 1 byte for command, 8 bytes for long, 1 byte file status, 4 bytes path
+		// length followed by the UTF-8 path
+		return HEADER_SIZE + (null == path ? 0 : utf8Length(path));
+	}
 
+	/**
+	 * Writes this packet at the position of the given buffer without creating any
+	 * temporary arrays. The buffer must have encodedLength bytes remaining.
+	 * @param buffer
+	 *     The buffer to write the packet to
+	 */
+	public void encode(ByteBuffer buffer)
+	{
 		// Add command byte first
 		if(null == cmd)
 		{
 			throw new IllegalStateException("Command cannot be null when sending packet.");
 		}
-		bytes[0] = cmd.getCommand();
+		buffer.put(cmd.getCommand());
+		buffer.putLong(fileDate);
+		buffer.put(null == status ? 0 : status.getByteRespresentation());
 
-		// Add long
-		int at = 1;
-		while(at < 9)
+		// Add path, length of -1 for no path
+		if(null == path)
 		{
-			bytes[at] = (byte) (fileDate >> (64 - at * 8) & 0xFF);
-			at++;
+			buffer.putInt(-1);
+			return;
 		}
 
-		// Add file status
-		if(status != null)
+		buffer.putInt(utf8Length(path));
+		for(int i = 0; i < path.length(); i++)
 		{
-			bytes[at] = status.getByteRespresentation();
+			char c = path.charAt(i);
+			if(c < 0x80)
+			{
+				buffer.put((byte) c);
+			}
+			else if(c < 0x800)
+			{
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if(Character.isSurrogate(c))
+			{
+				if(isSurrogatePair(path, i))
+				{
+					int codePoint = Character.toCodePoint(c, path.charAt(i + 1));
+					buffer.put((byte) (0xF0 | (codePoint >> 18)));
+					buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+					buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+					i++;
+				}
+				else
+				{
+					// Same replacement as String.getBytes for an unpaired surrogate
+					buffer.put((byte) '?');
+				}
+			}
+			else
+			{
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
 		}
-		at++;
+	}
 
-		// Add path
-		if(null != path)
+	/**
+	 * Converts the data in the packet into a byte array to be sent.
+	 * @return The array of bytes to be sent
+	 */
+	public byte[] byteData()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the number of bytes the given string takes when encoded as UTF-8.
+	 * @param s
+	 *     The string to measure
+	 * @return The number of UTF-8 bytes
+	 */
+	private static int utf8Length(String s)
+	{
+		int length = 0;
+		for(int i = 0; i < s.length(); i++)
 		{
-			for(byte b : path.getBytes())
+			char c = s.charAt(i);
+			if(c < 0x80)
+			{
+				length++;
+			}
+			else if(c < 0x800)
+			{
+				length += 2;
+			}
+			else if(Character.isSurrogate(c))
+			{
+				if(isSurrogatePair(s, i))
+				{
+					length += 4;
+					i++;
+				}
+				else
+				{
+					length++;
+				}
+			}
+			else
 			{
-				bytes[at] = b;
-				at++;
+				length += 3;
 			}
 		}
-		return bytes;
+
+		return length;
+	}
+
+	/**
+	 * Returns whether the character at the given index starts a valid surrogate
+	 * pair.
+	 * @param s
+	 *     The string to check
+	 * @param index
+	 *     The index of the high surrogate
+	 * @return True if the characters form a pair, false otherwise
+	 */
+	private static boolean isSurrogatePair(String s, int index)
+	{
+		return Character.isHighSurrogate(s.charAt(index)) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1));
 	}
 
 	/**
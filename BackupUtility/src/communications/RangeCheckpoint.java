@@ -0,0 +1,268 @@
+package communications;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The ranges of a file sent in ranges that were received and flushed to the
+ * drive. Every range is kept with its position, length and a hash of its bytes
+ * so after an interruption the sender can check its file still has the same
+ * bytes in those ranges and send only the rest. The checkpoint is saved in a
+ * hidden file next to the file being received.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class RangeCheckpoint
+{
+	/**
+	 * The number of bytes in a range hash
+	 */
+	private static final int HASH_LENGTH = 32;
+
+	/**
+	 * Lock for reading and saving checkpoints, ranges of the same file are
+	 * received on many threads at once
+	 */
+	private static final Object LOCK = new Object();
+
+	/**
+	 * The size of the whole file
+	 */
+	private long fileSize;
+
+	/**
+	 * The hashes of the received ranges by position
+	 */
+	private TreeMap<Long, byte[]> hashes;
+
+	/**
+	 * The lengths of the received ranges by position
+	 */
+	private TreeMap<Long, Long> lengths;
+
+	/**
+	 * Creates a checkpoint with no ranges received.
+	 * @param fileSize
+	 *     The size of the whole file
+	 */
+	public RangeCheckpoint(long fileSize)
+	{
+		this.fileSize = fileSize;
+		hashes = new TreeMap<>();
+		lengths = new TreeMap<>();
+	}
+
+	/**
+	 * Creates a checkpoint from the bytes created by byteData.
+	 * @param data
+	 *     The byte data of the checkpoint
+	 * @throws IOException
+	 *     If the data is not a checkpoint
+	 */
+	public RangeCheckpoint(byte[] data) throws IOException
+	{
+		this(0);
+		int rangeBytes = 2 * Long.BYTES + HASH_LENGTH;
+		if(data.length < Long.BYTES + Integer.BYTES || (data.length - Long.BYTES - Integer.BYTES) % rangeBytes != 0)
+		{
+			throw new IOException("Range checkpoint is not valid.");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		fileSize = buffer.getLong();
+		int count = buffer.getInt();
+		if(count != buffer.remaining() / rangeBytes)
+		{
+			throw new IOException("Range checkpoint is not valid.");
+		}
+		for(int i = 0; i < count; i++)
+		{
+			long position = buffer.getLong();
+			long length = buffer.getLong();
+			byte[] hash = new byte[HASH_LENGTH];
+			buffer.get(hash);
+			add(position, length, hash);
+		}
+	}
+
+	/**
+	 * Records a range that was received.
+	 * @param position
+	 *     The position of the first byte of the range
+	 * @param length
+	 *     The number of bytes in the range
+	 * @param hash
+	 *     The SHA-256 hash of the bytes in the range
+	 */
+	public void add(long position, long length, byte[] hash)
+	{
+		hashes.put(position, hash);
+		lengths.put(position, length);
+	}
+
+	/**
+	 * Returns the size of the whole file.
+	 * @return The size in bytes
+	 */
+	public long getFileSize()
+	{
+		return fileSize;
+	}
+
+	/**
+	 * Returns whether the range was received and the given file still has the
+	 * same bytes in it. The range is read from the file to check.
+	 * @param f
+	 *     The file being sent
+	 * @param position
+	 *     The position of the first byte of the range
+	 * @param length
+	 *     The number of bytes in the range
+	 * @return True if the range does not need to be sent again
+	 * @throws IOException
+	 *     If the file could not be read
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public boolean isReceived(File f, long position, long length) throws IOException, InterruptedException
+	{
+		byte[] hash = hashes.get(position);
+		if(null == hash || lengths.get(position) != length || position + length > f.length())
+		{
+			return false;
+		}
+
+		MessageDigest digest = TransferCheckpoint.createDigest();
+		try(FileInputStream in = new FileInputStream(f))
+		{
+			TransferCheckpoint.hash(in.getChannel(), position, position + length, digest);
+		}
+
+		return Arrays.equals(hash, digest.digest());
+	}
+
+	/**
+	 * Converts the checkpoint into a byte array to be sent or saved.
+	 * @return The array of bytes
+	 */
+	public byte[] byteData()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + hashes.size() * (2 * Long.BYTES + HASH_LENGTH));
+		buffer.putLong(fileSize);
+		buffer.putInt(hashes.size());
+		for(Map.Entry<Long, byte[]> range : hashes.entrySet())
+		{
+			buffer.putLong(range.getKey());
+			buffer.putLong(lengths.get(range.getKey()));
+			buffer.put(range.getValue());
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * Saves this checkpoint for the given file replacing any previous one. The
+	 * checkpoint is written to a temp file first so an interruption never leaves a
+	 * partly written checkpoint.
+	 * @param write
+	 *     The file being received
+	 * @throws IOException
+	 */
+	public void save(File write) throws IOException
+	{
+		synchronized(LOCK)
+		{
+			File checkpoint = getCheckpointFile(write);
+			File temp = new File(checkpoint.getPath() + ".temp");
+			Files.write(temp.toPath(), byteData());
+			Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Adds the received ranges to the saved checkpoint of the given file. Nothing
+	 * is saved if the file has no checkpoint for the same size.
+	 * @param write
+	 *     The file being received
+	 * @param received
+	 *     The ranges that were received
+	 * @throws IOException
+	 */
+	public static void addTo(File write, RangeCheckpoint received) throws IOException
+	{
+		synchronized(LOCK)
+		{
+			RangeCheckpoint saved = load(write);
+			if(null == saved || saved.fileSize != received.fileSize)
+			{
+				return;
+			}
+
+			for(Map.Entry<Long, byte[]> range : received.hashes.entrySet())
+			{
+				saved.add(range.getKey(), received.lengths.get(range.getKey()), range.getValue());
+			}
+			saved.save(write);
+		}
+	}
+
+	/**
+	 * Loads the saved checkpoint of the given file.
+	 * @param write
+	 *     The file being received
+	 * @return The checkpoint or null if there is none or it is damaged
+	 */
+	public static RangeCheckpoint load(File write)
+	{
+		synchronized(LOCK)
+		{
+			File checkpoint = getCheckpointFile(write);
+			if(!checkpoint.isFile())
+			{
+				return null;
+			}
+
+			try
+			{
+				return new RangeCheckpoint(Files.readAllBytes(checkpoint.toPath()));
+			}
+			catch(IOException e)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the saved checkpoint of the given file.
+	 * @param write
+	 *     The file being received
+	 */
+	public static void delete(File write)
+	{
+		synchronized(LOCK)
+		{
+			getCheckpointFile(write).delete();
+		}
+	}
+
+	/**
+	 * Returns the hidden file the checkpoint of the given file is saved in.
+	 * @param write
+	 *     The file being received
+	 * @return The checkpoint file
+	 */
+	private static File getCheckpointFile(File write)
+	{
+		return new File(write.getParentFile(), "." + write.getName() + ".ranges.checkpoint");
+	}
+}
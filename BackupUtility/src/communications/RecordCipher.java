@@ -0,0 +1,380 @@
+package communications;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts or decrypts files as a stream of fixed size AES-GCM records. Each
+ * record uses a nonce made from a counter that is never reused for the key and
+ * has its own authentication tag so tampering is found before the record is
+ * written. Records are processed between buffers from the BufferPool so memory
+ * used does not depend on the size of the file. When compression is enabled
+ * each record is compressed before it is encrypted unless that does not make it
+ * smaller.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class RecordCipher
+{
+	/**
+	 * The number of bytes for the authentication tag added to each record
+	 */
+	public static final int TAG_LENGTH = 16;
+
+	/**
+	 * The most file bytes stored in one record, sized so a full record with its tag
+	 * is exactly 64 KiB
+	 */
+	public static final int RECORD_SIZE = 64 * 1024 - TAG_LENGTH;
+
+	/**
+	 * Record flag for a record holding the file bytes as they are
+	 */
+	public static final byte RAW = 0x00;
+
+	/**
+	 * Record flag for a record holding Deflate compressed file bytes
+	 */
+	public static final byte COMPRESSED = 0x01;
+
+	/**
+	 * The number of bytes in the header sent before each record when compressing,
+	 * one byte for the flag and four for the record length
+	 */
+	public static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+	/**
+	 * Label used to derive the key for data sent from the client to the host
+	 */
+	public static final String CLIENT_TO_HOST = "client to host";
+
+	/**
+	 * Label used to derive the key for data sent from the host to the client
+	 */
+	public static final String HOST_TO_CLIENT = "host to client";
+
+	/**
+	 * The number of bytes in a GCM nonce
+	 */
+	private static final int NONCE_LENGTH = 12;
+
+	/**
+	 * The cipher reused for every record
+	 */
+	private Cipher cipher;
+
+	/**
+	 * The key for this direction of the connection
+	 */
+	private Key key;
+
+	/**
+	 * Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	private int mode;
+
+	/**
+	 * The number of records that have been processed, used as the nonce
+	 */
+	private long counter;
+
+	/**
+	 * Reused array for the nonce
+	 */
+	private byte[] nonce;
+
+	/**
+	 * Reused array for the additional authenticated data
+	 */
+	private byte[] associatedData;
+
+	/**
+	 * Compresses records before encryption, null if not compressing
+	 */
+	private Deflater deflater;
+
+	/**
+	 * Decompresses records after decryption, null if not compressing
+	 */
+	private Inflater inflater;
+
+	/**
+	 * Creates a record cipher using the given key.
+	 * @param key
+	 *     The AES key for this direction of the connection
+	 * @param mode
+	 *     Cipher.ENCRYPT_MODE to send records or Cipher.DECRYPT_MODE to receive
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 */
+	public RecordCipher(Key key, int mode) throws NoSuchAlgorithmException, NoSuchPaddingException
+	{
+		cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.key = key;
+		this.mode = mode;
+		counter = 0;
+		nonce = new byte[NONCE_LENGTH];
+		associatedData = new byte[2 * Long.BYTES + 1];
+	}
+
+	/**
+	 * Creates the record cipher for one direction of a connection using the
+	 * transfer options agreed on by the client and host.
+	 * @param shared
+	 *     The key shared during the handshake
+	 * @param label
+	 *     CLIENT_TO_HOST or HOST_TO_CLIENT, followed by the stream ID for a
+	 *     multiplexed stream
+	 * @param mode
+	 *     Cipher.ENCRYPT_MODE to send records or Cipher.DECRYPT_MODE to receive
+	 * @param options
+	 *     The transfer options for the connection
+	 * @return The record cipher or null if files are sent unencrypted
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 */
+	public static RecordCipher create(Key shared, String label, int mode, byte options) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException
+	{
+		if(0 != (options & CommunicationHelp.PLAINTEXT_TRANSFER))
+		{
+			return null;
+		}
+
+		RecordCipher cipher = new RecordCipher(deriveKey(shared, label), mode);
+		if(0 != (options & CommunicationHelp.DEFLATE_COMPRESSION))
+		{
+			cipher.enableCompression();
+		}
+		return cipher;
+	}
+
+	/**
+	 * Turns on compression for this direction of the connection. Records are then
+	 * sent with a header holding the record flag and length.
+	 */
+	public void enableCompression()
+	{
+		if(Cipher.ENCRYPT_MODE == mode)
+		{
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+		else
+		{
+			inflater = new Inflater();
+		}
+	}
+
+	/**
+	 * Returns whether records are compressed and sent with a header.
+	 * @return True if compression is on, false otherwise
+	 */
+	public boolean isCompressing()
+	{
+		return null != deflater || null != inflater;
+	}
+
+	/**
+	 * Compresses the remaining bytes of the plaintext buffer into the compressed
+	 * buffer. The compressed buffer is flipped and ready to be encrypted if the
+	 * data shrunk, otherwise the plaintext buffer is left unchanged to be sent raw.
+	 * @param plaintext
+	 *     The file bytes to compress
+	 * @param compressed
+	 *     The buffer to put the compressed bytes in
+	 * @return True if the compressed bytes are smaller and should be sent, false
+	 *     to send the plaintext raw
+	 */
+	public boolean compress(ByteBuffer plaintext, ByteBuffer compressed)
+	{
+		int start = plaintext.position();
+		compressed.clear();
+		// Only accept output that is smaller than the input
+		compressed.limit(Math.min(compressed.capacity(), Math.max(plaintext.remaining() - 1, 0)));
+		deflater.reset();
+		deflater.setInput(plaintext);
+		deflater.finish();
+		while(!deflater.finished() && compressed.hasRemaining())
+		{
+			deflater.deflate(compressed);
+		}
+
+		if(!deflater.finished())
+		{
+			plaintext.position(start);
+			return false;
+		}
+
+		compressed.flip();
+		return true;
+	}
+
+	/**
+	 * Decompresses the remaining bytes of the compressed buffer into the plaintext
+	 * buffer. The plaintext buffer is flipped so it is ready to be written.
+	 * @param compressed
+	 *     The decrypted compressed bytes
+	 * @param plaintext
+	 *     The buffer to put the file bytes in
+	 * @throws IOException
+	 *     If the data is not valid or does not fit in a record
+	 */
+	public void decompress(ByteBuffer compressed, ByteBuffer plaintext) throws IOException
+	{
+		plaintext.clear();
+		plaintext.limit(Math.min(plaintext.capacity(), RECORD_SIZE));
+		inflater.reset();
+		inflater.setInput(compressed);
+		try
+		{
+			while(!inflater.finished() && plaintext.hasRemaining())
+			{
+				if(0 == inflater.inflate(plaintext) && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					break;
+				}
+			}
+		}
+		catch(DataFormatException e)
+		{
+			throw new IOException("Compressed record is not valid.", e);
+		}
+
+		if(!inflater.finished())
+		{
+			throw new IOException("Compressed record is not valid.");
+		}
+		plaintext.flip();
+	}
+
+	/**
+	 * Derives a key for one direction of the connection from the shared key so the
+	 * client and host never encrypt with the same key and nonce.
+	 * @param shared
+	 *     The key shared during the handshake
+	 * @param label
+	 *     CLIENT_TO_HOST or HOST_TO_CLIENT
+	 * @return The derived AES key
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	public static SecretKey deriveKey(Key shared, String label) throws NoSuchAlgorithmException, InvalidKeyException
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(shared.getEncoded(), "HmacSHA256"));
+		byte[] derived = mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+		return new SecretKeySpec(derived, 0, shared.getEncoded().length, "AES");
+	}
+
+	/**
+	 * Encrypts the remaining bytes of the plaintext buffer into the record buffer.
+	 * The record buffer is flipped so it is ready to be sent.
+	 * @param plaintext
+	 *     The file bytes to encrypt, at most RECORD_SIZE
+	 * @param record
+	 *     The buffer to put the record in, must have room for the tag
+	 * @param fileSize
+	 *     The size of the whole file, authenticated with every record
+	 * @param position
+	 *     The position in the file of the record's first byte, authenticated so
+	 *     the record can only be written where it was read from
+	 * @param flag
+	 *     RAW or COMPRESSED, authenticated with the record
+	 * @return The number of bytes in the record
+	 * @throws IOException
+	 *     If the record could not be encrypted
+	 */
+	public int encrypt(ByteBuffer plaintext, ByteBuffer record, long fileSize, long position, byte flag) throws IOException
+	{
+		try
+		{
+			init(fileSize, position, flag);
+			int written = cipher.doFinal(plaintext, record);
+			record.flip();
+			return written;
+		}
+		catch(GeneralSecurityException e)
+		{
+			throw new IOException("Record could not be encrypted.", e);
+		}
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the record buffer into the plaintext buffer
+	 * and checks the authentication tag. The plaintext buffer is flipped so it is
+	 * ready to be written.
+	 * @param record
+	 *     The received record including the tag
+	 * @param plaintext
+	 *     The buffer to put the file bytes in
+	 * @param fileSize
+	 *     The size of the whole file, authenticated with every record
+	 * @param position
+	 *     The position in the file the record will be written to
+	 * @param flag
+	 *     RAW or COMPRESSED, authenticated with the record
+	 * @return The number of decrypted bytes in the record
+	 * @throws IOException
+	 *     If the record was modified or could not be decrypted
+	 */
+	public int decrypt(ByteBuffer record, ByteBuffer plaintext, long fileSize, long position, byte flag) throws IOException
+	{
+		try
+		{
+			init(fileSize, position, flag);
+			int written = cipher.doFinal(record, plaintext);
+			plaintext.flip();
+			return written;
+		}
+		catch(GeneralSecurityException e)
+		{
+			throw new IOException("Record failed authentication.", e);
+		}
+	}
+
+	/**
+	 * Prepares the cipher for the next record using the next nonce.
+	 * @param fileSize
+	 *     The size of the file the record is in
+	 * @param position
+	 *     The position of the record in the file
+	 * @param flag
+	 *     The flag for the record
+	 * @throws GeneralSecurityException
+	 */
+	private void init(long fileSize, long position, byte flag) throws GeneralSecurityException
+	{
+		Arrays.fill(nonce, (byte) 0);
+		long num = counter;
+		for(int i = nonce.length - 1; i >= nonce.length - Long.BYTES; i--)
+		{
+			nonce[i] = (byte) (num & 0xFF);
+			num >>= Byte.SIZE;
+		}
+		counter++;
+
+		ByteHelp.toBytes(fileSize, associatedData, 0);
+		ByteHelp.toBytes(position, associatedData, Long.BYTES);
+		associatedData[2 * Long.BYTES] = flag;
+
+		cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce));
+		cipher.updateAAD(associatedData);
+	}
+}
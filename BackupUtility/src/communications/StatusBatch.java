@@ -0,0 +1,221 @@
+package communications;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores the relative path, date last modified, size and known content hash of
+ * many files so the status of all of them can be requested in a single frame
+ * instead of one packet round trip per file.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class StatusBatch
+{
+	/**
+	 * The relative paths of the files in the batch
+	 */
+	private String[] paths;
+
+	/**
+	 * The dates the files were last modified
+	 */
+	private long[] fileDates;
+
+	/**
+	 * The sizes of the files in bytes
+	 */
+	private long[] fileSizes;
+
+	/**
+	 * The content hashes of the files, null where not known
+	 */
+	private byte[][] hashes;
+
+	/**
+	 * The number of files in the batch
+	 */
+	private int size;
+
+	/**
+	 * Creates an empty batch with room for the given number of files.
+	 * @param capacity
+	 *     The number of files expected to be added
+	 */
+	public StatusBatch(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+		paths = new String[capacity];
+		fileDates = new long[capacity];
+		fileSizes = new long[capacity];
+		hashes = new byte[capacity][];
+		size = 0;
+	}
+
+	/**
+	 * Creates a batch from the byte array that was received.
+	 * @param bytes
+	 *     The byte array to be parsed
+	 */
+	public StatusBatch(byte[] bytes)
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int count = buffer.getInt();
+		paths = new String[Math.max(count, 1)];
+		fileDates = new long[paths.length];
+		fileSizes = new long[paths.length];
+		hashes = new byte[paths.length][];
+
+		// Convert between different operating systems file separators
+		boolean windows = "\\".equals(System.getProperty("file.separator"));
+		for(size = 0; size < count; size++)
+		{
+			fileDates[size] = buffer.getLong();
+			fileSizes[size] = buffer.getLong();
+			int hashLength = buffer.get() & 0xFF;
+			if(hashLength > 0)
+			{
+				hashes[size] = new byte[hashLength];
+				buffer.get(hashes[size]);
+			}
+			int pathLength = buffer.getInt();
+			String path = new String(bytes, buffer.position(), pathLength, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + pathLength);
+			paths[size] = windows ? path.replace('/', '\\') : path.replace('\\', '/');
+		}
+	}
+
+	/**
+	 * Adds a file to the batch.
+	 * @param relativePath
+	 *     The relative path of the file
+	 * @param dateModified
+	 *     The date the file was last modified
+	 * @param fileSize
+	 *     The size of the file in bytes
+	 * @param hash
+	 *     The content hash of the file, null if not known
+	 */
+	public void add(String relativePath, long dateModified, long fileSize, byte[] hash)
+	{
+		if(size == paths.length)
+		{
+			paths = Arrays.copyOf(paths, size * 2);
+			fileDates = Arrays.copyOf(fileDates, size * 2);
+			fileSizes = Arrays.copyOf(fileSizes, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+
+		paths[size] = relativePath;
+		fileDates[size] = dateModified;
+		fileSizes[size] = fileSize;
+		hashes[size] = hash;
+		size++;
+	}
+
+	/**
+	 * Converts the data in the batch into a byte array to be sent.
+	 * @return The array of bytes to be sent
+	 */
+	public byte[] byteData()
+	{
+		byte[][] encodedPaths = new byte[size][];
+		// 4 bytes for count, per file 8 bytes date, 8 bytes size, 1 byte hash length
+		// followed by the hash and 4 bytes path length followed by the path
+		int length = Integer.BYTES;
+		for(int i = 0; i < size; i++)
+		{
+			encodedPaths[i] = paths[i].getBytes(StandardCharsets.UTF_8);
+			length += 2 * Long.BYTES + 1 + getHashLength(i) + Integer.BYTES + encodedPaths[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(size);
+		for(int i = 0; i < size; i++)
+		{
+			buffer.putLong(fileDates[i]);
+			buffer.putLong(fileSizes[i]);
+			buffer.put((byte) getHashLength(i));
+			if(null != hashes[i])
+			{
+				buffer.put(hashes[i]);
+			}
+			buffer.putInt(encodedPaths[i].length);
+			buffer.put(encodedPaths[i]);
+		}
+
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the number of files in the batch.
+	 * @return The number of files
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the relative path of the file at the given index.
+	 * @param index
+	 *     The index of the file
+	 * @return The relative path
+	 */
+	public String getPath(int index)
+	{
+		return paths[index];
+	}
+
+	/**
+	 * Returns the date last modified of the file at the given index.
+	 * @param index
+	 *     The index of the file
+	 * @return The date last modified
+	 */
+	public long getFileDate(int index)
+	{
+		return fileDates[index];
+	}
+
+	/**
+	 * Returns the size of the file at the given index.
+	 * @param index
+	 *     The index of the file
+	 * @return The size of the file in bytes
+	 */
+	public long getFileSize(int index)
+	{
+		return fileSizes[index];
+	}
+
+	/**
+	 * Returns the content hash of the file at the given index.
+	 * @param index
+	 *     The index of the file
+	 * @return The content hash, null if not known
+	 */
+	public byte[] getHash(int index)
+	{
+		return hashes[index];
+	}
+
+	/**
+	 * Returns the number of bytes in the hash of the file at the given index.
+	 * @param index
+	 *     The index of the file
+	 * @return The length of the hash, 0 if not known
+	 */
+	private int getHashLength(int index)
+	{
+		return null == hashes[index] ? 0 : hashes[index].length;
+	}
+
+	@Override
+	public String toString()
+	{
+		return size + " files";
+	}
+}
@@ -0,0 +1,698 @@
+package communications;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Carries many independent streams over a single connection so several file
+ * transfers and requests can be in flight at the same time. Everything written
+ * to a stream is split into frames tagged with the stream ID, and a writer
+ * thread sends one frame from each stream with data waiting in turn so a large
+ * file cannot hold up the others. A reader thread hands received frames to the
+ * stream they belong to. Each stream may only have a window of unread data at
+ * the receiver, which tells the sender as it reads so a slow stream never fills
+ * memory. Frames are kept in pooled buffers while waiting to be sent or read.
+ * <p>
+ * Streams are given to users as sockets so everything in CommunicationHelp can
+ * be used on a stream the same as on a connection.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class StreamMultiplexer
+{
+	/**
+	 * The most stream data sent in a single frame
+	 */
+	public static final int MAX_FRAME_SIZE = 16 * 1024;
+
+	/**
+	 * The most unread bytes a stream may have waiting at the receiver
+	 */
+	private static final int WINDOW = 256 * 1024;
+
+	/**
+	 * The number of bytes in a frame header, the stream ID, type, and length
+	 */
+	private static final int HEADER_SIZE = Integer.BYTES + 1 + Integer.BYTES;
+
+	/**
+	 * The most stream data this side puts in a frame so the whole frame fits a
+	 * pooled buffer of the largest frame size
+	 */
+	private static final int FRAME_DATA_SIZE = MAX_FRAME_SIZE - HEADER_SIZE;
+
+	/**
+	 * Frame type for data written to the stream
+	 */
+	private static final byte DATA = 0x00;
+
+	/**
+	 * Frame type for the end of the stream
+	 */
+	private static final byte CLOSE = 0x01;
+
+	/**
+	 * Frame type telling the sender how many more bytes of the stream were read
+	 */
+	private static final byte CREDIT = 0x02;
+
+	/**
+	 * The connection the streams are carried over
+	 */
+	private Socket socket;
+
+	/**
+	 * True if this side opens streams, false if it accepts them
+	 */
+	private boolean client;
+
+	/**
+	 * The ID to give the next opened stream
+	 */
+	private int nextId;
+
+	/**
+	 * All open streams by ID
+	 */
+	private HashMap<Integer, Stream> streams;
+
+	/**
+	 * Streams opened by the other side that have not been accepted
+	 */
+	private ArrayDeque<Stream> accepted;
+
+	/**
+	 * Streams with frames waiting to be sent in the order they are served
+	 */
+	private ArrayDeque<Stream> ready;
+
+	/**
+	 * Credit frames waiting to be sent, sent before any data
+	 */
+	private ArrayDeque<ByteBuffer> control;
+
+	/**
+	 * True once the connection is closing or has ended
+	 */
+	private boolean closed;
+
+	/**
+	 * Thread writing frames to the connection
+	 */
+	private Thread writer;
+
+	/**
+	 * Creates a multiplexer over the given connection and starts sending and
+	 * receiving frames.
+	 * @param socket
+	 *     The connection to carry the streams over
+	 * @param client
+	 *     True if this side opens streams, false if it accepts them
+	 */
+	public StreamMultiplexer(Socket socket, boolean client)
+	{
+		this.socket = socket;
+		this.client = client;
+		nextId = 1;
+		streams = new HashMap<>();
+		accepted = new ArrayDeque<>();
+		ready = new ArrayDeque<>();
+		control = new ArrayDeque<>();
+		closed = false;
+
+		try
+		{
+			// Frames are already gathered before each flush so do not delay small ones
+			socket.setTcpNoDelay(true);
+		}
+		catch(SocketException e)
+		{
+			// Frames are still sent, only later
+		}
+
+		Thread reader = new Thread(this::readFrames, "Stream reader " + socket);
+		reader.setDaemon(true);
+		reader.start();
+		writer = new Thread(this::writeFrames, "Stream writer " + socket);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Opens a new stream to the other side.
+	 * @return The socket for the stream
+	 * @throws IOException
+	 *     If the connection is closed
+	 */
+	public synchronized Stream openStream() throws IOException
+	{
+		if(closed)
+		{
+			throw new IOException("Connection is closed.");
+		}
+
+		Stream stream = new Stream(nextId);
+		nextId++;
+		streams.put(stream.id, stream);
+		return stream;
+	}
+
+	/**
+	 * Waits for the other side to open a stream.
+	 * @return The socket for the stream or null if the connection ended
+	 * @throws InterruptedException
+	 */
+	public synchronized Stream acceptStream() throws InterruptedException
+	{
+		while(accepted.isEmpty() && !closed)
+		{
+			wait();
+		}
+
+		return accepted.poll();
+	}
+
+	/**
+	 * Sends any frames still waiting and closes the connection.
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		synchronized(this)
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		try
+		{
+			writer.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reads frames from the connection and gives them to their streams until the
+	 * connection ends.
+	 */
+	private void readFrames()
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE + HEADER_SIZE));
+			// Only this thread reads, the payload is copied into a pooled buffer
+			byte[] received = new byte[MAX_FRAME_SIZE];
+			while(true)
+			{
+				int id = in.readInt();
+				byte type = in.readByte();
+				int length = in.readInt();
+				if(length < 0 || length > MAX_FRAME_SIZE)
+				{
+					throw new IOException("Frame has an invalid length.");
+				}
+				in.readFully(received, 0, length);
+				ByteBuffer payload = acquireFrame(length);
+				payload.put(received, 0, length).flip();
+
+				try
+				{
+					synchronized(this)
+					{
+						Stream stream = streams.get(id);
+						if(null == stream && !client && DATA == type && id > 0)
+						{
+							// First data of a stream opened by the other side
+							stream = new Stream(id);
+							streams.put(id, stream);
+							accepted.add(stream);
+						}
+
+						if(null != stream)
+						{
+							if(DATA == type && length > 0 && !stream.localClosed)
+							{
+								stream.buffered += length;
+								if(stream.buffered > WINDOW)
+								{
+									throw new IOException("Stream " + id + " sent more than its window.");
+								}
+								stream.inbound.add(payload);
+								payload = null;
+							}
+							else if(CLOSE == type)
+							{
+								stream.remoteClosed = true;
+								if(stream.localClosed)
+								{
+									streams.remove(id);
+								}
+							}
+							else if(CREDIT == type && Integer.BYTES == length)
+							{
+								stream.credit += payload.getInt();
+							}
+						}
+						notifyAll();
+					}
+				}
+				finally
+				{
+					// Payloads given to a stream are released once read
+					BufferPool.release(payload);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			// Connection ended
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				closed = true;
+				for(Stream stream : streams.values())
+				{
+					stream.remoteClosed = true;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes waiting frames to the connection, one frame from each ready stream in
+	 * turn, until the connection is closed and nothing is left to send.
+	 */
+	private void writeFrames()
+	{
+		try
+		{
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + HEADER_SIZE);
+			// Only this thread writes, each frame is copied out of its pooled buffer
+			byte[] sending = new byte[MAX_FRAME_SIZE + HEADER_SIZE];
+			while(true)
+			{
+				ByteBuffer frame = nextFrame();
+				if(null == frame)
+				{
+					// Send everything written before waiting for more
+					out.flush();
+					synchronized(this)
+					{
+						while(!closed && control.isEmpty() && ready.isEmpty())
+						{
+							wait();
+						}
+						if(closed && control.isEmpty() && ready.isEmpty())
+						{
+							return;
+						}
+					}
+				}
+				else
+				{
+					int length = frame.remaining();
+					frame.get(sending, 0, length);
+					BufferPool.release(frame);
+					out.write(sending, 0, length);
+				}
+			}
+		}
+		catch(IOException | InterruptedException e)
+		{
+			synchronized(this)
+			{
+				closed = true;
+				// Frames left waiting are never sent
+				for(ByteBuffer frame = nextFrame(); null != frame; frame = nextFrame())
+				{
+					BufferPool.release(frame);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the next frame to send without waiting. Credit frames are sent first
+	 * then the next stream in line sends one frame and goes to the back of the line
+	 * if it has more.
+	 * @return The frame or null if none are waiting
+	 */
+	private synchronized ByteBuffer nextFrame()
+	{
+		if(!control.isEmpty())
+		{
+			return control.poll();
+		}
+
+		Stream stream = ready.poll();
+		if(null == stream)
+		{
+			return null;
+		}
+
+		ByteBuffer frame = stream.outbound.poll();
+		if(!stream.outbound.isEmpty())
+		{
+			ready.add(stream);
+		}
+		return frame;
+	}
+
+	/**
+	 * Creates a frame with the given header and payload in a pooled buffer. The
+	 * buffer is released once the frame is sent.
+	 * @param id
+	 *     The ID of the stream
+	 * @param type
+	 *     The type of frame
+	 * @param payload
+	 *     The array holding the payload
+	 * @param offset
+	 *     The start of the payload in the array
+	 * @param length
+	 *     The number of bytes in the payload
+	 * @return The frame ready to be read
+	 */
+	private static ByteBuffer createFrame(int id, byte type, byte[] payload, int offset, int length)
+	{
+		ByteBuffer frame = acquireFrame(HEADER_SIZE + length);
+		frame.putInt(id).put(type).putInt(length).put(payload, offset, length).flip();
+		return frame;
+	}
+
+	/**
+	 * Returns a buffer for a frame from the pool. The reader and writer threads
+	 * must never wait on other transfers, so a buffer that is not pooled is used
+	 * when the pool budget is used up.
+	 * @param size
+	 *     The number of bytes in the frame
+	 * @return The cleared buffer with a limit of the size
+	 */
+	private static ByteBuffer acquireFrame(int size)
+	{
+		ByteBuffer frame = BufferPool.tryAcquire(size);
+		return null == frame ? ByteBuffer.allocate(size) : frame;
+	}
+
+	/**
+	 * A single stream carried by the multiplexer. All state is guarded by the
+	 * multiplexer.
+	 */
+	public class Stream extends Socket
+	{
+		/**
+		 * The ID of the stream
+		 */
+		private int id;
+
+		/**
+		 * Received payloads not yet read, each positioned at its next unread byte
+		 */
+		private ArrayDeque<ByteBuffer> inbound;
+
+		/**
+		 * The number of received bytes not yet read
+		 */
+		private int buffered;
+
+		/**
+		 * The number of bytes read since the last credit was sent
+		 */
+		private int consumed;
+
+		/**
+		 * Frames waiting to be sent
+		 */
+		private ArrayDeque<ByteBuffer> outbound;
+
+		/**
+		 * The number of bytes that may be sent before the other side reads more
+		 */
+		private long credit;
+
+		/**
+		 * True once this side closed the stream
+		 */
+		private boolean localClosed;
+
+		/**
+		 * True once the other side closed the stream or the connection ended
+		 */
+		private boolean remoteClosed;
+
+		/**
+		 * Stream to read received data from
+		 */
+		private InputStream input;
+
+		/**
+		 * Stream to write data to send to
+		 */
+		private OutputStream output;
+
+		/**
+		 * Creates a stream with the given ID.
+		 * @param id
+		 *     The ID of the stream
+		 */
+		private Stream(int id)
+		{
+			this.id = id;
+			inbound = new ArrayDeque<>();
+			outbound = new ArrayDeque<>();
+			credit = WINDOW;
+			input = new StreamInput();
+			output = new StreamOutput();
+		}
+
+		/**
+		 * Returns the ID of the stream, the same on both sides of the connection.
+		 * @return The stream ID
+		 */
+		public int getId()
+		{
+			return id;
+		}
+
+		@Override
+		public InputStream getInputStream()
+		{
+			return input;
+		}
+
+		@Override
+		public OutputStream getOutputStream()
+		{
+			return output;
+		}
+
+		@Override
+		public boolean isConnected()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			synchronized(StreamMultiplexer.this)
+			{
+				return localClosed;
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized(StreamMultiplexer.this)
+			{
+				if(localClosed)
+				{
+					return;
+				}
+
+				localClosed = true;
+				queue(createFrame(id, CLOSE, new byte[0], 0, 0));
+				if(remoteClosed)
+				{
+					streams.remove(id);
+				}
+
+				// Nothing more is read, give back what was received
+				for(ByteBuffer payload : inbound)
+				{
+					BufferPool.release(payload);
+				}
+				inbound.clear();
+				buffered = 0;
+				StreamMultiplexer.this.notifyAll();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Stream " + id + " on " + socket;
+		}
+
+		/**
+		 * Adds a frame to be sent and puts the stream in line if it was not waiting.
+		 * Must hold the multiplexer lock.
+		 * @param frame
+		 *     The frame to send
+		 */
+		private void queue(ByteBuffer frame)
+		{
+			outbound.add(frame);
+			if(1 == outbound.size())
+			{
+				ready.add(this);
+			}
+		}
+
+		/**
+		 * Reads data received on the stream.
+		 */
+		private class StreamInput extends InputStream
+		{
+			@Override
+			public int read() throws IOException
+			{
+				byte[] single = new byte[1];
+				return -1 == read(single, 0, 1) ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if(0 == len)
+				{
+					return 0;
+				}
+
+				synchronized(StreamMultiplexer.this)
+				{
+					try
+					{
+						while(inbound.isEmpty() && !remoteClosed && !localClosed)
+						{
+							StreamMultiplexer.this.wait();
+						}
+					}
+					catch(InterruptedException e)
+					{
+						throw new InterruptedIOException("Interrupted while reading " + Stream.this);
+					}
+
+					ByteBuffer payload = inbound.peek();
+					if(null == payload)
+					{
+						return -1;
+					}
+
+					int read = Math.min(len, payload.remaining());
+					payload.get(b, off, read);
+					if(!payload.hasRemaining())
+					{
+						BufferPool.release(inbound.poll());
+					}
+					buffered -= read;
+
+					// Let the sender know once half the window was read
+					consumed += read;
+					if(consumed >= WINDOW / 2 && !remoteClosed)
+					{
+						control.add(createFrame(id, CREDIT, ByteHelp.toBytes(consumed), 0, Integer.BYTES));
+						consumed = 0;
+						StreamMultiplexer.this.notifyAll();
+					}
+					return read;
+				}
+			}
+
+			@Override
+			public int available()
+			{
+				synchronized(StreamMultiplexer.this)
+				{
+					return buffered;
+				}
+			}
+		}
+
+		/**
+		 * Splits written data into frames to be sent on the stream.
+		 */
+		private class StreamOutput extends OutputStream
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				while(len > 0)
+				{
+					synchronized(StreamMultiplexer.this)
+					{
+						try
+						{
+							// Wait for the other side to read if the window is full
+							while(credit <= 0 && !closed && !localClosed)
+							{
+								StreamMultiplexer.this.wait();
+							}
+						}
+						catch(InterruptedException e)
+						{
+							throw new InterruptedIOException("Interrupted while writing " + Stream.this);
+						}
+
+						if(closed || localClosed)
+						{
+							throw new IOException(Stream.this + " is closed.");
+						}
+
+						int length = (int) Math.min(Math.min(len, FRAME_DATA_SIZE), credit);
+						credit -= length;
+						queue(createFrame(id, DATA, b, off, length));
+						StreamMultiplexer.this.notifyAll();
+						off += length;
+						len -= length;
+					}
+				}
+			}
+
+			@Override
+			public void close()
+			{
+				Stream.this.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package communications;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The committed progress of a file being received. While a file is received it
+ * is written to a hidden partial file next to it and every CHECKPOINT_INTERVAL
+ * bytes the partial file is flushed and a checkpoint is saved with the number of
+ * bytes written and a hash of them. If the transfer is interrupted the partial
+ * file is kept so the sender can check its file still starts with the same
+ * bytes and send only the rest.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class TransferCheckpoint
+{
+	/**
+	 * The number of bytes received between checkpoints, files smaller than this
+	 * are never resumed
+	 */
+	public static final long CHECKPOINT_INTERVAL = 64L * 1024 * 1024;
+
+	/**
+	 * The number of bytes in the prefix hash
+	 */
+	private static final int HASH_LENGTH = 32;
+
+	/**
+	 * The number of bytes of committed file data
+	 */
+	private long offset;
+
+	/**
+	 * The SHA-256 hash of the committed file data
+	 */
+	private byte[] hash;
+
+	/**
+	 * Creates a checkpoint for the given number of bytes.
+	 * @param offset
+	 *     The number of bytes of committed file data
+	 * @param hash
+	 *     The hash of the committed file data
+	 */
+	public TransferCheckpoint(long offset, byte[] hash)
+	{
+		this.offset = offset;
+		this.hash = hash;
+	}
+
+	/**
+	 * Creates a checkpoint from the bytes created by byteData.
+	 * @param data
+	 *     The byte data of the checkpoint
+	 * @throws IOException
+	 *     If the data is not a checkpoint
+	 */
+	public TransferCheckpoint(byte[] data) throws IOException
+	{
+		if(data.length != Long.BYTES + HASH_LENGTH)
+		{
+			throw new IOException("Checkpoint is not valid.");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		offset = buffer.getLong();
+		hash = new byte[HASH_LENGTH];
+		buffer.get(hash);
+	}
+
+	/**
+	 * Creates a checkpoint for the given number of bytes using the current hash of
+	 * the digest without resetting it so more bytes can be added after.
+	 * @param offset
+	 *     The number of bytes of committed file data
+	 * @param digest
+	 *     The digest of the committed file data
+	 * @return The checkpoint
+	 */
+	public static TransferCheckpoint create(long offset, MessageDigest digest)
+	{
+		try
+		{
+			return new TransferCheckpoint(offset, ((MessageDigest) digest.clone()).digest());
+		}
+		catch(CloneNotSupportedException e)
+		{
+			// SHA-256 digests can always be cloned
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns whether the given checkpoint is for the same bytes as this one.
+	 * @param other
+	 *     The checkpoint to compare to, may be null
+	 * @return True if the offset and hash are the same, false otherwise
+	 */
+	public boolean matches(TransferCheckpoint other)
+	{
+		return null != other && offset == other.offset && Arrays.equals(hash, other.hash);
+	}
+
+	/**
+	 * Returns the number of bytes of committed file data.
+	 * @return The offset to resume from
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Returns the checkpoint as bytes to be saved or sent.
+	 * @return The byte data of the checkpoint
+	 */
+	public byte[] byteData()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + HASH_LENGTH);
+		buffer.putLong(offset);
+		buffer.put(hash);
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the offset the given file can be sent from. The file must be at least
+	 * as long as the committed data and start with the same bytes, otherwise the
+	 * whole file must be sent.
+	 * @param f
+	 *     The file to be sent
+	 * @return The offset to send from, 0 if the file does not match
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public long getResumeOffset(File f) throws IOException, InterruptedException
+	{
+		if(offset <= 0 || f.length() < offset)
+		{
+			return 0;
+		}
+
+		MessageDigest digest = createDigest();
+		try(FileInputStream in = new FileInputStream(f))
+		{
+			hash(in.getChannel(), 0, offset, digest);
+		}
+
+		return Arrays.equals(hash, digest.digest()) ? offset : 0;
+	}
+
+	/**
+	 * Saves this checkpoint for the given file replacing any previous one. The
+	 * checkpoint is written to a temp file first so an interruption never leaves a
+	 * partly written checkpoint.
+	 * @param write
+	 *     The file being received
+	 * @throws IOException
+	 */
+	public void save(File write) throws IOException
+	{
+		File checkpoint = getCheckpointFile(write);
+		File temp = new File(checkpoint.getPath() + ".temp");
+		Files.write(temp.toPath(), byteData());
+		Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the saved checkpoint for the given file.
+	 * @param write
+	 *     The file being received
+	 * @return The checkpoint or null if there is no partial file to resume
+	 */
+	public static TransferCheckpoint load(File write)
+	{
+		File checkpoint = getCheckpointFile(write);
+		if(!checkpoint.isFile() || !getPartialFile(write).isFile())
+		{
+			return null;
+		}
+
+		try
+		{
+			return new TransferCheckpoint(Files.readAllBytes(checkpoint.toPath()));
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the partial file and checkpoint for the given file.
+	 * @param write
+	 *     The file being received
+	 */
+	public static void delete(File write)
+	{
+		getPartialFile(write).delete();
+		getCheckpointFile(write).delete();
+	}
+
+	/**
+	 * Returns the hidden file the given file is written to while being received.
+	 * @param write
+	 *     The file being received
+	 * @return The partial file
+	 */
+	public static File getPartialFile(File write)
+	{
+		return new File(write.getParentFile(), "." + write.getName() + ".partial");
+	}
+
+	/**
+	 * Returns the hidden file the checkpoint of the given file is saved in.
+	 * @param write
+	 *     The file being received
+	 * @return The checkpoint file
+	 */
+	private static File getCheckpointFile(File write)
+	{
+		return new File(write.getParentFile(), "." + write.getName() + ".checkpoint");
+	}
+
+	/**
+	 * Creates the digest used for prefix hashes.
+	 * @return The digest
+	 */
+	public static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			// Every Java platform must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds the given range of the file to the digest.
+	 * @param channel
+	 *     The file to read
+	 * @param from
+	 *     The position of the first byte
+	 * @param to
+	 *     The position after the last byte
+	 * @param digest
+	 *     The digest to update
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	public static void hash(FileChannel channel, long from, long to, MessageDigest digest) throws IOException, InterruptedException
+	{
+		ByteBuffer buffer = BufferPool.acquire(to - from);
+		try
+		{
+			long position = from;
+			while(position < to)
+			{
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), to - position));
+				int read = channel.read(buffer, position);
+				if(-1 == read)
+				{
+					throw new IOException("File ended before the checkpoint.");
+				}
+				buffer.flip();
+				digest.update(buffer);
+				position += read;
+			}
+		}
+		finally
+		{
+			BufferPool.release(buffer);
+		}
+	}
+}
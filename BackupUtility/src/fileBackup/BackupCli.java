@@ -0,0 +1,51 @@
+package fileBackup;
+
+import java.io.File;
+
+import lists.SinglyLinkedList;
+
+/**
+ * Runs backups from the command line without any display. Uses the same list
+ * and settings files as the display. Exits with 1 if any backup method did not
+ * finish.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupCli
+{
+	/**
+	 * Runs the given command, backing up once if none is given.
+	 * @param args
+	 *     backup, watch or help
+	 */
+	public static void main(String[] args)
+	{
+		String command = args.length > 0 ? args[0] : "backup";
+		if(!"backup".equals(command) && !"watch".equals(command))
+		{
+			System.out.println("Usage: BackupCli [backup | watch | help]");
+			System.out.println("  backup  Backs up every backup item once");
+			System.out.println("  watch   Backs up every backup item, then backs up changes until stopped");
+			System.exit("help".equals(command) ? 0 : 1);
+		}
+
+		BackupEngine engine = new BackupEngine(new File("BackupsList.txt"), new File("BackupItemsList.txt"), new File("BackupSettings.txt"));
+		if("watch".equals(command))
+		{
+			engine.watch();
+			return;
+		}
+
+		SinglyLinkedList<BackupProgress> progress = engine.backup();
+		boolean failed = false;
+		for(BackupProgress method : progress)
+		{
+			System.out.println(method);
+			// Not ready and failed methods both leave a different status
+			failed |= !"Finished".equals(method.getStatus());
+		}
+
+		System.exit(failed ? 1 : 0);
+	}
+}
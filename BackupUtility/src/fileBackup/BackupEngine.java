@@ -0,0 +1,1029 @@
+package fileBackup;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import communications.BufferPool;
+import communications.HashCache;
+import exceptions.ItemNotFoundException;
+import exceptions.SystemErrorException;
+import fileUsage.BackupItem;
+import fileUsage.FileStatus;
+import fileUsage.HashTree;
+import fileUsage.SystemFileReader;
+import lists.SinglyLinkedList;
+import networkBackup.NetworkBackup;
+
+/**
+ * Runs backups of the backup items with every backup method. The engine does
+ * not use any display so it can run on its own from the command line, a
+ * display only observes it.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupEngine
+{
+	/**
+	 * The number of scanned directories each backup method may fall behind the
+	 * scan by when not set
+	 */
+	private static final int DEFAULT_QUEUE_SIZE = 256;
+
+	/**
+	 * How long in milliseconds changes have to stop before they are backed up
+	 * when not set
+	 */
+	private static final long DEFAULT_WATCH_DELAY = 2000;
+
+	/**
+	 * List of backup methods that will be used
+	 */
+	private SinglyLinkedList<FileChecker> backups;
+
+	/**
+	 * Contains list of files to backup and handles relative path modifications
+	 */
+	private List<BackupItem> files;
+
+	/**
+	 * The file the backup items are read from and saved to
+	 */
+	private File itemsList;
+
+	/**
+	 * The file the backup settings are read from
+	 */
+	private File settings;
+
+	/**
+	 * Hash trees of the backup items filled by the scan, shared by the backup
+	 * methods until files are added to the item
+	 */
+	private ConcurrentHashMap<BackupItem, HashTree> trees;
+
+	/**
+	 * Scans the directories of the backup items on many threads
+	 */
+	private BackupWalker walker;
+
+	/**
+	 * The progress of every backup method in the running backup, null while
+	 * getting ready
+	 */
+	private volatile SinglyLinkedList<BackupProgress> progress;
+
+	/**
+	 * What the backup is doing
+	 */
+	private volatile String status;
+
+	/**
+	 * Told when each backup starts and finishes
+	 */
+	private SinglyLinkedList<Observer> observers;
+
+	/**
+	 * Told when a backup starts and finishes. Called from the thread running the
+	 * backup.
+	 */
+	public interface Observer
+	{
+		/**
+		 * Called before a backup starts.
+		 * @param engine
+		 *     The engine running the backup
+		 */
+		void backupStarted(BackupEngine engine);
+
+		/**
+		 * Called after a backup finished.
+		 * @param engine
+		 *     The engine that ran the backup
+		 */
+		void backupFinished(BackupEngine engine);
+	}
+
+	/**
+	 * Creates an engine using the backup methods and backup items in the given
+	 * files.
+	 * @param backupsList
+	 *     The file listing the backup methods
+	 * @param itemsList
+	 *     The file listing the backup items
+	 * @param settings
+	 *     The file with the backup settings
+	 */
+	public BackupEngine(File backupsList, File itemsList, File settings)
+	{
+		this.itemsList = itemsList;
+		this.settings = settings;
+		backups = getBackups(backupsList);
+		files = getBackupItems(itemsList);
+		observers = new SinglyLinkedList<>();
+		status = "";
+		HashCache.open(new File(SyncJournal.FOLDER, "Hashes.cache"));
+	}
+
+	/**
+	 * Returns the backup methods that are used.
+	 * @return The backup methods
+	 */
+	public SinglyLinkedList<FileChecker> getBackups()
+	{
+		return backups;
+	}
+
+	/**
+	 * Returns the backup items. Changes to the list are used by the next backup.
+	 * @return The backup items
+	 */
+	public List<BackupItem> getItems()
+	{
+		return files;
+	}
+
+	/**
+	 * Returns the progress of every backup method in the current or last backup.
+	 * @return The progress of each backup method, null if none yet
+	 */
+	public SinglyLinkedList<BackupProgress> getProgress()
+	{
+		return progress;
+	}
+
+	/**
+	 * Returns what the backup is doing.
+	 * @return The status
+	 */
+	public String getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * Adds an observer that is told when each backup starts and finishes.
+	 * @param observer
+	 *     The observer to add
+	 */
+	public void addObserver(Observer observer)
+	{
+		observers.add(observer);
+	}
+
+	private static SinglyLinkedList<FileChecker> getBackups(File read)
+	{
+		SinglyLinkedList<FileChecker> list = new SinglyLinkedList<>();
+
+		// Map for potential FileCheckers, any future addition will need to be added
+		// here
+		HashMap<String, Class<? extends FileChecker>> map = new HashMap<>();
+		map.put(NetworkBackup.class.getSimpleName(), NetworkBackup.class);
+		map.put(ExternalStorageBackup.class.getSimpleName(), ExternalStorageBackup.class);
+
+		Scanner fileScan;
+		try
+		{
+			fileScan = new Scanner(read);
+		}
+		catch(FileNotFoundException e)
+		{
+			return list;
+		}
+
+		while(fileScan.hasNextLine())
+		{
+			Scanner lineScan = new Scanner(fileScan.nextLine());
+			lineScan.useDelimiter(":>");
+			Class<? extends FileChecker> got = map.get(lineScan.next().trim());
+			if(null != got)
+			{
+				try
+				{
+					FileChecker toAdd = got.newInstance();
+					if(toAdd instanceof BackupInitilizer)
+					{
+						LinkedList<String> settings = new LinkedList<>();
+						while(lineScan.hasNext())
+						{
+							settings.add(lineScan.next().trim());
+						}
+
+						((BackupInitilizer) toAdd).initilize(settings);
+					}
+					list.add(toAdd);
+				}
+				catch(InstantiationException e)
+				{
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+				catch(IllegalAccessException e)
+				{
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+			else
+			{
+				System.out.println("Unknown backup method");
+			}
+			lineScan.close();
+		}
+
+		if(null != fileScan)
+		{
+			fileScan.close();
+		}
+
+		return list;
+	}
+
+	private static ArrayList<BackupItem> getBackupItems(File read)
+	{
+		ArrayList<BackupItem> list = new ArrayList<>();
+
+		if(read.exists() && read.canRead())
+		{
+			Scanner scan = null;
+			try
+			{
+				scan = new Scanner(read);
+				scan.useDelimiter(":>");
+
+				while(scan.hasNextLine())
+				{
+					Scanner lineScan = null;
+					try
+					{
+						lineScan = new Scanner(scan.nextLine());
+						lineScan.useDelimiter(":>");
+
+						String path = lineScan.next().trim();
+						BackupItem.BackupAction action = BackupItem.BackupAction.getFromString(lineScan.next().trim());
+
+						if(lineScan.hasNext())
+						{
+							// Backup item has custom location on backup location
+							String newPath = lineScan.next().trim();
+							list.add(new BackupItem(path, action, newPath));
+						}
+						else
+						{
+							list.add(new BackupItem(path, action));
+						}
+					}
+					catch(FileNotFoundException e)
+					{
+						System.out.println(e.getMessage());
+					}
+					catch(NoSuchElementException e)
+					{
+						System.out.println("Backup item list not in expected format.");
+					}
+					finally
+					{
+						if(null != lineScan)
+						{
+							lineScan.close();
+						}
+					}
+				}
+			}
+			catch(FileNotFoundException e)
+			{
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+			finally
+			{
+				if(null != scan)
+				{
+					scan.close();
+				}
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * Returns the given number from the settings file.
+	 * @param key
+	 *     The key for the setting
+	 * @return The number or 0 if it is not a number or is not set
+	 */
+	private int getSetting(String key)
+	{
+		try
+		{
+			return Integer.parseInt(new SystemFileReader(settings.getPath()).get(key));
+		}
+		catch(IOException | ItemNotFoundException | RuntimeException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Backs up the whole backup items once.
+	 * @return The progress of every backup method when finished
+	 */
+	public SinglyLinkedList<BackupProgress> backup()
+	{
+		return runBackups(files, null);
+	}
+
+	/**
+	 * Backs up the whole backup items once, then keeps watching
+	 * them and backs up only the files that changed. Files that failed are backed
+	 * up again with the next batch. Runs until interrupted.
+	 */
+	public void watch()
+	{
+		BackupWatcher watcher = null;
+		try
+		{
+			long delay = getSetting("Watch Delay");
+			// Watch before the first backup so no change is missed
+			watcher = new BackupWatcher(files, delay < 1 ? DEFAULT_WATCH_DELAY : delay);
+			retryFailed(watcher, files, null, runBackups(files, null));
+			while(!Thread.currentThread().isInterrupted())
+			{
+				LinkedHashMap<BackupItem, File[]> changed = watcher.take();
+				retryFailed(watcher, changed.keySet(), changed, runBackups(changed.keySet(), changed));
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch(InterruptedException e)
+		{
+			// Stop watching
+		}
+		finally
+		{
+			if(null != watcher)
+			{
+				watcher.close();
+			}
+		}
+	}
+
+	/**
+	 * Gives the files that failed with any backup method to the watcher to be
+	 * backed up again. Everything that was backed up is tried again for a backup
+	 * method that was stopped.
+	 * @param watcher
+	 *     The watcher handing out the batches
+	 * @param items
+	 *     The backup items that were backed up
+	 * @param roots
+	 *     The files and directories that were backed up in each item, null if the
+	 *     whole items were
+	 * @param done
+	 *     The progress of every backup method
+	 */
+	private static void retryFailed(BackupWatcher watcher, Iterable<BackupItem> items, Map<BackupItem, File[]> roots, SinglyLinkedList<BackupProgress> done)
+	{
+		for(BackupItem item : items)
+		{
+			for(BackupProgress method : done)
+			{
+				if(method.isComplete())
+				{
+					watcher.retry(item, method.getFailedFiles(item));
+				}
+				else
+				{
+					watcher.retry(item, Arrays.asList(null == roots ? new File[] {item.getFile()} : roots.get(item)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Backs up the given backup items with every backup method at once. Every
+	 * backup method runs on its own thread so a slow one does not hold up the
+	 * others, and the local files are scanned once for all of them.
+	 * @param items
+	 *     The backup items to back up
+	 * @param roots
+	 *     The files and directories to back up in each item, null to back up the
+	 *     whole items and get the missing files
+	 * @return The progress of every backup method when finished
+	 */
+	private SinglyLinkedList<BackupProgress> runBackups(Iterable<BackupItem> items, Map<BackupItem, File[]> roots)
+	{
+		int queueSize = getSetting("Queue Size");
+		// Limit the memory used by transfer buffers if set, the same setting as the host
+		int poolSize = getSetting("Buffer Pool MiB");
+		if(poolSize > 0)
+		{
+			BufferPool.setBudget(poolSize * 1024L * 1024);
+		}
+		SinglyLinkedList<BackupProgress> running = new SinglyLinkedList<>();
+		SinglyLinkedList<BackupQueue> queues = new SinglyLinkedList<>();
+		SinglyLinkedList<ExecutorService> executors = new SinglyLinkedList<>();
+		SinglyLinkedList<Future<?>> finished = new SinglyLinkedList<>();
+		progress = null;
+		status = "Getting Ready...";
+		for(Observer observer : observers)
+		{
+			observer.backupStarted(this);
+		}
+
+		try
+		{
+			trees = new ConcurrentHashMap<>();
+			for(BackupItem item : items)
+			{
+				trees.put(item, new HashTree(item.getFile()));
+			}
+			walker = new BackupWalker(getSetting("Scan Threads"));
+			for(FileChecker checker : backups)
+			{
+				BackupProgress method = new BackupProgress(checker);
+				BackupQueue queue = new BackupQueue(queueSize < 1 ? DEFAULT_QUEUE_SIZE : queueSize);
+				ExecutorService executor = Executors.newSingleThreadExecutor();
+				running.add(method);
+				queues.add(queue);
+				executors.add(executor);
+				finished.add(executor.submit(()->runBackup(method, queue, items, null == roots)));
+			}
+			progress = running;
+
+			for(BackupItem item : items)
+			{
+				status = "Scanning " + item.getPathToSend();
+				scan(item, null == roots ? new File[] {item.getFile()} : roots.get(item), queues);
+			}
+
+			status = "Backing up files...";
+			for(Future<?> result : finished)
+			{
+				try
+				{
+					result.get();
+				}
+				catch(ExecutionException e)
+				{
+					// Failures are kept in the progress of the backup method
+					e.printStackTrace();
+				}
+			}
+		}
+		catch(InterruptedException | SystemErrorException e)
+		{
+			// Stop every backup method
+			e.printStackTrace();
+			for(BackupQueue queue : queues)
+			{
+				queue.close();
+			}
+			for(ExecutorService executor : executors)
+			{
+				executor.shutdownNow();
+			}
+			if(e instanceof InterruptedException)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		finally
+		{
+			status = "Cleaning up...";
+			for(ExecutorService executor : executors)
+			{
+				executor.shutdown();
+			}
+			if(null != walker)
+			{
+				walker.shutdown();
+				walker = null;
+			}
+		}
+
+		try
+		{
+			HashCache.save();
+		}
+		catch(IOException e)
+		{
+			// Hashes are made again the next time the files are read
+			e.printStackTrace();
+		}
+
+		status = "Finished";
+		for(Observer observer : observers)
+		{
+			observer.backupFinished(this);
+		}
+
+		return running;
+	}
+
+	/**
+	 * Scans the given files of the backup item once and adds every directory to
+	 * the queue of each backup method, then marks the end of the item. Files
+	 * that are not in a scanned directory are added together. A directory that
+	 * is unchanged since the last scan is not listed again, its children are read
+	 * from the listing kept by the scan journal. Every listed directory is put in
+	 * the hash tree of the item before it is queued. The scan waits while any
+	 * queue is full.
+	 * @param item
+	 *     The backup item to scan
+	 * @param roots
+	 *     The files and directories in the item to scan
+	 * @param queues
+	 *     The queues of the backup methods
+	 * @throws InterruptedException
+	 * @throws SystemErrorException
+	 */
+	private void scan(BackupItem item, File[] roots, SinglyLinkedList<BackupQueue> queues) throws InterruptedException, SystemErrorException
+	{
+		SyncJournal listings = new SyncJournal(item, "scan");
+		HashTree tree = trees.get(item);
+		BackupWalker.Entry[] files = new BackupWalker.Entry[roots.length];
+		int numFiles = 0;
+		for(File root : roots)
+		{
+			// Do not backup hidden files or abnormal files
+			BackupWalker.Entry entry = BackupWalker.read(root);
+			if(null != entry && entry.getAttributes().isDirectory())
+			{
+				walker.walk(root, directory->
+				{
+					// Stamp is read first so a change made while listing is seen next time
+					long[] stamp = SyncJournal.readStamp(directory);
+					String path = item.getPathToSend(directory);
+					BackupWalker.Entry[] children = BackupWalker.read(listings.getChildren(path, directory, stamp));
+					if(null == children)
+					{
+						children = BackupWalker.list(directory);
+						if(null == children)
+						{
+							// Do not backup any unusual directories
+							tree.listed(directory);
+							return null;
+						}
+
+						File[] listed = new File[children.length];
+						for(int i = 0; i < children.length; i++)
+						{
+							listed[i] = children[i].getFile();
+						}
+						listings.listed(path, stamp, listed);
+					}
+
+					for(BackupWalker.Entry child : children)
+					{
+						BasicFileAttributes attributes = child.getAttributes();
+						tree.put(child.getFile(), attributes.isDirectory(), attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis());
+					}
+					tree.listed(directory);
+
+					BackupQueue.Event event = new BackupQueue.Event(directory, stamp, children);
+					for(BackupQueue queue : queues)
+					{
+						queue.put(event);
+					}
+
+					File[] subdirectories = new File[children.length];
+					int numDirectories = 0;
+					for(BackupWalker.Entry child : children)
+					{
+						if(child.getAttributes().isDirectory())
+						{
+							subdirectories[numDirectories] = child.getFile();
+							numDirectories++;
+						}
+					}
+					return Arrays.copyOf(subdirectories, numDirectories);
+				});
+			}
+			else if(null != entry && entry.getAttributes().isRegularFile())
+			{
+				files[numFiles] = entry;
+				numFiles++;
+			}
+		}
+
+		try
+		{
+			listings.save();
+		}
+		catch(IOException e)
+		{
+			// Directories are listed again next scan
+			e.printStackTrace();
+		}
+
+		if(numFiles > 0)
+		{
+			BackupQueue.Event event = new BackupQueue.Event(null, null, Arrays.copyOf(files, numFiles));
+			for(BackupQueue queue : queues)
+			{
+				queue.put(event);
+			}
+		}
+
+		for(BackupQueue queue : queues)
+		{
+			queue.putEnd();
+		}
+	}
+
+	/**
+	 * Backs up the given backup items using the backup method of the given
+	 * progress, taking the scanned directories from its queue. The backup method
+	 * is set up first and always torn down after. An error only stops this backup
+	 * method.
+	 * @param progress
+	 *     The progress of the backup method to run
+	 * @param queue
+	 *     The queue of scanned directories for the backup method
+	 * @param items
+	 *     The backup items being scanned
+	 * @param full
+	 *     True if the whole items are scanned and missing files should be
+	 *     gotten
+	 */
+	private void runBackup(BackupProgress progress, BackupQueue queue, Iterable<BackupItem> items, boolean full)
+	{
+		FileChecker checker = progress.getChecker();
+		try
+		{
+			// Set up the backup method if it needs it and check if it is ready
+			progress.setStatus("Getting Ready...");
+			if(checker instanceof BackupPreparer)
+			{
+				((BackupPreparer) checker).setUp();
+			}
+
+			if(!checker.checkSystemReady())
+			{
+				System.out.println("Not ready " + checker);
+				progress.setStatus("Not ready");
+				return;
+			}
+
+			progress.setStatus("Backing up files...");
+			for(BackupItem item : items)
+			{
+				progress.setItem(item.getPathToSend());
+				HashTree tree = trees.get(item);
+				SyncJournal journal = new SyncJournal(checker, item);
+				backupItem(item, checker, tree, journal, queue, progress);
+				if(full && item.getAction().shouldPullMissing())
+				{
+					progress.setFile("Getting Missing");
+					if(!checker.getMissing(item))
+					{
+						// Counted as one failure, the backup method does not say how many
+						progress.transferFailed();
+					}
+					// Missing files were added, the tree no longer matches the item
+					trees.replace(item, tree, new HashTree(item.getFile()));
+				}
+
+				// Only a finished backup of the item is saved
+				try
+				{
+					journal.save();
+				}
+				catch(IOException e)
+				{
+					// Files are checked again next backup
+					e.printStackTrace();
+				}
+			}
+			progress.complete();
+			progress.setStatus("Finished");
+		}
+		catch(InterruptedException | SystemErrorException | RuntimeException e)
+		{
+			e.printStackTrace();
+			progress.fail(e);
+		}
+		finally
+		{
+			// Do not hold up the scan
+			queue.close();
+			progress.setItem("");
+			progress.setFile("");
+			if(checker instanceof BackupPreparer)
+			{
+				((BackupPreparer) checker).tearDown();
+			}
+
+			// Every transfer is done once torn down
+			int failed = progress.getFailedTransfers();
+			if(failed > 0 && null == progress.getFailure())
+			{
+				progress.fail(new IOException(failed + " transfers failed"));
+			}
+		}
+	}
+
+	/**
+	 * Backs up the scanned directories of the backup item as they are taken from
+	 * the queue, until the end of the item. Directories are always taken after
+	 * the directory they are in, so everything in a skipped directory is skipped.
+	 * @param head
+	 *     The backup item being backed up
+	 * @param backuper
+	 *     The backup method being used
+	 * @param tree
+	 *     The hash tree of the backup item
+	 * @param journal
+	 *     The journal of the backup item on the backup method
+	 * @param queue
+	 *     The queue of scanned directories for the backup method
+	 * @param progress
+	 *     The progress of the backup method
+	 * @throws InterruptedException
+	 * @throws SystemErrorException
+	 */
+	private void backupItem(BackupItem head, FileChecker backuper, HashTree tree, SyncJournal journal, BackupQueue queue, BackupProgress progress) throws InterruptedException, SystemErrorException
+	{
+		// Directories that are not backed up along with everything in them
+		HashSet<File> skipped = new HashSet<>();
+		for(BackupQueue.Event event = queue.take(); !event.isEnd(); event = queue.take())
+		{
+			File directory = event.getDirectory();
+			if(null == directory)
+			{
+				for(BackupWalker.Entry entry : event.getChildren())
+				{
+					backupFile(entry, head, backuper, tree, journal, progress);
+				}
+			}
+			else if(skipped.contains(directory.getParentFile()) || !backupDirectory(event, head, backuper, tree, journal, progress, skipped))
+			{
+				skipped.add(directory);
+			}
+		}
+	}
+
+	/**
+	 * Backs up a backup item that is a single file.
+	 * @param entry
+	 *     The scanned file
+	 * @param head
+	 *     The backup item being backed up
+	 * @param backuper
+	 *     The backup method being used
+	 * @param tree
+	 *     The hash tree of the backup item
+	 * @param journal
+	 *     The journal of the backup item on the backup method
+	 * @param progress
+	 *     The progress of the backup method
+	 * @throws InterruptedException
+	 * @throws SystemErrorException
+	 */
+	private void backupFile(BackupWalker.Entry entry, BackupItem head, FileChecker backuper, HashTree tree, SyncJournal journal, BackupProgress progress) throws InterruptedException, SystemErrorException
+	{
+		File file = entry.getFile();
+		BasicFileAttributes attributes = entry.getAttributes();
+		progress.setFile(file.getAbsolutePath());
+		System.out.println("Backing up " + file);
+		if(isUnchanged(file, attributes, head, journal))
+		{
+			return;
+		}
+
+		long[] peerDate = new long[1];
+		FileStatus status = backuper.getStatus(head, new File[] {file}, new BasicFileAttributes[] {attributes}, peerDate)[0];
+		if(FileStatus.SAME_VERSION == status)
+		{
+			journal.synced(head.getPathToSend(file), attributes, peerDate[0]);
+		}
+		handleStatus(file, status, head, backuper, tree, progress);
+		// TODO failed
+	}
+
+	/**
+	 * Backs up the files in the scanned directory. Subdirectories that are the
+	 * same at the backup location are added to the skipped directories.
+	 * @param event
+	 *     The scanned directory
+	 * @param head
+	 *     The backup item the directory is in
+	 * @param backuper
+	 *     The backup method being used
+	 * @param tree
+	 *     The hash tree of the backup item
+	 * @param journal
+	 *     The journal of the backup item on the backup method
+	 * @param progress
+	 *     The progress of the backup method
+	 * @param skipped
+	 *     The directories that are not backed up
+	 * @return True if the directory was backed up, false if it and everything in
+	 *     it is skipped
+	 * @throws InterruptedException
+	 * @throws SystemErrorException
+	 */
+	private boolean backupDirectory(BackupQueue.Event event, BackupItem head, FileChecker backuper, HashTree tree, SyncJournal journal, BackupProgress progress, HashSet<File> skipped)
+			throws InterruptedException, SystemErrorException
+	{
+		File file = event.getDirectory();
+		BackupWalker.Entry[] children = event.getChildren();
+		progress.setFile(file.getAbsolutePath());
+		System.out.println("Backing up " + file);
+
+		// Skip the directory if everything in it is the same at the backup location
+		HashTree.Level remote = backuper.getTreeLevel(head, file);
+		HashTree.Level local = null == remote ? null : tree.getLevel(file);
+		if(null != local && local.matches(remote))
+		{
+			return false;
+		}
+
+		// The directory was already created if nothing was added or removed since
+		String path = head.getPathToSend(file);
+		if(!journal.isListed(path, event.getStamp()))
+		{
+			boolean successful = backuper.createDirectory(head, file);
+			if(!successful)
+			{
+				// Return if the file could not be created on the backup
+				progress.transferFailed(head, file);
+				return false;
+			}
+
+			File[] listed = new File[children.length];
+			for(int i = 0; i < children.length; i++)
+			{
+				listed[i] = children[i].getFile();
+			}
+			journal.listed(path, event.getStamp(), listed);
+		}
+
+		// Request the status of all files in the directory at once
+		File[] check = new File[children.length];
+		BasicFileAttributes[] attributes = new BasicFileAttributes[children.length];
+		int numFiles = 0;
+		for(BackupWalker.Entry child : children)
+		{
+			File f = child.getFile();
+			BasicFileAttributes read = child.getAttributes();
+			if(null != local && local.matches(remote, f.getName()))
+			{
+				// Only go into directories that differ
+				skipped.add(f);
+			}
+			else if(read.isRegularFile() && !isUnchanged(f, read, head, journal))
+			{
+				check[numFiles] = f;
+				attributes[numFiles] = read;
+				numFiles++;
+			}
+		}
+		check = Arrays.copyOf(check, numFiles);
+
+		long[] peerDates = new long[numFiles];
+		FileStatus[] statuses = backuper.getStatus(head, check, attributes, peerDates);
+		for(int i = 0; i < check.length; i++)
+		{
+			progress.setFile(check[i].getAbsolutePath());
+			if(FileStatus.SAME_VERSION == statuses[i])
+			{
+				journal.synced(head.getPathToSend(check[i]), attributes[i], peerDates[i]);
+			}
+			handleStatus(check[i], statuses[i], head, backuper, tree, progress);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns whether the file can be skipped because it has not changed since it
+	 * was last the same on the backup method. Files that would be pulled if newer
+	 * on the backup method are always checked.
+	 * @param file
+	 *     The file being backed up
+	 * @param attributes
+	 *     The attributes of the file
+	 * @param head
+	 *     The backup item the file is in
+	 * @param journal
+	 *     The journal of the backup item on the backup method
+	 * @return True if the file does not need to be checked
+	 */
+	private boolean isUnchanged(File file, BasicFileAttributes attributes, BackupItem head, SyncJournal journal)
+	{
+		return !head.getAction().shouldPullMostRecent() && journal.isUnchanged(head.getPathToSend(file), attributes);
+	}
+
+	/**
+	 * Transfers the file to or from the backup location depending on the status of
+	 * the file at the backup location and the action for the backup item. The
+	 * transfer may finish after this returns, a failed transfer or a status that
+	 * could not be checked is kept in the progress.
+	 * @param file
+	 *     The file being backed up
+	 * @param status
+	 *     The status of the file at the backup location
+	 * @param head
+	 *     The backup item the file is in
+	 * @param backuper
+	 *     The backup method being used
+	 * @param tree
+	 *     The hash tree of the backup item, updated when the file is received
+	 * @param progress
+	 *     The progress of the backup method
+	 * @throws InterruptedException
+	 * @throws SystemErrorException
+	 */
+	private void handleStatus(File file, FileStatus status, BackupItem head, FileChecker backuper, HashTree tree, BackupProgress progress) throws InterruptedException, SystemErrorException
+	{
+		if(null == status)
+		{
+			// The status could not be checked, try again later
+			progress.transferFailed(head, file);
+		}
+		else if(FileStatus.NEW_VERSION == status)
+		{
+			if(head.getAction().shouldPullMostRecent())
+			{
+				// Receive most recent version if action requires pull, the tree is
+				// only read again once the file arrived
+				backuper.getUpdatedFileAsync(head, file).whenComplete((success, e)->
+				{
+					if(Boolean.TRUE.equals(success))
+					{
+						tree.update(file);
+					}
+					else
+					{
+						progress.transferFailed(head, file);
+					}
+				});
+			}
+		}
+		else if((FileStatus.OLD_VERSION == status && head.getAction().shouldPushMostRecent()) || (FileStatus.NOT_FOUND == status && head.getAction().shouldPushMissing()))
+		{
+			// Send most recent version if:
+			// host is out dated and action demands host has most recent
+			// host is missing file and action demands push of missing
+			backuper.sendUpdatedFileAsync(head, file).whenComplete((success, e)->
+			{
+				if(!Boolean.TRUE.equals(success))
+				{
+					progress.transferFailed(head, file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Updates the file containing the list of files and backup actions.
+	 */
+	public void saveItems()
+	{
+		File f = itemsList;
+		f.delete();
+		try
+		{
+			f.createNewFile();
+			PrintWriter out = new PrintWriter(f);
+			for(BackupItem item : files)
+			{
+				out.write(item.getAbsolutePath() + ":>");
+				out.write(item.getAction().toString() + ":>");
+				if(!item.getFile().getName().equals(item.getPathToSend()))
+				{
+					out.write(item.getPathToSend() + ":>");
+				}
+				out.write('\n');
+				out.flush();
+			}
+			out.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+}
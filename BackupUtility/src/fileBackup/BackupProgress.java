@@ -0,0 +1,232 @@
+package fileBackup;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fileUsage.BackupItem;
+
+/**
+ * The progress of one backup method during a backup. Every backup method runs
+ * on its own thread and only updates its own progress, the display reads them
+ * all.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupProgress
+{
+	/**
+	 * The backup method the progress is for
+	 */
+	private FileChecker checker;
+
+	/**
+	 * What the backup method is doing
+	 */
+	private volatile String status;
+
+	/**
+	 * The backup item being backed up
+	 */
+	private volatile String item;
+
+	/**
+	 * The file being backed up
+	 */
+	private volatile String file;
+
+	/**
+	 * The error that stopped the backup method, null if none
+	 */
+	private volatile Exception failure;
+
+	/**
+	 * The number of files that could not be transferred
+	 */
+	private AtomicInteger failedTransfers;
+
+	/**
+	 * The files that could not be backed up for each backup item
+	 */
+	private ConcurrentHashMap<BackupItem, ConcurrentLinkedQueue<File>> failedFiles;
+
+	/**
+	 * True once the backup method went through every backup item
+	 */
+	private volatile boolean complete;
+
+	/**
+	 * Creates the progress for the given backup method.
+	 * @param checker
+	 *     The backup method
+	 */
+	public BackupProgress(FileChecker checker)
+	{
+		this.checker = checker;
+		status = "Waiting...";
+		item = "";
+		file = "";
+		failedTransfers = new AtomicInteger();
+		failedFiles = new ConcurrentHashMap<>();
+		complete = false;
+	}
+
+	/**
+	 * Returns the backup method the progress is for.
+	 * @return The backup method
+	 */
+	public FileChecker getChecker()
+	{
+		return checker;
+	}
+
+	/**
+	 * Returns what the backup method is doing.
+	 * @return The status
+	 */
+	public String getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * Sets what the backup method is doing.
+	 * @param status
+	 *     The status
+	 */
+	public void setStatus(String status)
+	{
+		this.status = status;
+	}
+
+	/**
+	 * Returns the backup item being backed up.
+	 * @return The path of the item
+	 */
+	public String getItem()
+	{
+		return item;
+	}
+
+	/**
+	 * Sets the backup item being backed up.
+	 * @param item
+	 *     The path of the item
+	 */
+	public void setItem(String item)
+	{
+		this.item = item;
+	}
+
+	/**
+	 * Returns the file being backed up.
+	 * @return The path of the file
+	 */
+	public String getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Sets the file being backed up.
+	 * @param file
+	 *     The path of the file
+	 */
+	public void setFile(String file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Returns the error that stopped the backup method.
+	 * @return The error, null if it did not fail
+	 */
+	public Exception getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * Records the error that stopped the backup method.
+	 * @param failure
+	 *     The error
+	 */
+	public void fail(Exception failure)
+	{
+		this.failure = failure;
+		status = "Failed: " + (null == failure.getMessage() ? failure.getClass().getSimpleName() : failure.getMessage());
+	}
+
+	/**
+	 * Returns the number of files that could not be transferred.
+	 * @return The number of failed transfers
+	 */
+	public int getFailedTransfers()
+	{
+		return failedTransfers.get();
+	}
+
+	/**
+	 * Counts a file that could not be transferred. Transfers may finish on other
+	 * threads.
+	 */
+	public void transferFailed()
+	{
+		failedTransfers.incrementAndGet();
+	}
+
+	/**
+	 * Counts a file or directory that could not be backed up and keeps it so it
+	 * can be backed up again. Transfers may finish on other threads.
+	 * @param head
+	 *     The backup item the file is in
+	 * @param f
+	 *     The file or directory
+	 */
+	public void transferFailed(BackupItem head, File f)
+	{
+		failedTransfers.incrementAndGet();
+		failedFiles.computeIfAbsent(head, i->new ConcurrentLinkedQueue<>()).add(f);
+	}
+
+	/**
+	 * Returns the files and directories of the backup item that could not be
+	 * backed up.
+	 * @param head
+	 *     The backup item
+	 * @return The failed files, empty if none
+	 */
+	public Collection<File> getFailedFiles(BackupItem head)
+	{
+		Collection<File> failed = failedFiles.get(head);
+		return null == failed ? Collections.emptyList() : failed;
+	}
+
+	/**
+	 * Returns whether the backup method went through every backup item. Files
+	 * may still have failed.
+	 * @return True if the backup method was not stopped
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Records that the backup method went through every backup item.
+	 */
+	public void complete()
+	{
+		complete = true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return checker + " " + status;
+	}
+}
@@ -0,0 +1,169 @@
+package fileBackup;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of scanned directories waiting to be backed up by one backup
+ * method. The local files are scanned once and every directory is added to the
+ * queue of each backup method. When a queue is full the scan waits, so the scan
+ * never gets further ahead of the slowest backup method than the size of its
+ * queue. A backup method that stops closes its queue so the scan does not wait
+ * on it.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupQueue
+{
+	/**
+	 * Event added after the last directory of a backup item
+	 */
+	private static final Event END = new Event(null, null, new BackupWalker.Entry[0]);
+
+	/**
+	 * How long the scan waits for room before checking if the queue was closed
+	 */
+	private static final long WAIT_MILLIS = 100;
+
+	/**
+	 * The directories waiting to be backed up
+	 */
+	private ArrayBlockingQueue<Event> events;
+
+	/**
+	 * True once the backup method stopped taking directories
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a queue holding up to the given number of directories.
+	 * @param capacity
+	 *     The most directories held at once
+	 */
+	public BackupQueue(int capacity)
+	{
+		events = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		closed = false;
+	}
+
+	/**
+	 * Adds the scanned directory to the queue, waiting for room if the queue is
+	 * full. Nothing is added once the queue is closed.
+	 * @param event
+	 *     The scanned directory
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for room
+	 */
+	public void put(Event event) throws InterruptedException
+	{
+		while(!closed && !events.offer(event, WAIT_MILLIS, TimeUnit.MILLISECONDS))
+		{
+			// Wait until the backup method takes a directory or stops
+		}
+	}
+
+	/**
+	 * Marks the end of the current backup item.
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for room
+	 */
+	public void putEnd() throws InterruptedException
+	{
+		put(END);
+	}
+
+	/**
+	 * Takes the next scanned directory, waiting for one if the queue is empty.
+	 * @return The next directory
+	 * @throws InterruptedException
+	 *     If interrupted while waiting
+	 */
+	public Event take() throws InterruptedException
+	{
+		return events.take();
+	}
+
+	/**
+	 * Stops taking directories and drops any waiting.
+	 */
+	public void close()
+	{
+		closed = true;
+		events.clear();
+	}
+
+	/**
+	 * A directory read by the scan along with its children.
+	 */
+	public static class Event
+	{
+		/**
+		 * The directory, null if the backup item is a file
+		 */
+		private File directory;
+
+		/**
+		 * The stamp of the directory read before it was listed
+		 */
+		private long[] stamp;
+
+		/**
+		 * The children of the directory, or the file if the backup item is a file
+		 */
+		private BackupWalker.Entry[] children;
+
+		/**
+		 * Creates an event.
+		 * @param directory
+		 *     The directory, null if the backup item is a file
+		 * @param stamp
+		 *     The stamp of the directory read before it was listed
+		 * @param children
+		 *     The children of the directory, or the file of the backup item
+		 */
+		public Event(File directory, long[] stamp, BackupWalker.Entry[] children)
+		{
+			this.directory = directory;
+			this.stamp = stamp;
+			this.children = children;
+		}
+
+		/**
+		 * Returns whether this event marks the end of a backup item.
+		 * @return True if there are no more directories in the backup item
+		 */
+		public boolean isEnd()
+		{
+			return END == this;
+		}
+
+		/**
+		 * Returns the directory that was scanned.
+		 * @return The directory, null if the backup item is a file
+		 */
+		public File getDirectory()
+		{
+			return directory;
+		}
+
+		/**
+		 * Returns the stamp of the directory read before it was listed.
+		 * @return The stamp, null if not read
+		 */
+		public long[] getStamp()
+		{
+			return stamp;
+		}
+
+		/**
+		 * Returns the children of the directory.
+		 * @return The children, or the file if the backup item is a file
+		 */
+		public BackupWalker.Entry[] getChildren()
+		{
+			return children;
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package fileBackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import exceptions.SystemErrorException;
+
+/**
+ * Walks directory trees on a pool of threads. Every directory is handled as its
+ * own task so directories are read and checked in parallel, and tasks never
+ * wait on each other so the depth of a tree does not add to the depth of any
+ * thread's stack. Entries are read with one directory stream and their
+ * attributes are read once.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupWalker
+{
+	/**
+	 * True if files are hidden by an attribute instead of by their name
+	 */
+	private static final boolean DOS = "\\".equals(System.getProperty("file.separator"));
+
+	/**
+	 * The threads the directories are handled on
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * Handles the contents of a directory found by the walker.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * Handles the files in the given directory and returns the subdirectories to
+		 * walk into. Called from many threads at once.
+		 * @param directory
+		 *     The directory to handle
+		 * @return The subdirectories to walk into, null if none
+		 * @throws InterruptedException
+		 *     If the system was interrupted
+		 * @throws SystemErrorException
+		 *     If there was a critical error that cannot be recovered from
+		 */
+		File[] visit(File directory) throws InterruptedException, SystemErrorException;
+	}
+
+	/**
+	 * Creates a walker that handles up to the given number of directories at once.
+	 * @param parallelism
+	 *     The number of threads to use, the number of processors if less than 1
+	 */
+	public BackupWalker(int parallelism)
+	{
+		pool = new ForkJoinPool(parallelism < 1 ? Runtime.getRuntime().availableProcessors() : parallelism);
+	}
+
+	/**
+	 * Walks the tree starting at the given directory and returns once every
+	 * directory walked into was handled. After an error no more directories are
+	 * started.
+	 * @param root
+	 *     The directory to start at
+	 * @param visitor
+	 *     Handles every directory
+	 * @throws InterruptedException
+	 *     If a directory was interrupted
+	 * @throws SystemErrorException
+	 *     If a directory had a critical error
+	 */
+	public void walk(File root, Visitor visitor) throws InterruptedException, SystemErrorException
+	{
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		pool.invoke(new DirectoryTask(null, root, visitor, failure));
+
+		Exception failed = failure.get();
+		if(failed instanceof InterruptedException)
+		{
+			throw (InterruptedException) failed;
+		}
+		else if(failed instanceof SystemErrorException)
+		{
+			throw (SystemErrorException) failed;
+		}
+	}
+
+	/**
+	 * Stops the threads of the walker.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns the entries in the given directory, leaving out hidden files and
+	 * files that cannot be read.
+	 * @param directory
+	 *     The directory to list
+	 * @return The entries, null if the directory could not be listed
+	 */
+	public static Entry[] list(File directory)
+	{
+		Entry[] entries = new Entry[16];
+		int numEntries = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath()))
+		{
+			for(Path path : stream)
+			{
+				Entry entry = read(path);
+				if(null != entry)
+				{
+					if(numEntries == entries.length)
+					{
+						entries = Arrays.copyOf(entries, numEntries * 2);
+					}
+					entries[numEntries] = entry;
+					numEntries++;
+				}
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			return null;
+		}
+
+		return Arrays.copyOf(entries, numEntries);
+	}
+
+	/**
+	 * Returns the entries of the given files that were listed before, leaving out
+	 * hidden files and files that cannot be read.
+	 * @param files
+	 *     The files to read
+	 * @return The entries, null if no files were given
+	 */
+	public static Entry[] read(File[] files)
+	{
+		if(null == files)
+		{
+			return null;
+		}
+
+		Entry[] entries = new Entry[files.length];
+		int numEntries = 0;
+		for(File file : files)
+		{
+			Entry entry = read(file);
+			if(null != entry)
+			{
+				entries[numEntries] = entry;
+				numEntries++;
+			}
+		}
+
+		return Arrays.copyOf(entries, numEntries);
+	}
+
+	/**
+	 * Reads the entry of the given file.
+	 * @param file
+	 *     The file to read
+	 * @return The entry, null if the file is hidden or could not be read
+	 */
+	public static Entry read(File file)
+	{
+		return read(file.toPath());
+	}
+
+	/**
+	 * Reads the entry of the given file with one read of its attributes.
+	 * @param path
+	 *     The file to read
+	 * @return The entry, null if the file is hidden or could not be read
+	 */
+	private static Entry read(Path path)
+	{
+		try
+		{
+			BasicFileAttributes attributes;
+			if(DOS)
+			{
+				DosFileAttributes dos = Files.readAttributes(path, DosFileAttributes.class);
+				if(dos.isHidden())
+				{
+					return null;
+				}
+				attributes = dos;
+			}
+			else
+			{
+				Path name = path.getFileName();
+				if(null != name && name.toString().startsWith("."))
+				{
+					return null;
+				}
+				attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			}
+
+			return new Entry(path.toFile(), attributes);
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * A file found by the walker along with its attributes.
+	 */
+	public static class Entry
+	{
+		/**
+		 * The file
+		 */
+		private File file;
+
+		/**
+		 * The attributes of the file when it was read
+		 */
+		private BasicFileAttributes attributes;
+
+		/**
+		 * Creates an entry.
+		 * @param file
+		 *     The file
+		 * @param attributes
+		 *     The attributes of the file
+		 */
+		private Entry(File file, BasicFileAttributes attributes)
+		{
+			this.file = file;
+			this.attributes = attributes;
+		}
+
+		/**
+		 * Returns the file.
+		 * @return The file
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Returns the attributes of the file when it was read.
+		 * @return The attributes
+		 */
+		public BasicFileAttributes getAttributes()
+		{
+			return attributes;
+		}
+	}
+
+	/**
+	 * Handles one directory and starts a task for each subdirectory. The task
+	 * completes once all the tasks it started complete.
+	 */
+	private static class DirectoryTask extends CountedCompleter<Void>
+	{
+		/**
+		 * Generated ID
+		 */
+		private static final long serialVersionUID = 4817305226583191046L;
+
+		/**
+		 * The directory to handle
+		 */
+		private File directory;
+
+		/**
+		 * Handles the directory
+		 */
+		private Visitor visitor;
+
+		/**
+		 * The first error of the walk, shared by every task
+		 */
+		private AtomicReference<Exception> failure;
+
+		/**
+		 * Creates a task.
+		 * @param parent
+		 *     The task of the directory this one is in, null for the root
+		 * @param directory
+		 *     The directory to handle
+		 * @param visitor
+		 *     Handles the directory
+		 * @param failure
+		 *     The first error of the walk
+		 */
+		private DirectoryTask(DirectoryTask parent, File directory, Visitor visitor, AtomicReference<Exception> failure)
+		{
+			super(parent);
+			this.directory = directory;
+			this.visitor = visitor;
+			this.failure = failure;
+		}
+
+		@Override
+		public void compute()
+		{
+			if(null == failure.get())
+			{
+				try
+				{
+					File[] subdirectories = visitor.visit(directory);
+					if(null != subdirectories)
+					{
+						for(File subdirectory : subdirectories)
+						{
+							addToPendingCount(1);
+							new DirectoryTask(this, subdirectory, visitor, failure).fork();
+						}
+					}
+				}
+				catch(InterruptedException | SystemErrorException e)
+				{
+					failure.compareAndSet(null, e);
+				}
+				catch(RuntimeException e)
+				{
+					// Only this directory is lost
+					e.printStackTrace();
+				}
+			}
+
+			tryComplete();
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package fileBackup;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fileUsage.BackupItem;
+
+/**
+ * Watches the backup items for changes so only the files that changed need to
+ * be backed up. Every directory in a backup item is registered with the watch
+ * service, and new directories are registered as they are created. Changes
+ * that come in bursts are gathered into one batch that is only handed out once
+ * no change was seen for the delay. When changes were lost because too many
+ * came at once, the whole directory they were in is scanned again.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class BackupWatcher
+{
+	/**
+	 * The most times the delay a batch can keep growing before it is handed out
+	 */
+	private static final int MAX_DELAYS = 10;
+
+	/**
+	 * How long failed files wait for a change in milliseconds before they are
+	 * handed out on their own
+	 */
+	private static final long RETRY_DELAY = 60 * 1000;
+
+	/**
+	 * The service reporting changes
+	 */
+	private WatchService service;
+
+	/**
+	 * The directory of every registered key
+	 */
+	private HashMap<WatchKey, Path> keys;
+
+	/**
+	 * The backup items being watched
+	 */
+	private Iterable<BackupItem> items;
+
+	/**
+	 * How long no change has to be seen in milliseconds before a batch is handed
+	 * out
+	 */
+	private long delay;
+
+	/**
+	 * The files that failed for each backup item, handed out with the next batch
+	 */
+	private HashMap<BackupItem, HashSet<File>> retries;
+
+	/**
+	 * Starts watching every directory of the given backup items.
+	 * @param items
+	 *     The backup items to watch
+	 * @param delay
+	 *     How long no change has to be seen in milliseconds before a batch is
+	 *     handed out
+	 * @throws IOException
+	 *     If the watch service could not be created
+	 */
+	public BackupWatcher(Iterable<BackupItem> items, long delay) throws IOException
+	{
+		this.items = items;
+		this.delay = delay;
+		service = FileSystems.getDefault().newWatchService();
+		keys = new HashMap<>();
+		retries = new HashMap<>();
+		for(BackupItem item : items)
+		{
+			File file = item.getFile();
+			if(file.isDirectory())
+			{
+				register(file);
+			}
+			else if(null != file.getParentFile())
+			{
+				// Only changes to the file itself are used
+				registerDirectory(file.getParentFile().toPath());
+			}
+		}
+	}
+
+	/**
+	 * Waits for changes and returns them once no change was seen for the delay.
+	 * Each backup item that changed has the files that changed and the
+	 * directories that need to be scanned again. Deleted files are left out.
+	 * Files that failed are added to the batch, and are handed out on their own
+	 * if nothing changes for a while.
+	 * @return The files to back up for each backup item that changed, in the
+	 *     order the items were given
+	 * @throws InterruptedException
+	 *     If interrupted while waiting
+	 */
+	public LinkedHashMap<BackupItem, File[]> take() throws InterruptedException
+	{
+		HashMap<BackupItem, HashSet<File>> batch = new HashMap<>();
+		while(batch.isEmpty())
+		{
+			WatchKey key = retries.isEmpty() ? service.take() : service.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+			if(null == key)
+			{
+				break;
+			}
+			long deadline = System.currentTimeMillis() + delay * MAX_DELAYS;
+			while(null != key)
+			{
+				handle(key, batch);
+				// Keep gathering until the changes stop
+				long wait = Math.min(delay, deadline - System.currentTimeMillis());
+				key = wait > 0 ? service.poll(wait, TimeUnit.MILLISECONDS) : null;
+			}
+		}
+
+		for(Map.Entry<BackupItem, HashSet<File>> failed : retries.entrySet())
+		{
+			batch.computeIfAbsent(failed.getKey(), i->new HashSet<>()).addAll(failed.getValue());
+		}
+		retries.clear();
+
+		LinkedHashMap<BackupItem, File[]> changed = new LinkedHashMap<>();
+		for(BackupItem item : items)
+		{
+			HashSet<File> files = batch.get(item);
+			if(null != files)
+			{
+				changed.put(item, reduce(files));
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Keeps files of the backup item that failed so they are backed up again
+	 * with the next batch.
+	 * @param item
+	 *     The backup item the files are in
+	 * @param files
+	 *     The files and directories that failed
+	 */
+	public void retry(BackupItem item, Collection<File> files)
+	{
+		if(!files.isEmpty())
+		{
+			retries.computeIfAbsent(item, i->new HashSet<>()).addAll(files);
+		}
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	public void close()
+	{
+		try
+		{
+			service.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds the changes of the given key to the batch and registers any new
+	 * directories.
+	 * @param key
+	 *     The key with changes
+	 * @param batch
+	 *     The changed files for each backup item
+	 */
+	private void handle(WatchKey key, HashMap<BackupItem, HashSet<File>> batch)
+	{
+		Path directory = keys.get(key);
+		for(WatchEvent<?> event : key.pollEvents())
+		{
+			if(null == directory)
+			{
+				continue;
+			}
+
+			if(OVERFLOW == event.kind())
+			{
+				// Changes were lost, scan the whole directory again
+				add(directory.toFile(), batch);
+				continue;
+			}
+
+			if(ENTRY_DELETE == event.kind())
+			{
+				continue;
+			}
+
+			File file = directory.resolve((Path) event.context()).toFile();
+			BackupWalker.Entry entry = BackupWalker.read(file);
+			if(null == entry)
+			{
+				continue;
+			}
+
+			if(entry.getAttributes().isDirectory())
+			{
+				// Directories only report changes to their own children
+				if(ENTRY_CREATE == event.kind() && add(file, batch))
+				{
+					// Files added before it was registered are found by the scan
+					register(file);
+				}
+			}
+			else if(entry.getAttributes().isRegularFile())
+			{
+				add(file, batch);
+			}
+		}
+
+		if(!key.reset())
+		{
+			// Directory was deleted
+			keys.remove(key);
+		}
+	}
+
+	/**
+	 * Adds the file to the batch of every backup item it is in. A backup item
+	 * that is a file is added when the directory it is in needs to be scanned
+	 * again.
+	 * @param file
+	 *     The changed file
+	 * @param batch
+	 *     The changed files for each backup item
+	 * @return True if the file is in a backup item
+	 */
+	private boolean add(File file, HashMap<BackupItem, HashSet<File>> batch)
+	{
+		boolean found = false;
+		Path path = file.toPath();
+		for(BackupItem item : items)
+		{
+			Path root = item.getFile().toPath();
+			boolean directory = item.getFile().isDirectory();
+			if(directory && path.startsWith(root))
+			{
+				batch.computeIfAbsent(item, i->new HashSet<>()).add(file);
+				found = true;
+			}
+			else if(!directory && (path.equals(root) || path.equals(root.getParent())))
+			{
+				batch.computeIfAbsent(item, i->new HashSet<>()).add(item.getFile());
+				found = true;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Registers the directory and every directory in it. Directories are read
+	 * from a queue instead of recursively so deep trees cannot overflow the
+	 * stack.
+	 * @param directory
+	 *     The directory to register
+	 */
+	private void register(File directory)
+	{
+		ArrayDeque<File> waiting = new ArrayDeque<>();
+		waiting.add(directory);
+		while(!waiting.isEmpty())
+		{
+			File next = waiting.poll();
+			if(!registerDirectory(next.toPath()))
+			{
+				continue;
+			}
+
+			BackupWalker.Entry[] children = BackupWalker.list(next);
+			if(null != children)
+			{
+				for(BackupWalker.Entry child : children)
+				{
+					if(child.getAttributes().isDirectory())
+					{
+						waiting.add(child.getFile());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers a single directory with the watch service.
+	 * @param directory
+	 *     The directory to register
+	 * @return True if the directory is now watched
+	 */
+	private boolean registerDirectory(Path directory)
+	{
+		try
+		{
+			WatchKey key = directory.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			keys.put(key, directory);
+			return true;
+		}
+		catch(IOException e)
+		{
+			System.out.println("Cannot watch " + directory);
+			return false;
+		}
+	}
+
+	/**
+	 * Leaves out every file in a directory that is already in the batch, since
+	 * scanning the directory backs them up.
+	 * @param files
+	 *     The changed files of a backup item
+	 * @return The files to back up
+	 */
+	private static File[] reduce(HashSet<File> files)
+	{
+		LinkedList<File> kept = new LinkedList<>();
+		for(File file : files)
+		{
+			boolean covered = false;
+			for(File parent = file.getParentFile(); !covered && null != parent; parent = parent.getParentFile())
+			{
+				covered = files.contains(parent);
+			}
+
+			if(!covered)
+			{
+				kept.add(file);
+			}
+		}
+
+		return kept.toArray(new File[kept.size()]);
+	}
+}
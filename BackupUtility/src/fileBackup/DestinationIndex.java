@@ -0,0 +1,178 @@
+package fileBackup;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Index of the files of one backup item on a backup drive so status checks and
+ * missing file checks are answered from memory instead of reading the drive for
+ * every file. The backup item is read once with one directory listing for each
+ * directory, and files are read again only after they are copied or created.
+ * The index is only used by the thread backing up the backup item.
+ *
+ * @author JoelNeppel
+ *
+ */
+class DestinationIndex
+{
+	/**
+	 * The folder on the backup drive the keys are relative to
+	 */
+	private Path root;
+
+	/**
+	 * The entries in each listed directory by name, keyed by the path of the
+	 * directory relative to the folder
+	 */
+	private HashMap<String, HashMap<String, BackupWalker.Entry>> directories;
+
+	/**
+	 * Reads the given file or directory on the backup drive and everything in it.
+	 * Directories are read from a queue instead of recursively so deep trees
+	 * cannot overflow the stack.
+	 * @param root
+	 *     The folder on the backup drive the backup item is in
+	 * @param start
+	 *     The backup item on the backup drive
+	 */
+	DestinationIndex(File root, File start)
+	{
+		this.root = root.toPath().toAbsolutePath().normalize();
+		directories = new HashMap<>();
+
+		BackupWalker.Entry first = BackupWalker.read(start);
+		put(start, first);
+		if(null == first || !first.getAttributes().isDirectory())
+		{
+			// Backup item is a file or not backed up yet
+			return;
+		}
+
+		ArrayDeque<File> waiting = new ArrayDeque<>();
+		waiting.add(start);
+		while(!waiting.isEmpty())
+		{
+			for(BackupWalker.Entry child : listDirectory(waiting.poll()))
+			{
+				if(child.getAttributes().isDirectory())
+				{
+					waiting.add(child.getFile());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the entry of the given file. Files in a directory that was not
+	 * listed are read from the drive.
+	 * @param f
+	 *     The file on the backup drive
+	 * @return The entry or null if the file does not exist or is hidden
+	 */
+	BackupWalker.Entry get(File f)
+	{
+		HashMap<String, BackupWalker.Entry> listing = directories.get(getKey(f.getParentFile()));
+		return null == listing ? BackupWalker.read(f) : listing.get(f.getName());
+	}
+
+	/**
+	 * Returns the entries in the given directory.
+	 * @param directory
+	 *     The directory on the backup drive
+	 * @return The entries, null if the directory was not listed
+	 */
+	Collection<BackupWalker.Entry> list(File directory)
+	{
+		HashMap<String, BackupWalker.Entry> listing = directories.get(getKey(directory));
+		return null == listing ? null : listing.values();
+	}
+
+	/**
+	 * Reads the given file again after it was copied or created. A new directory
+	 * is listed so files copied into it are indexed.
+	 * @param f
+	 *     The file that changed on the backup drive
+	 */
+	void update(File f)
+	{
+		BackupWalker.Entry entry = BackupWalker.read(f);
+		put(f, entry);
+		if(null != entry && entry.getAttributes().isDirectory() && null == directories.get(getKey(f)))
+		{
+			listDirectory(f);
+		}
+	}
+
+	/**
+	 * Sets the entry of the file in the listing of its directory if the directory
+	 * was listed.
+	 * @param f
+	 *     The file
+	 * @param entry
+	 *     The entry of the file, null if it does not exist
+	 */
+	private void put(File f, BackupWalker.Entry entry)
+	{
+		String parent = getKey(f.getParentFile());
+		HashMap<String, BackupWalker.Entry> listing = directories.get(parent);
+		if(null == listing)
+		{
+			if(null == entry)
+			{
+				return;
+			}
+			listing = new HashMap<>();
+			directories.put(parent, listing);
+		}
+
+		if(null == entry)
+		{
+			listing.remove(f.getName());
+		}
+		else
+		{
+			listing.put(f.getName(), entry);
+		}
+	}
+
+	/**
+	 * Lists the given directory and adds its entries to the index.
+	 * @param directory
+	 *     The directory to list
+	 * @return The entries in the directory, empty if it could not be listed
+	 */
+	private Collection<BackupWalker.Entry> listDirectory(File directory)
+	{
+		BackupWalker.Entry[] children = BackupWalker.list(directory);
+		if(null == children)
+		{
+			// Left out so its files are read from the drive
+			return Collections.emptyList();
+		}
+
+		HashMap<String, BackupWalker.Entry> listing = new HashMap<>();
+		for(BackupWalker.Entry child : children)
+		{
+			listing.put(child.getFile().getName(), child);
+		}
+		directories.put(getKey(directory), listing);
+		return listing.values();
+	}
+
+	/**
+	 * Returns the path of the file relative to the folder used as the key of its
+	 * directory.
+	 * @param f
+	 *     The file
+	 * @return The key
+	 */
+	private String getKey(File f)
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		return path.startsWith(root) ? root.relativize(path).toString() : path.toString();
+	}
+}
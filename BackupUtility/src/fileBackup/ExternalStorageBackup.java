@@ -1,14 +1,18 @@
 package fileBackup;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 
+import communications.HashCache;
 import exceptions.SystemErrorException;
 import fileUsage.BackupItem;
+import fileUsage.DateResolution;
 import fileUsage.FileStatus;
 
 /**
@@ -27,6 +31,17 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 	 */
 	private String folderPath;
 
+	/**
+	 * The index of the backup drive for each backup item checked since the last
+	 * ready check
+	 */
+	private HashMap<BackupItem, DestinationIndex> indexes = new HashMap<>();
+
+	/**
+	 * The most a date last modified can move when copied to the backup drive
+	 */
+	private volatile long dateTolerance = DateResolution.MAX_TOLERANCE;
+
 	@Override
 	public void initilize(LinkedList<String> got)
 	{
@@ -39,7 +54,21 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 	public boolean checkSystemReady()
 	{
 		System.out.println("Check ready " + toString());
-		return new File(folderPath).isDirectory();
+		// Read the backup drive again for every backup
+		synchronized(indexes)
+		{
+			indexes.clear();
+		}
+
+		File folder = new File(folderPath);
+		if(!folder.isDirectory())
+		{
+			return false;
+		}
+
+		// A different drive may have been plugged in since the last backup
+		dateTolerance = DateResolution.probe(folder);
+		return true;
 	}
 
 	@Override
@@ -47,28 +76,68 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 	{
 		File dir = new File(folderPath + head.getPathToSend(directory));
 		System.out.println("Create directory " + dir + " using " + toString());
-		return dir.exists() || dir.mkdir();
+		DestinationIndex index = getIndex(head);
+		if(null != index.get(dir))
+		{
+			return true;
+		}
+
+		boolean created = dir.mkdir();
+		index.update(dir);
+		return created || dir.isDirectory();
 	}
 
 	@Override
 	public FileStatus getStatus(BackupItem head, File check) throws InterruptedException, SystemErrorException
 	{
-		System.out.println("Status of " + check + toString());
-		File other = new File(folderPath + head.getPathToSend(check));
-		if(other.exists())
+		return getStatus(head, check, HashCache.readAttributes(check));
+	}
+
+	@Override
+	public FileStatus getStatus(BackupItem head, File check, BasicFileAttributes attributes) throws InterruptedException, SystemErrorException
+	{
+		return compare(getIndex(head).get(new File(folderPath + head.getPathToSend(check))), check, attributes);
+	}
+
+	@Override
+	public FileStatus[] getStatus(BackupItem head, File[] check, BasicFileAttributes[] attributes, long[] peerDates) throws InterruptedException, SystemErrorException
+	{
+		DestinationIndex index = getIndex(head);
+		FileStatus[] statuses = new FileStatus[check.length];
+		for(int i = 0; i < check.length; i++)
 		{
-			if(other.lastModified() > check.lastModified())
+			BackupWalker.Entry other = index.get(new File(folderPath + head.getPathToSend(check[i])));
+			if(null != other)
 			{
-				return FileStatus.NEW_VERSION;
-			}
-			else if(other.lastModified() < check.lastModified())
-			{
-				return FileStatus.OLD_VERSION;
-			}
-			else
-			{
-				return FileStatus.SAME_VERSION;
+				peerDates[i] = other.getAttributes().lastModifiedTime().toMillis();
 			}
+			statuses[i] = compare(other, check[i], attributes[i]);
+		}
+
+		return statuses;
+	}
+
+	/**
+	 * Compares the local file to the one on the backup drive.
+	 * @param other
+	 *     The indexed file on the backup drive, null if there is none
+	 * @param check
+	 *     The local file
+	 * @param attributes
+	 *     The attributes of the local file, null if not known
+	 * @return The status of the file on the backup drive compared to the local
+	 *     file
+	 */
+	private FileStatus compare(BackupWalker.Entry other, File check, BasicFileAttributes attributes)
+	{
+		System.out.println("Status of " + check + toString());
+		if(null != other)
+		{
+			BasicFileAttributes otherAttributes = other.getAttributes();
+			long fileDate = null == attributes ? 0 : attributes.lastModifiedTime().toMillis();
+			long fileSize = null == attributes ? -1 : attributes.size();
+			FileStatus status = DateResolution.compare(otherAttributes.lastModifiedTime().toMillis(), otherAttributes.size(), fileDate, fileSize, dateTolerance);
+			return compareHashes(status, other.getFile(), otherAttributes, check, attributes);
 		}
 		else
 		{
@@ -76,6 +145,47 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 		}
 	}
 
+	/**
+	 * Compares the contents of the files when the hashes of both are cached, so
+	 * files with different dates but the same contents are not copied again and
+	 * files with close dates but different contents are sent again.
+	 * @param status
+	 *     The status found from the dates and sizes
+	 * @param other
+	 *     The file on the backup drive
+	 * @param attributes
+	 *     The attributes of the file on the backup drive
+	 * @param check
+	 *     The local file
+	 * @param checkAttributes
+	 *     The attributes of the local file, null if not known
+	 * @return The status from the contents, or the given status if either hash is
+	 *     not known
+	 */
+	private static FileStatus compareHashes(FileStatus status, File other, BasicFileAttributes attributes, File check, BasicFileAttributes checkAttributes)
+	{
+		byte[] otherHash = HashCache.get(other, attributes);
+		byte[] hash = null == otherHash ? null : HashCache.get(check, checkAttributes);
+		if(null == hash)
+		{
+			return status;
+		}
+
+		if(Arrays.equals(otherHash, hash))
+		{
+			return FileStatus.SAME_VERSION;
+		}
+		else if(FileStatus.SAME_VERSION != status)
+		{
+			return status;
+		}
+		else
+		{
+			// Dates are too close to tell which is newer, the same as a size mismatch
+			return FileStatus.OLD_VERSION;
+		}
+	}
+
 	@Override
 	public boolean getUpdatedFile(BackupItem head, File receive) throws InterruptedException, SystemErrorException
 	{
@@ -87,7 +197,31 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 	public boolean sendUpdatedFile(BackupItem head, File send) throws InterruptedException, SystemErrorException
 	{
 		System.out.println("Send " + send + " using " + toString());
-		return copy(send, new File(folderPath + head.getPathToSend(send)));
+		File copyTo = new File(folderPath + head.getPathToSend(send));
+		boolean success = copy(send, copyTo);
+		getIndex(head).update(copyTo);
+		return success;
+	}
+
+	/**
+	 * Returns the index of the backup drive for the given backup item, reading the
+	 * backup item on the drive the first time it is needed.
+	 * @param head
+	 *     The backup item
+	 * @return The index of the backup item on the backup drive
+	 */
+	private DestinationIndex getIndex(BackupItem head)
+	{
+		synchronized(indexes)
+		{
+			DestinationIndex index = indexes.get(head);
+			if(null == index)
+			{
+				index = new DestinationIndex(new File(folderPath), new File(folderPath + head.getPathToSend()));
+				indexes.put(head, index);
+			}
+			return index;
+		}
 	}
 
 	/**
@@ -97,94 +231,122 @@ public class ExternalStorageBackup extends FileChecker implements BackupInitiliz
 	 * @param original
 	 *     The original file to copy
 	 * @param copyTo
-	 *     The file that will be deleted and copied to
+	 *     The file that will be replaced by the copy
 	 * @return True if the copy was successful, false otherwise
+	 * @throws InterruptedException
+	 *     If interrupted while copying
 	 */
-	private boolean copy(File original, File copyTo)
+	private boolean copy(File original, File copyTo) throws InterruptedException
 	{
-		copyTo.delete();
-		FileInputStream in = null;
-		FileOutputStream out = null;
-		boolean success = false;
 		try
 		{
-			in = new FileInputStream(original);
-			out = new FileOutputStream(copyTo);
-			long bytesLeft = original.length();
-			// Array of arbitrarily large size
-			byte[] data = new byte[Integer.MAX_VALUE / 2];
-			while(bytesLeft > 0)
-			{
-				int read = in.read(data);
-				out.write(data, 0, read);
-				bytesLeft -= read;
-			}
-			copyTo.setLastModified(original.lastModified());
-			success = true;
+			FileCopier.copy(original, copyTo);
+			return true;
 		}
-		catch(Exception e)
+		catch(IOException e)
 		{
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			return false;
 		}
-		finally
-		{
-			try
-			{
-				if(null != in)
-				{
-					in.close();
-				}
-				if(null != out)
-				{
-					out.close();
-				}
-			}
-			catch(IOException e)
-			{
-			}
-		}
-
-		return success;
 	}
 
 	@Override
 	public boolean getMissing(BackupItem check) throws InterruptedException, SystemErrorException
 	{
 		System.out.println("Missing " + check + toString());
-		missingRecursive(check, new File(folderPath + check.getPathToSend()));
-		return false;
+		SyncJournal journal = new SyncJournal(this, check, "missing");
+		DestinationIndex index = getIndex(check);
+		File onBackup = new File(folderPath + check.getPathToSend());
+		BackupWalker.Entry entry = index.get(onBackup);
+		boolean allPresent = null == entry || missingRecursive(check, index, check.getPathToSend(), entry, journal);
+		try
+		{
+			journal.save();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return allPresent;
 	}
 
 	/**
-	 * Checks for missing files recursively.
+	 * Checks for missing files recursively. Directories that were not changed on
+	 * either side since they were last checked only have their subdirectories
+	 * checked. The backup drive is only read through the index.
 	 * @param head
 	 *     The head backup item used to convert between
+	 * @param index
+	 *     The index of the backup item on the backup drive
+	 * @param path
+	 *     The path of the file on the backup drive relative to the folder
 	 * @param onBackup
 	 *     The file on the backup drive being check if it is missing
+	 * @param journal
+	 *     The journal keeping the directories last checked
+	 * @return True if the file and everything in it is not missing anymore or is
+	 *     skipped, false if any of it could not be brought back
+	 * @throws InterruptedException
+	 *     If interrupted while copying
 	 */
-	private void missingRecursive(BackupItem head, File onBackup)
+	private boolean missingRecursive(BackupItem head, DestinationIndex index, String path, BackupWalker.Entry onBackup, SyncJournal journal) throws InterruptedException
 	{
-		File check = new File(head.getFullPath(onBackup.getAbsolutePath().replace(folderPath, "")));
-		if(!onBackup.isHidden() && !check.exists())
+		File check = new File(head.getFullPath(path));
+		boolean directory = onBackup.getAttributes().isDirectory();
+		Collection<BackupWalker.Entry> listing = directory ? index.list(onBackup.getFile()) : null;
+		boolean present = true;
+		if(!check.exists())
 		{
-			if(onBackup.isDirectory() && null != onBackup.list())
+			if(directory && null != listing)
+			{
+				present = check.mkdir();
+			}
+			else if(onBackup.getAttributes().isRegularFile())
 			{
-				check.mkdir();
+				present = copy(onBackup.getFile(), check);
 			}
-			else if(onBackup.isFile())
+		}
+
+		if(!directory || null == listing)
+		{
+			return present;
+		}
+
+		File[] children = journal.getChildren(path, onBackup.getFile(), check);
+		if(null != children)
+		{
+			// Nothing was added or removed on either side, only the subdirectories can differ
+			for(File f : children)
 			{
-				copy(onBackup, check);
+				BackupWalker.Entry entry = index.get(f);
+				if(null != entry)
+				{
+					present &= missingRecursive(head, index, path + File.separator + f.getName(), entry, journal);
+				}
 			}
+			return present;
 		}
 
-		if(onBackup.isDirectory())
+		boolean complete = true;
+		int numDirectories = 0;
+		File[] directories = new File[listing.size()];
+		for(BackupWalker.Entry entry : listing)
 		{
-			for(File f : onBackup.listFiles())
+			complete &= missingRecursive(head, index, path + File.separator + entry.getFile().getName(), entry, journal);
+			if(entry.getAttributes().isDirectory())
 			{
-				missingRecursive(head, f);
+				directories[numDirectories] = entry.getFile();
+				numDirectories++;
 			}
 		}
+
+		// Read after the copies so they do not count as changes next time
+		if(complete)
+		{
+			journal.listed(path, onBackup.getFile(), check, Arrays.copyOf(directories, numDirectories));
+		}
+
+		return present && complete;
 	}
 
 	@Override
@@ -2,16 +2,8 @@ package fileBackup;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
-
-import exceptions.SystemErrorException;
+
 import fileUsage.BackupItem;
-import fileUsage.FileStatus;
 import javafx.application.Application;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
@@ -42,7 +34,6 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Callback;
 import lists.SinglyLinkedList;
-import networkBackup.NetworkBackup;
 
 /**
  * @author JoelNeppel
@@ -51,9 +42,9 @@ import networkBackup.NetworkBackup;
 public class FileBackup extends Application
 {
 	/**
-	 * List of backup methods that will be used
+	 * Runs the backups, the window only observes it
 	 */
-	private static SinglyLinkedList<FileChecker> backups;
+	private static BackupEngine engine;
 
 	/**
 	 * Contains list of files to backup and handles relative path modifications
@@ -70,14 +61,6 @@ public class FileBackup extends Application
 
 	private static Text overallStatus;
 
-	private static String curItemInfo;
-
-	private static String curBackupMethodInfo;
-
-	private static String curFileInfo;
-
-	private static String curStatus;
-
 	private static boolean runStatusUpdates;
 
 	/**
@@ -91,148 +74,46 @@ public class FileBackup extends Application
 			System.exit(0);
 		}).start();
 
-		backups = getBackups(new File("BackupsList.txt"));
-		System.out.println(backups);
-		files = getBackupItems(new File("BackupItemsList.txt"));
+		engine = new BackupEngine(new File("BackupsList.txt"), new File("BackupItemsList.txt"), new File("BackupSettings.txt"));
+		System.out.println(engine.getBackups());
+		// Changes made in the window go to the list used by the engine
+		files = FXCollections.observableList(engine.getItems());
 		System.out.println(files);
 		backupThread = null;
 		// TODO read backup methods to use from file
-	}
-
-	private static SinglyLinkedList<FileChecker> getBackups(File read)
-	{
-		SinglyLinkedList<FileChecker> list = new SinglyLinkedList<>();
-
-		// Map for potential FileCheckers, any future addition will need to be added
-		// here
-		HashMap<String, Class<? extends FileChecker>> map = new HashMap<>();
-		map.put(NetworkBackup.class.getSimpleName(), NetworkBackup.class);
-		map.put(ExternalStorageBackup.class.getSimpleName(), ExternalStorageBackup.class);
 
-		Scanner fileScan;
-		try
+		engine.addObserver(new BackupEngine.Observer()
 		{
-			fileScan = new Scanner(read);
-		}
-		catch(FileNotFoundException e)
-		{
-			return list;
-		}
-
-		while(fileScan.hasNextLine())
-		{
-			Scanner lineScan = new Scanner(fileScan.nextLine());
-			lineScan.useDelimiter(":>");
-			Class<? extends FileChecker> got = map.get(lineScan.next().trim());
-			if(null != got)
-			{
-				try
-				{
-					FileChecker toAdd = got.newInstance();
-					if(toAdd instanceof BackupInitilizer)
-					{
-						LinkedList<String> settings = new LinkedList<>();
-						while(lineScan.hasNext())
-						{
-							settings.add(lineScan.next().trim());
-						}
-
-						((BackupInitilizer) toAdd).initilize(settings);
-					}
-					list.add(toAdd);
-				}
-				catch(InstantiationException e)
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				catch(IllegalAccessException e)
-				{
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
-			else
+			@Override
+			public void backupStarted(BackupEngine engine)
 			{
-				System.out.println("Unknown backup method");
+				// Begin displaying status
+				runStatusUpdates = true;
+				beginStatusUpdates();
 			}
-			lineScan.close();
-		}
-
-		if(null != fileScan)
-		{
-			fileScan.close();
-		}
-
-		return list;
-	}
 
-	private static ObservableList<BackupItem> getBackupItems(File read)
-	{
-		ObservableList<BackupItem> list = FXCollections.observableArrayList();
-
-		if(read.exists() && read.canRead())
-		{
-			Scanner scan = null;
-			try
+			@Override
+			public void backupFinished(BackupEngine engine)
 			{
-				scan = new Scanner(read);
-				scan.useDelimiter(":>");
-
-				while(scan.hasNextLine())
+				// Clear status updates
+				runStatusUpdates = false;
+				// Ensure text display is empty
+				if(null != overallStatus)
 				{
-					Scanner lineScan = null;
-					try
-					{
-						lineScan = new Scanner(scan.nextLine());
-						lineScan.useDelimiter(":>");
-
-						String path = lineScan.next().trim();
-						BackupItem.BackupAction action = BackupItem.BackupAction.getFromString(lineScan.next().trim());
-
-						if(lineScan.hasNext())
-						{
-							// Backup item has custom location on backup location
-							String newPath = lineScan.next().trim();
-							list.add(new BackupItem(path, action, newPath));
-						}
-						else
-						{
-							list.add(new BackupItem(path, action));
-						}
-					}
-					catch(FileNotFoundException e)
-					{
-						System.out.println(e.getMessage());
-					}
-					catch(NoSuchElementException e)
-					{
-						System.out.println("Backup item list not in expected format.");
-					}
-					finally
-					{
-						if(null != lineScan)
-						{
-							lineScan.close();
-						}
-					}
+					backupMethodInfo.setText("");
+					fileInfo.setText("");
+					itemInfo.setText("");
+					overallStatus.setText("Finished");
 				}
 			}
-			catch(FileNotFoundException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			finally
-			{
-				if(null != scan)
-				{
-					scan.close();
-				}
-			}
-		}
+		});
 
-		return list;
+		if(args.length > 0 && "watch".equals(args[0]))
+		{
+			// Keep backing up changes, the backup button does nothing while watching
+			backupThread = new Thread(()->engine.watch());
+			backupThread.start();
+		}
 	}
 
 	private static void backup()
@@ -243,172 +124,23 @@ public class FileBackup extends Application
 			return;
 		}
 
-		// Make sure status is empty
-		curItemInfo = "";
-		curBackupMethodInfo = "";
-		curFileInfo = "";
-		curStatus = "";
-
-		// Begin displaying status
-		runStatusUpdates = true;
-		beginStatusUpdates();
-
 		backupThread = new Thread(()->
 		{
 			System.out.println("Beginning backup");
 			try
 			{
-				// Set up any backup that needs it and check if they are ready. If not ready, it
-				// it will be removed
-				curStatus = "Getting Ready...";
-				for(FileChecker checker : backups)
-				{
-					if(checker instanceof BackupPreparer)
-					{
-						((BackupPreparer) checker).setUp();
-						// TODO report removal
-					}
-
-					boolean ready = checker.checkSystemReady();
-					if(!ready)
-					{
-						System.out.println("Removed " + checker);
-						backups.remove(checker);
-					}
-				}
-
-				// TODO
-				curStatus = "Backing up files...";
-				for(FileChecker checker : backups)
-				{
-					curBackupMethodInfo = checker.toString();
-					for(BackupItem item : files)
-					{
-						curItemInfo = item.getPathToSend();
-						try
-						{
-							backupFile(item.getFile(), item, checker);
-							if(item.getAction().shouldPullMissing())
-							{
-								curFileInfo = "Getting Missing";
-								checker.getMissing(item);
-							}
-						}
-						catch(SystemErrorException e)
-						{
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					}
-				}
-			}
-			catch(InterruptedException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				engine.backup();
 			}
 			finally
 			{
-				curStatus = "Cleaning up...";
-				for(FileChecker checker : backups)
-				{
-					if(checker instanceof BackupPreparer)
-					{
-						((BackupPreparer) checker).tearDown();
-					}
-				}
-
 				backupThread = null;
 			}
-
 			System.out.println("Finished Backup");
-
-			// Clear status updates
-			curBackupMethodInfo = "";
-			curFileInfo = "";
-			curItemInfo = "";
-			curStatus = "";
-			runStatusUpdates = false;
-			// Ensure text display is empty
-			backupMethodInfo.setText("");
-			fileInfo.setText("");
-			itemInfo.setText("");
-			overallStatus.setText("Finished");
 		});
 
 		backupThread.start();
 	}
 
-	private static void backupFile(File file, BackupItem head, FileChecker backuper) throws InterruptedException, SystemErrorException
-	{
-		curFileInfo = file.getAbsolutePath();
-		System.out.println("Backing up " + file);
-		// Do not backup hidden files or abnormal files
-		if(file.isHidden() || (!file.isFile() && !file.isDirectory()))
-		{
-			return;
-		}
-
-		if(file.isDirectory())
-		{
-			if(null == file.list())
-			{
-				// Do not backup any unusual directories
-				return;
-			}
-
-			boolean successful = backuper.createDirectory(head, file);
-			if(!successful)
-			{
-				// Return if the file could not be created on the backup
-				// TODO report fail
-				return;
-			}
-
-			for(File f : file.listFiles())
-			{
-				backupFile(f, head, backuper);
-			}
-		}
-		else
-		{
-			FileStatus status = backuper.getStatus(head, file);
-			if(FileStatus.NEW_VERSION == status)
-			{
-				if(head.getAction().shouldPullMostRecent())
-				{
-					boolean success;
-					try
-					{
-						// Receive most recent version if action requires pull
-						success = backuper.getUpdatedFile(head, file);
-					}
-					catch(Exception e)
-					{
-						success = false;
-					}
-
-					if(!success)
-					{
-
-					}
-					else
-					{
-
-					}
-				}
-			}
-			else if((FileStatus.OLD_VERSION == status && head.getAction().shouldPushMostRecent()) || (FileStatus.NOT_FOUND == status && head.getAction().shouldPushMissing()))
-			{
-				// Send most recent version if:
-				// host is out dated and action demands host has most recent
-				// host is missing file and action demands push of missing
-				backuper.sendUpdatedFile(head, file);
-			}
-		}
-		// TODO failed
-	}
-
 	/*
 	 * Graphic methods below here
 	 */
@@ -498,7 +230,7 @@ public class FileBackup extends Application
 			if(table.getSelectionModel().getSelectedItem() != null)
 			{
 				files.remove(table.getSelectionModel().getSelectedItem());
-				updateFile();
+				engine.saveItems();
 			}
 		});
 
@@ -520,9 +252,9 @@ public class FileBackup extends Application
 
 		// VBox for all backup options
 		VBox box = new VBox();
-		for(FileChecker backup : backups)
+		for(FileChecker backup : engine.getBackups())
 		{
-			GridPane add = backup.getGrid();
+			GridPane add = getGrid(backup);
 			box.getChildren().add(add);
 			VBox.setVgrow(add, Priority.ALWAYS);
 		}
@@ -676,7 +408,7 @@ public class FileBackup extends Application
 						// Replace item at given index with the new one with set properties
 						files.set(index, new BackupItem(path.getText().trim(), select.getSelectionModel().getSelectedItem()));
 					}
-					updateFile();
+					engine.saveItems();
 				}
 				catch(FileNotFoundException e)
 				{
@@ -720,32 +452,17 @@ public class FileBackup extends Application
 	}
 
 	/**
-	 * Updates the file containing the list of files and backup actions.
+	 * Returns the section of the window for the given backup method.
+	 * @param backup
+	 *     The backup method
+	 * @return The section showing the backup method
 	 */
-	private static void updateFile()
+	private static GridPane getGrid(FileChecker backup)
 	{
-		File f = new File("BackupItemsList.txt");
-		f.delete();
-		try
-		{
-			f.createNewFile();
-			PrintWriter out = new PrintWriter(f);
-			for(BackupItem item : files)
-			{
-				out.write(item.getAbsolutePath() + ":>");
-				out.write(item.getAction().toString() + ":>");
-				if(!item.getFile().getName().equals(item.getPathToSend()))
-				{
-					out.write(item.getPathToSend() + ":>");
-				}
-				out.write('\n');
-				out.flush();
-			}
-			out.close();
-		}
-		catch(IOException e)
-		{
-		}
+		GridPane grid = new GridPane();
+		grid.setAlignment(Pos.CENTER);
+		grid.add(new Text(backup.getName()), 0, 0);
+		return grid;
 	}
 
 	private static void beginStatusUpdates()
@@ -754,10 +471,28 @@ public class FileBackup extends Application
 		{
 			while(runStatusUpdates)
 			{
-				itemInfo.setText(curItemInfo);
-				backupMethodInfo.setText(curBackupMethodInfo);
-				fileInfo.setText(curFileInfo);
-				overallStatus.setText(curStatus);
+				// One line for each backup method
+				StringBuilder items = new StringBuilder();
+				StringBuilder methods = new StringBuilder();
+				StringBuilder statusFiles = new StringBuilder();
+				SinglyLinkedList<BackupProgress> running = engine.getProgress();
+				if(null != running)
+				{
+					for(BackupProgress got : running)
+					{
+						items.append(got.getItem()).append('\n');
+						methods.append(got).append('\n');
+						statusFiles.append(got.getFile()).append('\n');
+					}
+				}
+				// Nothing to update until the window is showing
+				if(null != overallStatus)
+				{
+					itemInfo.setText(items.toString());
+					backupMethodInfo.setText(methods.toString());
+					fileInfo.setText(statusFiles.toString());
+					overallStatus.setText(engine.getStatus());
+				}
 				try
 				{
 					// Only update 20 times every second
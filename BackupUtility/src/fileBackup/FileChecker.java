@@ -1,15 +1,13 @@
 package fileBackup;
 
 import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
 
 import exceptions.SystemErrorException;
 import fileUsage.BackupItem;
 import fileUsage.FileStatus;
-import javafx.geometry.Pos;
-import javafx.scene.Node;
-import javafx.scene.layout.GridPane;
-import javafx.scene.layout.HBox;
-import javafx.scene.text.Text;
+import fileUsage.HashTree;
 
 /**
  * Interface for different backup methods that compares and transfers files from
@@ -25,8 +23,6 @@ public abstract class FileChecker
 	 */
 	private String name;
 
-	private GridPane grid;
-
 	protected FileChecker()
 	{
 		name = this.getClass().getSimpleName();
@@ -56,6 +52,86 @@ public abstract class FileChecker
 	 */
 	public abstract FileStatus getStatus(BackupItem head, File check) throws InterruptedException, SystemErrorException;
 
+	/**
+	 * Compares the given file to the one at the backup location using the
+	 * attributes of the file that were already read, so the file is not read
+	 * again by every backup method. Backup methods that compare the date or size
+	 * should override this.
+	 * @param head
+	 *     The head file or directory that can be used to obtain the relative path
+	 *     for the backup location
+	 * @param check
+	 *     The file to check the status of
+	 * @param attributes
+	 *     The attributes of the file read by the scan
+	 * @return The comparison of the file at the backup location compared to the
+	 *     given one
+	 * @throws InterruptedException
+	 *     If the system was interrupted
+	 * @throws SystemErrorException
+	 *     If there was a critical error that cannot be recovered from
+	 */
+	public FileStatus getStatus(BackupItem head, File check, BasicFileAttributes attributes) throws InterruptedException, SystemErrorException
+	{
+		return getStatus(head, check);
+	}
+
+	/**
+	 * Compares all the given files to the ones at the backup location using the
+	 * attributes of the files that were already read and returns the comparisons
+	 * in the same order. Backup methods where each status check is expensive
+	 * should override this to check all the files at once, and backup methods
+	 * that know the date of their version of each file should report it.
+	 * @param head
+	 *     The head file or directory that can be used to obtain the relative path
+	 *     for the backup location
+	 * @param check
+	 *     The files to check the status of
+	 * @param attributes
+	 *     The attributes of each file read by the scan
+	 * @param peerDates
+	 *     Filled with the date each file at the backup location was last
+	 *     modified, left 0 if not known
+	 * @return The comparison of each file at the backup location compared to the
+	 *     given ones
+	 * @throws InterruptedException
+	 *     If the system was interrupted
+	 * @throws SystemErrorException
+	 *     If there was a critical error that cannot be recovered from
+	 */
+	public FileStatus[] getStatus(BackupItem head, File[] check, BasicFileAttributes[] attributes, long[] peerDates) throws InterruptedException, SystemErrorException
+	{
+		FileStatus[] statuses = new FileStatus[check.length];
+		for(int i = 0; i < check.length; i++)
+		{
+			statuses[i] = getStatus(head, check[i], attributes[i]);
+		}
+
+		return statuses;
+	}
+
+	/**
+	 * Returns the hash of the given directory at the backup location along with
+	 * the hashes of its children so only the parts that differ need to be
+	 * checked. Backup methods that keep a hash tree of the backup location should
+	 * override this.
+	 * @param head
+	 *     The head file or directory that can be used to obtain the relative path
+	 *     for the backup location
+	 * @param directory
+	 *     The directory to get the hashes of
+	 * @return The hashes of the directory at the backup location, null if not
+	 *     known and every file needs to be checked
+	 * @throws InterruptedException
+	 *     If the system was interrupted
+	 * @throws SystemErrorException
+	 *     If there was a critical error that cannot be recovered from
+	 */
+	public HashTree.Level getTreeLevel(BackupItem head, File directory) throws InterruptedException, SystemErrorException
+	{
+		return null;
+	}
+
 	/**
 	 * Creates the given directory on the backup location
 	 * @param head
@@ -103,6 +179,49 @@ public abstract class FileChecker
 	 */
 	public abstract boolean sendUpdatedFile(BackupItem head, File send) throws InterruptedException, SystemErrorException;
 
+	/**
+	 * Gets the file from the backup location and copies it to the given file,
+	 * completing the returned result once the file was copied. Backup methods
+	 * that can make many transfers at once should override this to return before
+	 * the transfer is made.
+	 * @param head
+	 *     The head file or directory that can be used to obtain the relative path
+	 *     for the backup location
+	 * @param receive
+	 *     The file to copy to
+	 * @return The result of the transfer, true if the file was successfully
+	 *     transfered
+	 * @throws InterruptedException
+	 *     If the system was interrupted
+	 * @throws SystemErrorException
+	 *     If there was a critical error that cannot be recovered from
+	 */
+	public CompletableFuture<Boolean> getUpdatedFileAsync(BackupItem head, File receive) throws InterruptedException, SystemErrorException
+	{
+		return CompletableFuture.completedFuture(getUpdatedFile(head, receive));
+	}
+
+	/**
+	 * Transfers the given file to the backup location to be overwritten,
+	 * completing the returned result once the file was sent. Backup methods that
+	 * can make many transfers at once should override this to return before the
+	 * transfer is made.
+	 * @param head
+	 *     The head file or directory that can be used to obtain the relative path
+	 *     for the backup location
+	 * @param send
+	 *     The file to send
+	 * @return The result of the transfer, true if the file was successfully sent
+	 * @throws InterruptedException
+	 *     If the system was interrupted
+	 * @throws SystemErrorException
+	 *     If there was a critical error that cannot be recovered from
+	 */
+	public CompletableFuture<Boolean> sendUpdatedFileAsync(BackupItem head, File send) throws InterruptedException, SystemErrorException
+	{
+		return CompletableFuture.completedFuture(sendUpdatedFile(head, send));
+	}
+
 	/**
 	 * Compares the contents of the given BackupItem to the contents at the backup
 	 * location. Transfers any missing files from the backup location to the
@@ -117,27 +236,12 @@ public abstract class FileChecker
 	 */
 	public abstract boolean getMissing(BackupItem check) throws InterruptedException, SystemErrorException;
 
-	public final GridPane getGrid()
-	{
-		if(null == grid)
-		{
-			grid = new GridPane();
-			grid.setAlignment(Pos.CENTER);
-			HBox buttons = new HBox();
-			Node toAdd = getCustomSection(buttons);
-			if(null != toAdd)
-			{
-				grid.add(toAdd, 0, 1);
-			}
-
-			grid.add(new Text(name), 0, 0);
-		}
-
-		return grid;
-	}
-
-	protected Node getCustomSection(HBox buttons)
+	/**
+	 * Returns the display name for the backup method.
+	 * @return The name
+	 */
+	public String getName()
 	{
-		return null;
+		return name;
 	}
-}
\ No newline at end of file
+}
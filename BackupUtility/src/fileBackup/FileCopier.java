@@ -0,0 +1,368 @@
+package fileBackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import communications.BufferPool;
+import communications.HashCache;
+import communications.TransferCheckpoint;
+
+/**
+ * Copies files between local drives, picking how to copy by the size of the
+ * file. Files that fit in one pooled buffer are copied in a single buffered
+ * pass. Larger files are handed to the operating system with transferTo when
+ * both files are on the same drive, otherwise one thread reads while the
+ * calling thread writes so both drives are kept busy. Every copy is written to
+ * a hidden temporary file next to the target and renamed over the target once
+ * complete, so a failed copy never leaves a partial file behind. Copies that
+ * read the file keep its hash in the hash cache for both files.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class FileCopier
+{
+	/**
+	 * The largest file copied in a single buffered pass
+	 */
+	private static final long SMALL_FILE_SIZE = BufferPool.MAX_BUFFER_SIZE;
+
+	/**
+	 * The number of buffers passed between the reading and writing threads
+	 */
+	private static final int BUFFERS = 2;
+
+	/**
+	 * Buffer given to the writing thread once there is nothing more to read
+	 */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	/**
+	 * Don't construct static
+	 */
+	private FileCopier()
+	{
+	}
+
+	/**
+	 * Copies the contents of the original file to the copyTo file and sets the date
+	 * last modified to the time the original was last modified. The copyTo file is
+	 * only replaced once the whole copy was written.
+	 * @param original
+	 *     The original file to copy
+	 * @param copyTo
+	 *     The file that will be replaced by the copy
+	 * @throws IOException
+	 *     If the copy could not be read, written or renamed
+	 * @throws InterruptedException
+	 *     If interrupted while copying
+	 */
+	public static void copy(File original, File copyTo) throws IOException, InterruptedException
+	{
+		Path target = copyTo.getAbsoluteFile().toPath();
+		Path temp = null;
+		FileChannel created = null;
+		while(null == created)
+		{
+			// Created the same as any new file so the copy gets the usual permissions
+			temp = target.resolveSibling("." + copyTo.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+			try
+			{
+				created = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+			}
+			catch(FileAlreadyExistsException e)
+			{
+				// Try another name
+			}
+		}
+		BasicFileAttributes before = HashCache.isOpen() ? HashCache.readAttributes(original) : null;
+		MessageDigest digest = null;
+		boolean success = false;
+		try
+		{
+			try(FileChannel out = created; FileChannel in = FileChannel.open(original.toPath(), StandardOpenOption.READ))
+			{
+				long size = in.size();
+				if(size <= SMALL_FILE_SIZE)
+				{
+					digest = createDigest(before);
+					copyBuffered(in, out, size, digest);
+				}
+				else if(isSameDrive(original.toPath(), temp))
+				{
+					// Never read by this program so there is nothing to hash
+					copyTransfer(in, out, size);
+				}
+				else
+				{
+					digest = createDigest(before);
+					copyDoubleBuffered(in, out, size, digest);
+				}
+			}
+
+			temp.toFile().setLastModified(original.lastModified());
+			move(temp, target);
+			success = true;
+			if(null != digest)
+			{
+				byte[] hash = digest.digest();
+				HashCache.put(original, before, hash);
+				HashCache.put(copyTo, HashCache.readAttributes(copyTo), hash);
+			}
+		}
+		finally
+		{
+			if(!success)
+			{
+				Files.deleteIfExists(temp);
+			}
+		}
+	}
+
+	/**
+	 * Copies the file through a single pooled buffer.
+	 * @param in
+	 *     The file to read
+	 * @param out
+	 *     The file to write
+	 * @param size
+	 *     The size of the file being read
+	 * @param digest
+	 *     The digest to add the contents to, null to not hash
+	 * @throws IOException
+	 *     If the file could not be read or written or got shorter
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	private static void copyBuffered(FileChannel in, FileChannel out, long size, MessageDigest digest) throws IOException, InterruptedException
+	{
+		ByteBuffer data = BufferPool.acquire(size);
+		try
+		{
+			long bytesLeft = size;
+			while(bytesLeft > 0)
+			{
+				data.clear();
+				int read = in.read(data);
+				if(-1 == read)
+				{
+					throw new IOException("File got shorter while copying.");
+				}
+				data.flip();
+				update(digest, data);
+				while(data.hasRemaining())
+				{
+					out.write(data);
+				}
+				bytesLeft -= read;
+			}
+		}
+		finally
+		{
+			BufferPool.release(data);
+		}
+	}
+
+	/**
+	 * Copies the file without reading it into memory, letting the operating system
+	 * move the bytes.
+	 * @param in
+	 *     The file to read
+	 * @param out
+	 *     The file to write
+	 * @param size
+	 *     The size of the file being read
+	 * @throws IOException
+	 *     If the file could not be read or written or got shorter
+	 */
+	private static void copyTransfer(FileChannel in, FileChannel out, long size) throws IOException
+	{
+		long position = 0;
+		while(position < size)
+		{
+			long sent = in.transferTo(position, size - position, out);
+			if(sent <= 0)
+			{
+				throw new IOException("File got shorter while copying.");
+			}
+			position += sent;
+		}
+	}
+
+	/**
+	 * Copies the file with a separate thread reading into one buffer while this
+	 * thread writes out the other.
+	 * @param in
+	 *     The file to read
+	 * @param out
+	 *     The file to write
+	 * @param size
+	 *     The size of the file being read
+	 * @param digest
+	 *     The digest to add the contents to, null to not hash
+	 * @throws IOException
+	 *     If the file could not be read or written
+	 * @throws InterruptedException
+	 *     If interrupted while copying
+	 */
+	private static void copyDoubleBuffered(FileChannel in, FileChannel out, long size, MessageDigest digest) throws IOException, InterruptedException
+	{
+		ArrayBlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(BUFFERS);
+		ArrayBlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+		ByteBuffer[] buffers = new ByteBuffer[BUFFERS];
+		AtomicReference<IOException> failure = new AtomicReference<>();
+		Thread reader = null;
+		try
+		{
+			// Taken together so two copies never wait on each other holding one each
+			buffers = BufferPool.acquire(BUFFERS, size);
+			for(ByteBuffer buffer : buffers)
+			{
+				empty.add(buffer);
+			}
+
+			reader = new Thread(()->
+			{
+				try
+				{
+					while(true)
+					{
+						ByteBuffer data = empty.take();
+						data.clear();
+						if(-1 == in.read(data))
+						{
+							break;
+						}
+						data.flip();
+						filled.put(data);
+					}
+				}
+				catch(IOException e)
+				{
+					failure.set(e);
+				}
+				catch(InterruptedException e)
+				{
+					// Writing stopped
+				}
+				finally
+				{
+					filled.add(END);
+				}
+			}, "Copy reader");
+			reader.setDaemon(true);
+			reader.start();
+
+			ByteBuffer data = filled.take();
+			while(END != data)
+			{
+				update(digest, data);
+				while(data.hasRemaining())
+				{
+					out.write(data);
+				}
+				empty.put(data);
+				data = filled.take();
+			}
+
+			if(null != failure.get())
+			{
+				throw failure.get();
+			}
+		}
+		finally
+		{
+			if(null != reader)
+			{
+				// Buffers can only be released once the reader is done with them
+				reader.interrupt();
+				reader.join();
+			}
+			for(ByteBuffer buffer : buffers)
+			{
+				BufferPool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Creates the digest for hashing the file if the hash cache is used.
+	 * @param before
+	 *     The attributes of the file read before copying, null if not hashing
+	 * @return The digest, null if not hashing
+	 */
+	private static MessageDigest createDigest(BasicFileAttributes before)
+	{
+		return null == before ? null : TransferCheckpoint.createDigest();
+	}
+
+	/**
+	 * Adds the data about to be written to the digest without moving the buffer.
+	 * @param digest
+	 *     The digest, null if not hashing
+	 * @param data
+	 *     The data read from the file
+	 */
+	private static void update(MessageDigest digest, ByteBuffer data)
+	{
+		if(null != digest)
+		{
+			digest.update(data.duplicate());
+		}
+	}
+
+	/**
+	 * Returns whether both files are on the same drive.
+	 * @param first
+	 *     The first file
+	 * @param second
+	 *     The second file
+	 * @return True if both are on the same drive, false if not or unknown
+	 */
+	private static boolean isSameDrive(Path first, Path second)
+	{
+		try
+		{
+			return Files.getFileStore(first).equals(Files.getFileStore(second));
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Renames the finished copy over the target, atomically when the drive
+	 * supports it.
+	 * @param temp
+	 *     The finished copy
+	 * @param target
+	 *     The file being replaced
+	 * @throws IOException
+	 *     If the copy could not be renamed
+	 */
+	private static void move(Path temp, Path target) throws IOException
+	{
+		try
+		{
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
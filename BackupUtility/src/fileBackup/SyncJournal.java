@@ -0,0 +1,756 @@
+package fileBackup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32;
+
+import fileUsage.BackupItem;
+
+/**
+ * The files of a backup item that were the same on a backup method the last
+ * time they were checked. Every entry has the size, date last modified and file
+ * key of the local file along with the date of the version on the backup
+ * method. A file whose attributes still match its entry has not changed
+ * locally since, so it only needs to be checked again if the version on the
+ * backup method could be newer.
+ *
+ * The journal is saved once a backup of the item finishes by writing a new
+ * journal to a temp file and moving it over the old one, so a backup that is
+ * interrupted keeps the journal of the last finished backup. Entries are saved
+ * sorted by path with the part of the path shared with the previous entry left
+ * out and numbers in as few bytes as needed so millions of entries stay small.
+ * A journal may be used by many threads at once.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class SyncJournal
+{
+	/**
+	 * The first bytes of every journal file
+	 */
+	private static final int MAGIC = 0x534A4E32;
+
+	/**
+	 * The least time in milliseconds since a directory changed for its listing to
+	 * be kept, so a change made in the same tick as the listing is never missed
+	 */
+	private static final long SETTLE_TIME = 2000;
+
+	/**
+	 * The folder journals are saved in
+	 */
+	static final String FOLDER = "SyncState";
+
+	/**
+	 * The file the journal is saved in
+	 */
+	private File file;
+
+	/**
+	 * The entries by path sent to the backup method
+	 */
+	private HashMap<String, Entry> entries;
+
+	/**
+	 * The listings of directories by path sent to the backup method
+	 */
+	private HashMap<String, Listing> listings;
+
+	/**
+	 * True if the entries changed since the journal was loaded
+	 */
+	private boolean changed;
+
+	/**
+	 * Loads the journal of the given backup item on the given backup method. A
+	 * journal that is missing or damaged is treated as empty so every file is
+	 * checked.
+	 * @param backup
+	 *     The backup method
+	 * @param item
+	 *     The backup item
+	 */
+	public SyncJournal(FileChecker backup, BackupItem item)
+	{
+		this(backup, item, "");
+	}
+
+	/**
+	 * Loads a journal of the given backup item on the given backup method that is
+	 * kept separate from the one used to back up the item.
+	 * @param backup
+	 *     The backup method
+	 * @param item
+	 *     The backup item
+	 * @param use
+	 *     The name of what the journal is used for
+	 */
+	public SyncJournal(FileChecker backup, BackupItem item, String use)
+	{
+		this(backup.toString() + "\n" + item.getAbsolutePath() + "\n" + item.getPathToSend() + "\n" + use);
+	}
+
+	/**
+	 * Loads a journal of the given backup item that is shared by every backup
+	 * method.
+	 * @param item
+	 *     The backup item
+	 * @param use
+	 *     The name of what the journal is used for
+	 */
+	public SyncJournal(BackupItem item, String use)
+	{
+		this(item.getAbsolutePath() + "\n" + item.getPathToSend() + "\n" + use);
+	}
+
+	/**
+	 * Loads the journal with the given identity.
+	 * @param id
+	 *     The identity of the journal the file name is made from
+	 */
+	private SyncJournal(String id)
+	{
+		file = new File(FOLDER, UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8)) + ".journal");
+		entries = new HashMap<>();
+		listings = new HashMap<>();
+		changed = false;
+		try
+		{
+			load();
+		}
+		catch(IOException e)
+		{
+			entries.clear();
+			listings.clear();
+		}
+	}
+
+	/**
+	 * Returns whether the local file is the same as when it was last the same on
+	 * the backup method.
+	 * @param path
+	 *     The path of the file sent to the backup method
+	 * @param attributes
+	 *     The current attributes of the local file, null if not known
+	 * @return True if the file has not changed since it was last the same
+	 */
+	public synchronized boolean isUnchanged(String path, BasicFileAttributes attributes)
+	{
+		Entry entry = entries.get(path);
+		if(null == entry || null == attributes)
+		{
+			return false;
+		}
+
+		if(entry.fileSize == attributes.size() && entry.fileDate == attributes.lastModifiedTime().toMillis() && entry.fileKey == getFileKey(attributes))
+		{
+			return true;
+		}
+
+		// File changed, it is added again once it is the same on the backup method
+		entries.remove(path);
+		changed = true;
+		return false;
+	}
+
+	/**
+	 * Records that the local file is the same as the version on the backup
+	 * method.
+	 * @param path
+	 *     The path of the file sent to the backup method
+	 * @param attributes
+	 *     The attributes of the local file, null if not known
+	 * @param peerDate
+	 *     The date the version on the backup method was last modified as
+	 *     reported by the backup method, 0 if not known
+	 */
+	public synchronized void synced(String path, BasicFileAttributes attributes, long peerDate)
+	{
+		if(null == attributes)
+		{
+			return;
+		}
+
+		entries.put(path, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), getFileKey(attributes), peerDate));
+		changed = true;
+	}
+
+	/**
+	 * Returns the children of the directory as they were when last listed if
+	 * nothing was added, removed or renamed in the directory or in the given
+	 * other directory since. A directory's date last modified and number of links
+	 * change whenever that happens.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param directory
+	 *     The directory
+	 * @param peer
+	 *     The other directory that also has to be unchanged, null if none
+	 * @return The children kept with the listing or null if the directory needs to
+	 *     be listed again
+	 */
+	public File[] getChildren(String path, File directory, File peer)
+	{
+		return getChildren(path, directory, readStamp(directory, peer));
+	}
+
+	/**
+	 * Returns the children the directory had when it was listed with the given
+	 * stamp.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param directory
+	 *     The directory
+	 * @param stamp
+	 *     The stamp of the directory from readStamp, null if not known
+	 * @return The children kept with the listing or null if the directory needs to
+	 *     be listed again
+	 */
+	public File[] getChildren(String path, File directory, long[] stamp)
+	{
+		Listing listing = getListing(path, stamp);
+		if(null == listing)
+		{
+			return null;
+		}
+
+		File[] children = new File[listing.names.length];
+		for(int i = 0; i < children.length; i++)
+		{
+			children[i] = new File(directory, listing.names[i]);
+		}
+
+		return children;
+	}
+
+	/**
+	 * Returns whether the directory was listed with the given stamp, meaning
+	 * nothing in it was added, removed or renamed since.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param stamp
+	 *     The stamp of the directory from readStamp, null if not known
+	 * @return True if the directory is unchanged since it was listed
+	 */
+	public boolean isListed(String path, long[] stamp)
+	{
+		return null != getListing(path, stamp);
+	}
+
+	/**
+	 * Returns the listing of the directory if it was listed with the given stamp.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param stamp
+	 *     The current stamp of the directory
+	 * @return The listing, null if there is none or the directory changed
+	 */
+	private Listing getListing(String path, long[] stamp)
+	{
+		Listing listing;
+		synchronized(this)
+		{
+			listing = listings.get(path);
+		}
+		if(null == listing || !Arrays.equals(listing.stamp, stamp))
+		{
+			return null;
+		}
+
+		return listing;
+	}
+
+	/**
+	 * Records the children of the directory to be used in place of listing it
+	 * until it changes. Directories changed moments ago are not kept.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param directory
+	 *     The directory that was listed
+	 * @param peer
+	 *     The other directory that also has to be unchanged, null if none
+	 * @param children
+	 *     The children to keep with the listing
+	 */
+	public void listed(String path, File directory, File peer, File[] children)
+	{
+		listed(path, readStamp(directory, peer), children);
+	}
+
+	/**
+	 * Records the children of the directory along with the stamp it had before
+	 * it was listed. Directories changed moments ago are not kept.
+	 * @param path
+	 *     The path of the directory sent to the backup method
+	 * @param stamp
+	 *     The stamp of the directory from readStamp, null if not known
+	 * @param children
+	 *     The children to keep with the listing
+	 */
+	public void listed(String path, long[] stamp, File[] children)
+	{
+		boolean settled = null != stamp;
+		long now = System.currentTimeMillis();
+		for(int i = 0; settled && i < stamp.length; i += 2)
+		{
+			settled = now - stamp[i] >= SETTLE_TIME;
+		}
+
+		if(!settled)
+		{
+			synchronized(this)
+			{
+				if(null != listings.remove(path))
+				{
+					changed = true;
+				}
+			}
+			return;
+		}
+
+		String[] names = new String[children.length];
+		for(int i = 0; i < names.length; i++)
+		{
+			names[i] = children[i].getName();
+		}
+		synchronized(this)
+		{
+			listings.put(path, new Listing(stamp, names));
+			changed = true;
+		}
+	}
+
+	/**
+	 * Reads the date last modified and number of links of the directory, which
+	 * change whenever anything in it is added, removed or renamed.
+	 * @param directory
+	 *     The directory
+	 * @return The stamp of the directory, null if it could not be read
+	 */
+	public static long[] readStamp(File directory)
+	{
+		return readStamp(directory, null);
+	}
+
+	/**
+	 * Reads the date last modified and number of links of the directory and the
+	 * other directory.
+	 * @param directory
+	 *     The directory
+	 * @param peer
+	 *     The other directory, null if none
+	 * @return The dates and links or null if they could not be read
+	 */
+	private static long[] readStamp(File directory, File peer)
+	{
+		long[] stamp = new long[null == peer ? 2 : 4];
+		if(!readStamp(directory, stamp, 0) || (null != peer && !readStamp(peer, stamp, 2)))
+		{
+			return null;
+		}
+
+		return stamp;
+	}
+
+	/**
+	 * Reads the date last modified and number of links of the directory into the
+	 * stamp. The number of links is -1 where the system does not have them.
+	 * @param directory
+	 *     The directory
+	 * @param stamp
+	 *     The stamp to read into
+	 * @param index
+	 *     Where in the stamp to put the date, the links go after it
+	 * @return True if the directory was read, false otherwise
+	 */
+	private static boolean readStamp(File directory, long[] stamp, int index)
+	{
+		try
+		{
+			// Read both in one call where the system has links
+			Map<String, Object> attributes = Files.readAttributes(directory.toPath(), "unix:lastModifiedTime,nlink");
+			stamp[index] = ((FileTime) attributes.get("lastModifiedTime")).toMillis();
+			stamp[index + 1] = ((Number) attributes.get("nlink")).longValue();
+			return true;
+		}
+		catch(UnsupportedOperationException | IllegalArgumentException e)
+		{
+			// Use only the date
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+
+		try
+		{
+			stamp[index] = Files.getLastModifiedTime(directory.toPath()).toMillis();
+			stamp[index + 1] = -1;
+			return true;
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the journal if it changed. Only called once a backup of the item
+	 * finished.
+	 * @throws IOException
+	 *     If the journal could not be saved
+	 */
+	public synchronized void save() throws IOException
+	{
+		if(!changed)
+		{
+			return;
+		}
+
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".temp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		CRC32 crc = new CRC32();
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(entries.size());
+			byte[] previous = new byte[0];
+			for(Map.Entry<String, Entry> got : new TreeMap<>(entries).entrySet())
+			{
+				previous = writePath(out, got.getKey(), previous);
+				Entry entry = got.getValue();
+				writeNumber(out, entry.fileSize);
+				writeNumber(out, entry.fileDate);
+				writeNumber(out, entry.fileKey);
+				// Usually the same as the local date
+				writeNumber(out, entry.peerDate - entry.fileDate);
+			}
+
+			out.writeInt(listings.size());
+			previous = new byte[0];
+			for(Map.Entry<String, Listing> got : new TreeMap<>(listings).entrySet())
+			{
+				previous = writePath(out, got.getKey(), previous);
+				Listing listing = got.getValue();
+				writeNumber(out, listing.stamp.length);
+				for(long number : listing.stamp)
+				{
+					writeNumber(out, number);
+				}
+				writeNumber(out, listing.names.length);
+				for(String name : listing.names)
+				{
+					byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+					writeNumber(out, encoded.length);
+					out.write(encoded);
+				}
+			}
+			out.flush();
+			new DataOutputStream(fileOut).writeInt((int) crc.getValue());
+			fileOut.getFD().sync();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+	}
+
+	/**
+	 * Reads the journal from its file.
+	 * @throws IOException
+	 *     If the journal is damaged
+	 */
+	private void load() throws IOException
+	{
+		if(!file.isFile())
+		{
+			return;
+		}
+
+		// The checksum at the end covers everything before it
+		byte[] data = Files.readAllBytes(file.toPath());
+		if(data.length < 4 * Integer.BYTES)
+		{
+			throw new IOException("Journal " + file + " is not valid.");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length - Integer.BYTES);
+		if((int) crc.getValue() != ByteBuffer.wrap(data, data.length - Integer.BYTES, Integer.BYTES).getInt())
+		{
+			throw new IOException("Journal " + file + " is damaged.");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - Integer.BYTES));
+		if(MAGIC != in.readInt())
+		{
+			throw new IOException("Journal " + file + " is not valid.");
+		}
+
+		int count = in.readInt();
+		PathReader paths = new PathReader();
+		for(int i = 0; i < count; i++)
+		{
+			String path = paths.read(in);
+			long fileSize = readNumber(in);
+			long fileDate = readNumber(in);
+			long fileKey = readNumber(in);
+			long peerDate = fileDate + readNumber(in);
+			entries.put(path, new Entry(fileSize, fileDate, fileKey, peerDate));
+		}
+
+		count = in.readInt();
+		paths = new PathReader();
+		for(int i = 0; i < count; i++)
+		{
+			String path = paths.read(in);
+			long[] stamp = new long[readLength(in, 4)];
+			for(int j = 0; j < stamp.length; j++)
+			{
+				stamp[j] = readNumber(in);
+			}
+			String[] names = new String[readLength(in, Integer.MAX_VALUE)];
+			for(int j = 0; j < names.length; j++)
+			{
+				byte[] name = new byte[readLength(in, 64 * 1024)];
+				in.readFully(name);
+				names[j] = new String(name, StandardCharsets.UTF_8);
+			}
+			listings.put(path, new Listing(stamp, names));
+		}
+	}
+
+	/**
+	 * Writes the path leaving out the part shared with the previous path.
+	 * @param out
+	 *     The stream to write to
+	 * @param path
+	 *     The path to write
+	 * @param previous
+	 *     The previous path written
+	 * @return The encoded path to pass as the previous path for the next one
+	 * @throws IOException
+	 */
+	private static byte[] writePath(DataOutputStream out, String path, byte[] previous) throws IOException
+	{
+		byte[] encoded = path.getBytes(StandardCharsets.UTF_8);
+		int shared = 0;
+		while(shared < encoded.length && shared < previous.length && encoded[shared] == previous[shared])
+		{
+			shared++;
+		}
+		writeNumber(out, shared);
+		writeNumber(out, encoded.length - shared);
+		out.write(encoded, shared, encoded.length - shared);
+		return encoded;
+	}
+
+	/**
+	 * Reads a length written by writeNumber.
+	 * @param in
+	 *     The stream to read from
+	 * @param max
+	 *     The largest length allowed
+	 * @return The length
+	 * @throws IOException
+	 *     If the length is not valid
+	 */
+	private static int readLength(DataInputStream in, int max) throws IOException
+	{
+		long length = readNumber(in);
+		if(length < 0 || length > max || length > in.available())
+		{
+			throw new IOException("Journal length is not valid.");
+		}
+
+		return (int) length;
+	}
+
+	/**
+	 * Returns a number for the identity of the file on its drive, such as the
+	 * inode, so a file replaced by another with the same size and date is found.
+	 * @param attributes
+	 *     The attributes of the file
+	 * @return The number for the file key, 0 if the system has no file keys
+	 */
+	private static long getFileKey(BasicFileAttributes attributes)
+	{
+		return Objects.hashCode(attributes.fileKey());
+	}
+
+	/**
+	 * Writes a number using 7 bits in each byte, with small positive or negative
+	 * numbers taking the fewest bytes.
+	 * @param out
+	 *     The stream to write to
+	 * @param number
+	 *     The number to write
+	 * @throws IOException
+	 */
+	private static void writeNumber(DataOutputStream out, long number) throws IOException
+	{
+		long bits = (number << 1) ^ (number >> 63);
+		while((bits & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((bits & 0x7F) | 0x80));
+			bits >>>= 7;
+		}
+		out.writeByte((int) bits);
+	}
+
+	/**
+	 * Reads a number written by writeNumber.
+	 * @param in
+	 *     The stream to read from
+	 * @return The number
+	 * @throws IOException
+	 */
+	private static long readNumber(DataInputStream in) throws IOException
+	{
+		long bits = 0;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			int got = in.readUnsignedByte();
+			bits |= (long) (got & 0x7F) << shift;
+			if(0 == (got & 0x80))
+			{
+				return (bits >>> 1) ^ -(bits & 1);
+			}
+		}
+		throw new IOException("Journal number is not valid.");
+	}
+
+	/**
+	 * The attributes of a local file when it was last the same on the backup
+	 * method.
+	 */
+	private static class Entry
+	{
+		/**
+		 * The size of the local file
+		 */
+		private long fileSize;
+
+		/**
+		 * The date the local file was last modified
+		 */
+		private long fileDate;
+
+		/**
+		 * The file key of the local file
+		 */
+		private long fileKey;
+
+		/**
+		 * The date the version on the backup method was last modified
+		 */
+		private long peerDate;
+
+		/**
+		 * Creates an entry.
+		 * @param fileSize
+		 *     The size of the local file
+		 * @param fileDate
+		 *     The date the local file was last modified
+		 * @param fileKey
+		 *     The file key of the local file
+		 * @param peerDate
+		 *     The date the version on the backup method was last modified
+		 */
+		private Entry(long fileSize, long fileDate, long fileKey, long peerDate)
+		{
+			this.fileSize = fileSize;
+			this.fileDate = fileDate;
+			this.fileKey = fileKey;
+			this.peerDate = peerDate;
+		}
+	}
+
+	/**
+	 * Reads paths written by writePath, keeping the previous path to add the
+	 * rest of the next one to.
+	 */
+	private static class PathReader
+	{
+		/**
+		 * The bytes of the previous path
+		 */
+		private byte[] path = new byte[256];
+
+		/**
+		 * The length of the previous path
+		 */
+		private int pathLength = 0;
+
+		/**
+		 * Reads the next path.
+		 * @param in
+		 *     The stream to read from
+		 * @return The path
+		 * @throws IOException
+		 *     If the path is not valid
+		 */
+		private String read(DataInputStream in) throws IOException
+		{
+			int shared = readLength(in, pathLength);
+			int added = readLength(in, 64 * 1024);
+			if(shared + added > path.length)
+			{
+				byte[] larger = new byte[Math.max(shared + added, path.length * 2)];
+				System.arraycopy(path, 0, larger, 0, shared);
+				path = larger;
+			}
+			in.readFully(path, shared, added);
+			pathLength = shared + added;
+			return new String(path, 0, pathLength, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * The children of a directory when it was last listed.
+	 */
+	private static class Listing
+	{
+		/**
+		 * The dates last modified and numbers of links of the directory and the
+		 * other directory when listed
+		 */
+		private long[] stamp;
+
+		/**
+		 * The names of the children kept with the listing
+		 */
+		private String[] names;
+
+		/**
+		 * Creates a listing.
+		 * @param stamp
+		 *     The dates and links of the directories
+		 * @param names
+		 *     The names of the children
+		 */
+		private Listing(long[] stamp, String[] names)
+		{
+			this.stamp = stamp;
+			this.names = names;
+		}
+	}
+}
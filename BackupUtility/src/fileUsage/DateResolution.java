@@ -0,0 +1,113 @@
+package fileUsage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares dates last modified on drives that do not keep them exactly. FAT
+ * drives keep dates to 2 seconds and some network drives to whole seconds, so
+ * a copied file can get a date slightly different from the original. The
+ * resolution of a drive is found by setting dates on a file and reading them
+ * back, and dates closer than that are treated as the same with the sizes
+ * deciding instead.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class DateResolution
+{
+	/**
+	 * The most two dates of the same file can differ by, used when the drive
+	 * cannot be checked
+	 */
+	public static final long MAX_TOLERANCE = 2000;
+
+	/**
+	 * The dates set on the probe file, just after and just before an even second
+	 * so both rounding down and rounding up are seen
+	 */
+	private static final long[] PROBE_DATES = {1500000000001L, 1500000001999L};
+
+	/**
+	 * Don't construct static
+	 */
+	private DateResolution()
+	{
+	}
+
+	/**
+	 * Returns how far a date can move when it is set on a file in the given
+	 * directory. Creates a hidden file in the directory for the check and deletes
+	 * it afterwards.
+	 * @param directory
+	 *     The directory on the drive to check
+	 * @return The most a date can move in milliseconds, 0 if dates are kept
+	 *     exactly
+	 */
+	public static long probe(File directory)
+	{
+		File probe = null;
+		try
+		{
+			probe = File.createTempFile(".dateProbe", ".tmp", directory);
+			long tolerance = 0;
+			for(long date : PROBE_DATES)
+			{
+				if(!probe.setLastModified(date))
+				{
+					return MAX_TOLERANCE;
+				}
+				tolerance = Math.max(tolerance, Math.abs(probe.lastModified() - date));
+			}
+
+			return Math.min(tolerance, MAX_TOLERANCE);
+		}
+		catch(IOException | SecurityException e)
+		{
+			// Drive cannot be written, expect the worst
+			return MAX_TOLERANCE;
+		}
+		finally
+		{
+			if(null != probe)
+			{
+				probe.delete();
+			}
+		}
+	}
+
+	/**
+	 * Compares a file at the backup location to the local version of the file.
+	 * Dates within the tolerance are treated as the same, and such files are only
+	 * different if their sizes differ. A file with the same date but a different
+	 * size was not fully written and is reported as an old version.
+	 * @param otherDate
+	 *     The date the file at the backup location was last modified
+	 * @param otherSize
+	 *     The size of the file at the backup location
+	 * @param fileDate
+	 *     The date the local file was last modified
+	 * @param fileSize
+	 *     The size of the local file or -1 if not known
+	 * @param tolerance
+	 *     The most the dates can differ by and still be the same
+	 * @return The status of the file at the backup location compared to the local
+	 *     file
+	 */
+	public static FileStatus compare(long otherDate, long otherSize, long fileDate, long fileSize, long tolerance)
+	{
+		boolean sameDate = Math.abs(otherDate - fileDate) <= tolerance;
+		if(sameDate)
+		{
+			return -1 == fileSize || otherSize == fileSize ? FileStatus.SAME_VERSION : FileStatus.OLD_VERSION;
+		}
+		else if(otherDate > fileDate)
+		{
+			return FileStatus.NEW_VERSION;
+		}
+		else
+		{
+			return FileStatus.OLD_VERSION;
+		}
+	}
+}
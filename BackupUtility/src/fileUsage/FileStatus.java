@@ -22,6 +22,19 @@ public enum FileStatus
 	 */
 	private byte rep;
 
+	/**
+	 * Lookup table from byte representation to status
+	 */
+	private static final FileStatus[] LOOKUP = new FileStatus[256];
+
+	static
+	{
+		for(FileStatus status : FileStatus.values())
+		{
+			LOOKUP[status.rep & 0xFF] = status;
+		}
+	}
+
 	/**
 	 * Creates an enum with the given byte that will represent the option when being
 	 * sent.
@@ -50,14 +63,7 @@ public enum FileStatus
 	 */
 	public static FileStatus byteToStatus(byte b)
 	{
-		for(FileStatus status : FileStatus.values())
-		{
-			if(status.rep == b)
-			{
-				return status;
-			}
-		}
-
-		return UNKNOWN;
+		FileStatus status = LOOKUP[b & 0xFF];
+		return null == status ? UNKNOWN : status;
 	}
 }
\ No newline at end of file
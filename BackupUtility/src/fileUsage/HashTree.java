@@ -0,0 +1,519 @@
+package fileUsage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A hash tree of a directory used to find the parts of a backup that differ
+ * without comparing every file. The hash of a file is made from its size and
+ * date last modified, the hash of a directory is made from the names and hashes
+ * of its children in name order. If the hash of a directory is the same on both
+ * sides nothing in it needs to be checked. The tree never reads the drive
+ * itself, files and directories are put in it by whatever already read them and
+ * a directory is marked listed once all its children were put. The hash of a
+ * directory is only known once it and every directory in it were listed, and
+ * hashes are made again from the bottom up as files are put or removed.
+ *
+ * @author JoelNeppel
+ *
+ */
+public class HashTree
+{
+	/**
+	 * The number of bytes in a hash
+	 */
+	public static final int HASH_LENGTH = 32;
+
+	/**
+	 * Type byte added to the hash of a file
+	 */
+	private static final byte FILE = 0x46;
+
+	/**
+	 * Type byte added to the hash of a directory
+	 */
+	private static final byte DIRECTORY = 0x44;
+
+	/**
+	 * The directory the tree is for
+	 */
+	private Path rootPath;
+
+	/**
+	 * The node of the directory the tree is for
+	 */
+	private Node root;
+
+	/**
+	 * Creates an empty tree for the given directory.
+	 * @param root
+	 *     The directory the tree is for
+	 */
+	public HashTree(File root)
+	{
+		rootPath = root.toPath().toAbsolutePath().normalize();
+		this.root = new Node(null, true, 0, 0);
+	}
+
+	/**
+	 * Returns the hash of the given directory along with the hashes of its
+	 * children.
+	 * @param directory
+	 *     The directory in the tree
+	 * @return The level of the tree for the directory, null if it is not a
+	 *     directory in the tree or it is not fully listed yet
+	 */
+	public synchronized Level getLevel(File directory)
+	{
+		Node node = find(directory.toPath().toAbsolutePath().normalize(), false);
+		if(null == node || !node.directory || null == node.hash)
+		{
+			return null;
+		}
+
+		HashMap<String, byte[]> children = new HashMap<>();
+		for(Map.Entry<String, Node> child : node.children.entrySet())
+		{
+			children.put(child.getKey(), child.getValue().hash);
+		}
+
+		return new Level(node.hash, children);
+	}
+
+	/**
+	 * Puts the given file or directory in the tree replacing what was there. A
+	 * directory that is already in the tree keeps its children. Directories on
+	 * the way that are not in the tree are added as not listed.
+	 * @param f
+	 *     The file or directory
+	 * @param directory
+	 *     True if it is a directory
+	 * @param fileSize
+	 *     The size of the file
+	 * @param fileDate
+	 *     The date the file was last modified
+	 */
+	public synchronized void put(File f, boolean directory, long fileSize, long fileDate)
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		if(!path.startsWith(rootPath) || path.equals(rootPath))
+		{
+			return;
+		}
+
+		Node parent = find(path.getParent(), true);
+		if(null == parent || !parent.directory)
+		{
+			return;
+		}
+
+		String name = path.getFileName().toString();
+		Node existing = parent.children.get(name);
+		if(null != existing && existing.directory == directory && (directory || (existing.fileSize == fileSize && existing.fileDate == fileDate)))
+		{
+			return;
+		}
+
+		Node node = new Node(parent, directory, fileSize, fileDate);
+		parent.children.put(name, node);
+		parent.pending += (null == node.hash ? 1 : 0) - (null == existing || null != existing.hash ? 0 : 1);
+		changed(parent);
+	}
+
+	/**
+	 * Removes the given file or directory and everything in it from the tree.
+	 * @param f
+	 *     The file or directory
+	 */
+	public synchronized void remove(File f)
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		if(!path.startsWith(rootPath) || path.equals(rootPath))
+		{
+			return;
+		}
+
+		Node parent = find(path.getParent(), false);
+		Node existing = null == parent || !parent.directory ? null : parent.children.remove(path.getFileName().toString());
+		if(null != existing)
+		{
+			if(null == existing.hash)
+			{
+				parent.pending--;
+			}
+			changed(parent);
+		}
+	}
+
+	/**
+	 * Marks the given directory as listed, every child of it is in the tree. The
+	 * directory is added if it is not in the tree.
+	 * @param directory
+	 *     The directory that was listed
+	 */
+	public synchronized void listed(File directory)
+	{
+		put(directory, true, 0, 0);
+		Node node = find(directory.toPath().toAbsolutePath().normalize(), false);
+		if(null != node && node.directory && !node.listed)
+		{
+			node.listed = true;
+			changed(node);
+		}
+	}
+
+	/**
+	 * Reads the given file again after it was changed, created or deleted so the
+	 * hashes of it and the directories it is in are made again. Only the given
+	 * file is read.
+	 * @param f
+	 *     The file that changed
+	 */
+	public synchronized void update(File f)
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		try
+		{
+			if(!Files.isHidden(path))
+			{
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				if(attributes.isDirectory() || attributes.isRegularFile())
+				{
+					put(f, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+					return;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			// File does not exist or cannot be read, leave it out
+		}
+
+		remove(f);
+	}
+
+	/**
+	 * Returns the node of the given path.
+	 * @param path
+	 *     The absolute normalized path to find
+	 * @param create
+	 *     True to add directories that are not in the tree
+	 * @return The node, null if not in the tree
+	 */
+	private Node find(Path path, boolean create)
+	{
+		if(!path.startsWith(rootPath))
+		{
+			return null;
+		}
+
+		Node node = root;
+		for(Path name : rootPath.relativize(path))
+		{
+			if(name.toString().isEmpty())
+			{
+				continue;
+			}
+			if(!node.directory)
+			{
+				return null;
+			}
+
+			Node child = node.children.get(name.toString());
+			if(null == child)
+			{
+				if(!create)
+				{
+					return null;
+				}
+
+				child = new Node(node, true, 0, 0);
+				node.children.put(name.toString(), child);
+				node.pending++;
+				changed(node);
+			}
+			node = child;
+		}
+
+		return node;
+	}
+
+	/**
+	 * Makes the hash of the given directory again after its children changed and
+	 * does the same for every directory it is in until a hash is the same as
+	 * before.
+	 * @param node
+	 *     The directory that changed
+	 */
+	private static void changed(Node node)
+	{
+		while(null != node)
+		{
+			byte[] old = node.hash;
+			node.hash = node.listed && 0 == node.pending ? node.makeHash() : null;
+			Node parent = node.parent;
+			if(null == parent || Arrays.equals(old, node.hash))
+			{
+				return;
+			}
+
+			if(null == old)
+			{
+				parent.pending--;
+			}
+			else if(null == node.hash)
+			{
+				parent.pending++;
+			}
+			node = parent;
+		}
+	}
+
+	/**
+	 * Creates the digest used for hashes.
+	 * @return The digest
+	 */
+	private static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			// Every Java platform must support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A file or directory in the tree.
+	 */
+	private static class Node
+	{
+		/**
+		 * The directory the node is in, null for the root
+		 */
+		private Node parent;
+
+		/**
+		 * True if the node is a directory
+		 */
+		private boolean directory;
+
+		/**
+		 * The size of the file in bytes
+		 */
+		private long fileSize;
+
+		/**
+		 * The date the file was last modified
+		 */
+		private long fileDate;
+
+		/**
+		 * The children of the directory by name
+		 */
+		private TreeMap<String, Node> children;
+
+		/**
+		 * True once every child of the directory was put in the tree
+		 */
+		private boolean listed;
+
+		/**
+		 * The number of children whose hash is not known
+		 */
+		private int pending;
+
+		/**
+		 * The hash of the node, null while not known
+		 */
+		private byte[] hash;
+
+		/**
+		 * Creates a node. The hash of a file is made right away.
+		 * @param parent
+		 *     The directory the node is in
+		 * @param directory
+		 *     True if the node is a directory
+		 * @param fileSize
+		 *     The size of the file
+		 * @param fileDate
+		 *     The date the file was last modified
+		 */
+		private Node(Node parent, boolean directory, long fileSize, long fileDate)
+		{
+			this.parent = parent;
+			this.directory = directory;
+			this.fileSize = fileSize;
+			this.fileDate = fileDate;
+			if(directory)
+			{
+				children = new TreeMap<>();
+			}
+			else
+			{
+				hash = makeHash();
+			}
+		}
+
+		/**
+		 * Makes the hash of the node. The hashes of the children of a directory
+		 * must all be known.
+		 * @return The hash
+		 */
+		private byte[] makeHash()
+		{
+			MessageDigest digest = createDigest();
+			if(directory)
+			{
+				digest.update(DIRECTORY);
+				for(Map.Entry<String, Node> child : children.entrySet())
+				{
+					byte[] name = child.getKey().getBytes(StandardCharsets.UTF_8);
+					digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(name.length).array());
+					digest.update(name);
+					digest.update(child.getValue().hash);
+				}
+			}
+			else
+			{
+				digest.update(FILE);
+				digest.update(ByteBuffer.allocate(2 * Long.BYTES).putLong(fileSize).putLong(fileDate).array());
+			}
+
+			return digest.digest();
+		}
+	}
+
+	/**
+	 * The hash of a directory and the hashes of its children, sent to compare
+	 * the directory between two trees.
+	 */
+	public static class Level
+	{
+		/**
+		 * The hash of the directory
+		 */
+		private byte[] hash;
+
+		/**
+		 * The hashes of the children by name
+		 */
+		private HashMap<String, byte[]> children;
+
+		/**
+		 * Creates a level.
+		 * @param hash
+		 *     The hash of the directory
+		 * @param children
+		 *     The hashes of the children by name
+		 */
+		private Level(byte[] hash, HashMap<String, byte[]> children)
+		{
+			this.hash = hash;
+			this.children = children;
+		}
+
+		/**
+		 * Creates a level from the bytes created by byteData.
+		 * @param data
+		 *     The byte data of the level
+		 * @throws IOException
+		 *     If the data is not a level
+		 */
+		public Level(byte[] data) throws IOException
+		{
+			try
+			{
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				hash = new byte[HASH_LENGTH];
+				buffer.get(hash);
+				int count = buffer.getInt();
+				children = new HashMap<>();
+				for(int i = 0; i < count; i++)
+				{
+					int nameLength = buffer.getInt();
+					String name = new String(data, buffer.position(), nameLength, StandardCharsets.UTF_8);
+					buffer.position(buffer.position() + nameLength);
+					byte[] childHash = new byte[HASH_LENGTH];
+					buffer.get(childHash);
+					children.put(name, childHash);
+				}
+			}
+			catch(RuntimeException e)
+			{
+				throw new IOException("Hash tree level is not valid.", e);
+			}
+		}
+
+		/**
+		 * Returns whether the directory is the same as the other one.
+		 * @param other
+		 *     The level of the other directory
+		 * @return True if everything in both directories is the same
+		 */
+		public boolean matches(Level other)
+		{
+			return Arrays.equals(hash, other.hash);
+		}
+
+		/**
+		 * Returns whether the child with the given name is the same in the other
+		 * directory.
+		 * @param other
+		 *     The level of the other directory
+		 * @param name
+		 *     The name of the child
+		 * @return True if both directories have the child and it is the same
+		 */
+		public boolean matches(Level other, String name)
+		{
+			byte[] childHash = children.get(name);
+			return null != childHash && Arrays.equals(childHash, other.children.get(name));
+		}
+
+		/**
+		 * Returns the level as bytes to be sent.
+		 * @return The byte data of the level
+		 */
+		public byte[] byteData()
+		{
+			byte[][] names = new byte[children.size()][];
+			int length = HASH_LENGTH + Integer.BYTES;
+			int i = 0;
+			for(Map.Entry<String, byte[]> child : children.entrySet())
+			{
+				names[i] = child.getKey().getBytes(StandardCharsets.UTF_8);
+				length += Integer.BYTES + names[i].length + HASH_LENGTH;
+				i++;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			buffer.put(hash);
+			buffer.putInt(children.size());
+			i = 0;
+			for(Map.Entry<String, byte[]> child : children.entrySet())
+			{
+				buffer.putInt(names[i].length);
+				buffer.put(names[i]);
+				buffer.put(child.getValue());
+				i++;
+			}
+
+			return buffer.array();
+		}
+	}
+}
@@ -1,22 +1,34 @@
 package networkBackup;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.InputMismatchException;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -24,12 +36,22 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 
+import communications.BufferPool;
 import communications.ByteHelp;
 import communications.Command;
 import communications.CommunicationHelp;
+import communications.DeltaSync;
+import communications.FileListing;
 import communications.Packet;
+import communications.RangeCheckpoint;
+import communications.RecordCipher;
+import communications.StatusBatch;
+import communications.StreamMultiplexer;
+import communications.TransferCheckpoint;
 import exceptions.ItemNotFoundException;
+import fileUsage.DateResolution;
 import fileUsage.FileStatus;
+import fileUsage.HashTree;
 import fileUsage.SystemFileReader;
 
 /**
@@ -52,6 +74,22 @@ public class HostApp
 	 */
 	private static Cipher privateCipher;
 
+	/**
+	 * Hash tree of the storage location used to tell clients which directories
+	 * differ
+	 */
+	private static HashTree tree;
+
+	/**
+	 * Index of the storage location used to answer status checks and file lists
+	 */
+	private static HostIndex index;
+
+	/**
+	 * The most a date last modified can move when set on the storage location
+	 */
+	private static long dateTolerance;
+
 	/**
 	 * The path where all the system files are to be located
 	 */
@@ -70,12 +108,26 @@ public class HostApp
 			// Get settings from file
 			settings = new SystemFileReader(SYSTEM_PATH + "HostSettings.txt");
 
+			// Limit the memory used by transfer buffers if set
+			try
+			{
+				BufferPool.setBudget(Long.parseLong(settings.get("Buffer Pool MiB")) * 1024 * 1024);
+			}
+			catch(ItemNotFoundException | NumberFormatException e)
+			{
+				// Use default budget
+			}
+
 			// Check head directory where files will be backed up to
 			String check = settings.get("Storage Location");
 			if(!new File(check).isDirectory())
 			{
 				throw new FileNotFoundException("The given path to back up files " + check + " must be a directory.");
 			}
+			index = new HostIndex(new File(check), new File(SYSTEM_PATH + "HostIndex.log"));
+			tree = createTree(new File(check));
+			dateTolerance = DateResolution.probe(new File(check));
+			System.out.println("System: Date tolerance " + dateTolerance + "ms");
 
 			// Create RSA cipher using a private encoded key
 			privateCipher = Cipher.getInstance("RSA");
@@ -118,7 +170,8 @@ public class HostApp
 			try
 			{
 				// Attempts to create socket server
-				server = new ServerSocket(Integer.parseInt(settings.get("Port")));
+				// Socket is created from a channel so files can be transferred directly
+				server = ServerSocketChannel.open().bind(new InetSocketAddress(Integer.parseInt(settings.get("Port")))).socket();
 				System.out.println("Created Server");
 			}
 			catch(IOException e)
@@ -178,24 +231,24 @@ public class HostApp
 	{
 		new Thread(()->
 		{
-			Cipher encrypt = null;
-			Cipher decrypt = null;
+			Key AESKey;
+			byte options;
 			try
 			{
-				// Create ciphers from shared AES IV and key
+				// Create login cipher from shared AES IV and key
 				IvParameterSpec parameter = getIV(comms);
-				Key AESKey = getAESKey(comms);
-				encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-				encrypt.init(Cipher.ENCRYPT_MODE, AESKey, parameter);
-				decrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-				decrypt.init(Cipher.DECRYPT_MODE, AESKey, parameter);
+				AESKey = getAESKey(comms);
+				Cipher login = Cipher.getInstance("AES/CBC/PKCS5Padding");
+				login.init(Cipher.DECRYPT_MODE, AESKey, parameter);
 
 				// Only respond if user is approved
-				if(!accessAllowed(comms, decrypt))
+				if(!accessAllowed(comms, login))
 				{
 					comms.close();
 					return;
 				}
+
+				options = negotiateOptions(comms);
 			}
 			catch(IOException | InvalidKeyException | NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e)
 			{
@@ -213,7 +266,6 @@ public class HostApp
 				return;
 			}
 
-			boolean close = false;
 			// Checks again if the directory to write files to exists
 			File check = new File(getFullPath(""));
 			if(!check.exists() || !check.isDirectory())
@@ -232,33 +284,13 @@ public class HostApp
 				return;
 			}
 
-			while(!close && !comms.isClosed())
+			if(0 != (options & CommunicationHelp.MULTIPLEXED_STREAMS))
 			{
-				// Reply to any requests until the client closes
-				try
-				{
-					// HostGraphic.updateFileAndAction(comms.getAddress(), "", "Receiving packet");
-					Packet got = CommunicationHelp.receivePacket(comms);
-					if(got.getCmd() == Command.CLOSE)
-					{
-						// Close connection when requested by client
-						close = true;
-					}
-					else
-					{
-						// Respond to the packet received
-						respond(got, comms, encrypt, decrypt);
-					}
-				}
-				catch(IOException e)
-				{
-					e.printStackTrace();
-					// reportFail("IO Exception Caught", comms);
-				}
-				catch(InterruptedException e)
-				{
-					e.printStackTrace();
-				}
+				handleStreams(comms, AESKey, options);
+			}
+			else
+			{
+				serve(comms, AESKey, "", options);
 			}
 
 			System.out.println("Closed: " + comms);
@@ -274,6 +306,121 @@ public class HostApp
 		}).start();
 	}
 
+	/**
+	 * Accepts every stream the client opens on the connection and responds to the
+	 * requests on each stream with its own thread until the connection ends.
+	 * @param comms
+	 *     The connection carrying the streams
+	 * @param AESKey
+	 *     The key shared during the handshake
+	 * @param options
+	 *     The transfer options for the connection
+	 */
+	private static void handleStreams(Socket comms, Key AESKey, byte options)
+	{
+		StreamMultiplexer streams = new StreamMultiplexer(comms, false);
+		try
+		{
+			StreamMultiplexer.Stream stream = streams.acceptStream();
+			while(null != stream)
+			{
+				StreamMultiplexer.Stream accepted = stream;
+				new Thread(()->
+				{
+					// Each stream has its own keys so records on different streams never share a nonce
+					serve(accepted, AESKey, " " + accepted.getId(), options);
+					accepted.close();
+				}).start();
+				stream = streams.acceptStream();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			try
+			{
+				streams.close();
+			}
+			catch(IOException e)
+			{
+				// TODO Auto-generated catch block
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Responds to all requests on the connection or stream until the client closes
+	 * it.
+	 * @param comms
+	 *     The connection or stream to respond on
+	 * @param AESKey
+	 *     The key shared during the handshake
+	 * @param label
+	 *     Added to the labels the record cipher keys are derived with, the stream ID
+	 *     for a stream
+	 * @param options
+	 *     The transfer options for the connection
+	 */
+	private static void serve(Socket comms, Key AESKey, String label, byte options)
+	{
+		RecordCipher encrypt;
+		RecordCipher decrypt;
+		try
+		{
+			// Derive a separate key for each direction to encrypt files with
+			encrypt = RecordCipher.create(AESKey, RecordCipher.HOST_TO_CLIENT + label, Cipher.ENCRYPT_MODE, options);
+			decrypt = RecordCipher.create(AESKey, RecordCipher.CLIENT_TO_HOST + label, Cipher.DECRYPT_MODE, options);
+		}
+		catch(InvalidKeyException | NoSuchAlgorithmException | NoSuchPaddingException e)
+		{
+			System.out.println("Problem with shared AES cipher.");
+			e.printStackTrace();
+			return;
+		}
+
+		boolean close = false;
+		// Packets reused for every request on the connection
+		Packet got = new Packet();
+		Packet send = new Packet();
+		while(!close && !comms.isClosed())
+		{
+			// Reply to any requests until the client closes
+			try
+			{
+				// HostGraphic.updateFileAndAction(comms.getAddress(), "", "Receiving packet");
+				CommunicationHelp.receivePacket(comms, got);
+				if(got.getCmd() == Command.CLOSE)
+				{
+					// Close connection when requested by client
+					close = true;
+				}
+				else
+				{
+					// Respond to the packet received
+					respond(got, send, comms, encrypt, decrypt);
+				}
+			}
+			catch(EOFException e)
+			{
+				// Client ended the connection without closing
+				close = true;
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				// reportFail("IO Exception Caught", comms);
+			}
+			catch(InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	 * Receives the IV from the client when sharing an AES cipher.
 	 * @param comms
@@ -372,65 +519,115 @@ public class HostApp
 		}
 	}
 
+	/**
+	 * Receives the transfer options requested by the client and replies with the
+	 * options the host allows. Plaintext transfers, compression, and multiplexing
+	 * are only allowed when enabled in the host settings.
+	 * @param comms
+	 *     The socket used to communicate with the client
+	 * @return The options that will be used for the connection
+	 * @throws IOException
+	 */
+	private static byte negotiateOptions(Socket comms) throws IOException
+	{
+		int requested = comms.getInputStream().read();
+		if(-1 == requested)
+		{
+			throw new EOFException("Client closed before sending transfer options.");
+		}
+
+		byte allowed = 0;
+		if(0 != (requested & CommunicationHelp.PLAINTEXT_TRANSFER) && isEnabled("Allow Plaintext Transfers"))
+		{
+			allowed |= CommunicationHelp.PLAINTEXT_TRANSFER;
+		}
+		if(0 != (requested & CommunicationHelp.DEFLATE_COMPRESSION) && isEnabled("Allow Compression"))
+		{
+			allowed |= CommunicationHelp.DEFLATE_COMPRESSION;
+		}
+		if(0 != (requested & CommunicationHelp.MULTIPLEXED_STREAMS) && isEnabled("Allow Multiplexing"))
+		{
+			allowed |= CommunicationHelp.MULTIPLEXED_STREAMS;
+		}
+
+		comms.getOutputStream().write(allowed);
+		return allowed;
+	}
+
+	/**
+	 * Returns whether the given setting is set to true in the host settings.
+	 * @param key
+	 *     The key for the setting
+	 * @return True if the setting is true, false if it is not or is not set
+	 */
+	private static boolean isEnabled(String key)
+	{
+		try
+		{
+			return Boolean.parseBoolean(settings.get(key));
+		}
+		catch(ItemNotFoundException e)
+		{
+			return false;
+		}
+	}
+
 	/**
 	 * Does the appropriate actions requested by the received packet and will send a
 	 * response if necessary.
 	 * @param got
 	 *     The packet to respond to
+	 * @param send
+	 *     The packet to reuse for the response
 	 * @param comms
 	 *     The socket used to communicate with the client
 	 * @param encrypt
-	 *     The encryption algorithm to use if needed
+	 *     The record cipher to encrypt sent files with, null to send unencrypted
 	 * @param decrypt
-	 *     The decryption algorithm to use if needed
+	 *     The record cipher to decrypt received files with, null if unencrypted
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private static void respond(Packet got, Socket comms, Cipher encrypt, Cipher decrypt) throws IOException, InterruptedException
+	private static void respond(Packet got, Packet send, Socket comms, RecordCipher encrypt, RecordCipher decrypt) throws IOException, InterruptedException
 	{
-		Packet send = new Packet(null, 0, got.getPath());
+		send.set(null, FileStatus.UNKNOWN, 0, got.getPath());
 		switch(got.getCmd())
 		{
 			case GET_STATUS:
 				// Send whether the file on host is new, old, or same version from date modified
 				send.setCommand(Command.GET_STATUS);
-				File f = new File(getFullPath(got.getPath()));
-				if(f.exists())
+				HostIndex.Entry entry = index.get(new File(getFullPath(got.getPath())));
+				send.setFileDate(null == entry ? 0 : entry.getFileDate());
+				send.setStatus(getStatus(entry, got.getFileDate(), -1, null, null));
+				CommunicationHelp.sendPacket(send, comms);
+				break;
+			case BATCH_STATUS:
+				// Send one packed status for every file in the batch followed by the date of each file
+				StatusBatch batch = new StatusBatch(CommunicationHelp.receiveFrame(comms));
+				ByteBuffer statuses = ByteBuffer.allocate(batch.size() * (1 + Long.BYTES));
+				long[] dates = new long[batch.size()];
+				for(int i = 0; i < batch.size(); i++)
 				{
-					// Checks if the requested file is a directory, normally only used after
-					// checking for missing
-					if(f.isDirectory())
-					{
-						send.setStatus(FileStatus.DIRECTORY);
-					}
-					else
-					{
-						send.setFileDate(f.lastModified());
-						if(f.lastModified() > got.getFileDate())
-						{
-							send.setStatus(FileStatus.NEW_VERSION);
-						}
-						else if(f.lastModified() < got.getFileDate())
-						{
-							send.setStatus(FileStatus.OLD_VERSION);
-						}
-						else
-						{
-							send.setStatus(FileStatus.SAME_VERSION);
-						}
-					}
+					File check = new File(getFullPath(batch.getPath(i)));
+					HostIndex.Entry checkEntry = index.get(check);
+					dates[i] = null == checkEntry ? 0 : checkEntry.getFileDate();
+					statuses.put(getStatus(checkEntry, batch.getFileDate(i), batch.getFileSize(i), batch.getHash(i), check).getByteRespresentation());
 				}
-				else
+				for(long date : dates)
 				{
-					send.setStatus(FileStatus.NOT_FOUND);
+					statuses.putLong(date);
 				}
+				send.setCommand(Command.BATCH_STATUS);
 				CommunicationHelp.sendPacket(send, comms);
+				CommunicationHelp.sendFrame(statuses.array(), comms);
 				break;
 			case CREATE_DIRECTORY:
 				// Create requested directory and report result
 				File newDirectory = new File(getFullPath(got.getPath()));
-				if(newDirectory.exists() || newDirectory.mkdirs())
+				HostIndex.Entry existing = index.get(newDirectory);
+				if((null != existing && existing.isDirectory()) || newDirectory.exists() || newDirectory.mkdirs())
 				{
+					updated(newDirectory);
 					send.setCommand(Command.SUCCESS);
 				}
 				else
@@ -440,21 +637,123 @@ public class HostApp
 				CommunicationHelp.sendPacket(send, comms);
 				break;
 			case SEND_FILE:
-				// Prepares client to receive and sends file
+				// Prepares client to receive and sends file from where the client's partial file ends
+				byte[] resume = CommunicationHelp.receiveFrame(comms);
 				send.setCommand(Command.RECEIVE_FILE);
 				File sendFile = new File(getFullPath(got.getPath()));
+				long offset = 0 == resume.length ? 0 : new TransferCheckpoint(resume).getResumeOffset(sendFile);
 				send.setFileDate(sendFile.lastModified());
 				CommunicationHelp.sendPacket(send, comms);
-				CommunicationHelp.sendFile(sendFile, comms, encrypt);
+				CommunicationHelp.sendFile(sendFile, comms, encrypt, offset);
+				break;
+			case GET_OFFSET:
+				// Sends the checkpoint of the partial file so the client can resume sending it
+				TransferCheckpoint checkpoint = TransferCheckpoint.load(new File(getFullPath(got.getPath())));
+				send.setCommand(Command.GET_OFFSET);
+				CommunicationHelp.sendPacket(send, comms);
+				CommunicationHelp.sendFrame(null == checkpoint ? new byte[0] : checkpoint.byteData(), comms);
 				break;
 			case RECEIVE_FILE:
 				// Writes file to host drive and sends result
 				File write = new File(getFullPath(got.getPath()));
+				// Ranges left by a client that stopped before committing are not needed
+				getRangeFile(write).delete();
+				RangeCheckpoint.delete(write);
 				CommunicationHelp.receiveFile(write, comms, decrypt);
 				write.setLastModified(got.getFileDate());
+				updated(write);
+				send.setCommand(Command.SUCCESS);
+				CommunicationHelp.sendPacket(send, comms);
+				break;
+			case RECEIVE_DELTA:
+				// Rebuilds file from the changes the client sends, fails if there is nothing to build from
+				File old = new File(getFullPath(got.getPath()));
+				if(old.isFile() && old.length() >= DeltaSync.MIN_SIZE)
+				{
+					receiveDelta(old, got.getFileDate(), send, comms, encrypt, decrypt);
+				}
+				else
+				{
+					send.setCommand(Command.FAILED);
+					CommunicationHelp.sendPacket(send, comms);
+				}
+				break;
+			case PREPARE_RANGES:
+				// Creates the file ranges are written into at the size the client will send,
+				// keeping the ranges of an interrupted transfer of the same size
+				byte[] rangeSize = CommunicationHelp.receiveFrame(comms);
+				File prepareTarget = new File(getFullPath(got.getPath()));
+				File ranges = getRangeFile(prepareTarget);
+				send.setCommand(Command.FAILED);
+				RangeCheckpoint kept = null;
+				if(Long.BYTES == rangeSize.length)
+				{
+					long fileSize = ByteHelp.bytesToLong(rangeSize);
+					kept = RangeCheckpoint.load(prepareTarget);
+					if(null == kept || kept.getFileSize() != fileSize || ranges.length() != fileSize)
+					{
+						kept = new RangeCheckpoint(fileSize);
+					}
+					try(RandomAccessFile prepare = new RandomAccessFile(ranges, "rw"))
+					{
+						prepare.setLength(fileSize);
+						kept.save(prepareTarget);
+						send.setCommand(Command.SUCCESS);
+					}
+					catch(IOException e)
+					{
+						ranges.delete();
+						RangeCheckpoint.delete(prepareTarget);
+					}
+				}
+				CommunicationHelp.sendPacket(send, comms);
+				if(Command.SUCCESS == send.getCmd())
+				{
+					CommunicationHelp.sendFrame(kept.byteData(), comms);
+				}
+				break;
+			case RECEIVE_RANGE:
+				// Writes one range of the file and sends result once it is on the drive
+				File rangeTarget = new File(getFullPath(got.getPath()));
+				RangeCheckpoint.addTo(rangeTarget, CommunicationHelp.receiveRange(getRangeFile(rangeTarget), comms, decrypt));
 				send.setCommand(Command.SUCCESS);
 				CommunicationHelp.sendPacket(send, comms);
 				break;
+			case COMMIT_RANGES:
+				// Replaces the file with the one built from the ranges after all were received
+				File target = new File(getFullPath(got.getPath()));
+				File built = getRangeFile(target);
+				try
+				{
+					Files.move(built.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					RangeCheckpoint.delete(target);
+					target.setLastModified(got.getFileDate());
+					updated(target);
+					send.setCommand(Command.SUCCESS);
+				}
+				catch(IOException e)
+				{
+					built.delete();
+					RangeCheckpoint.delete(target);
+					send.setCommand(Command.FAILED);
+				}
+				CommunicationHelp.sendPacket(send, comms);
+				break;
+			case GET_TREE:
+				// Sends the hashes of the directory and its children so the client only checks what differs
+				HashTree.Level level = tree.getLevel(new File(getFullPath(got.getPath())));
+				if(null == level)
+				{
+					send.setCommand(Command.FAILED);
+					CommunicationHelp.sendPacket(send, comms);
+				}
+				else
+				{
+					send.setCommand(Command.GET_TREE);
+					CommunicationHelp.sendPacket(send, comms);
+					CommunicationHelp.sendFrame(level.byteData(), comms);
+				}
+				break;
 			case SEND_FILE_LIST:
 				// Sends list of files on host for client to request missing ones
 				File check = new File(getFullPath(got.getPath()));
@@ -467,32 +766,225 @@ public class HostApp
 	}
 
 	/**
-	 * Sends a list of available files for backup to the client to check for any
-	 * missing ones.
-	 * @param out
-	 *     The output stream used to send data to the client
+	 * Reads the given file again in the hash tree and index after it was received
+	 * or created.
 	 * @param f
-	 *     The file being sent
-	 * @param pathRemove
-	 *     The machine specific path to be removed before sending
+	 *     The file that changed
+	 */
+	private static void updated(File f)
+	{
+		try
+		{
+			index.update(f);
+		}
+		catch(IOException e)
+		{
+			// File was still received, it is found again when the index is created again
+			e.printStackTrace();
+		}
+		updateTree(f);
+	}
+
+	/**
+	 * Creates the hash tree of the storage location from the index so the
+	 * storage location is not read again.
+	 * @param storage
+	 *     The storage location
+	 * @return The hash tree with every directory listed
+	 */
+	private static HashTree createTree(File storage)
+	{
+		HashTree created = new HashTree(storage);
+		TreeMap<String, HostIndex.Entry> entries = index.list(storage);
+		for(Map.Entry<String, HostIndex.Entry> entry : entries.entrySet())
+		{
+			HostIndex.Entry got = entry.getValue();
+			created.put(new File(storage, entry.getKey()), got.isDirectory(), got.getFileSize(), got.getFileDate());
+		}
+
+		// The index has everything in each directory, directories in another come after it
+		for(Map.Entry<String, HostIndex.Entry> entry : entries.descendingMap().entrySet())
+		{
+			if(entry.getValue().isDirectory())
+			{
+				created.listed(new File(storage, entry.getKey()));
+			}
+		}
+		created.listed(storage);
+
+		return created;
+	}
+
+	/**
+	 * Puts the given file in the hash tree as it is in the index along with any
+	 * directories it is in that are not in the tree yet.
+	 * @param f
+	 *     The file that changed
+	 */
+	private static void updateTree(File f)
+	{
+		// Directories made along with the file need to be added first
+		File parent = f.getParentFile();
+		HostIndex.Entry parentEntry = null == parent ? null : index.get(parent);
+		if(null != parentEntry && parentEntry.isDirectory() && null == tree.getLevel(parent))
+		{
+			updateTree(parent);
+		}
+
+		HostIndex.Entry entry = index.get(f);
+		if(null == entry)
+		{
+			tree.remove(f);
+		}
+		else
+		{
+			tree.put(f, entry.isDirectory(), entry.getFileSize(), entry.getFileDate());
+			if(entry.isDirectory())
+			{
+				tree.listed(f);
+			}
+		}
+	}
+
+	/**
+	 * Returns the hidden file the ranges of the given file are written into before
+	 * it is committed.
+	 * @param write
+	 *     The file being received in ranges
+	 * @return The file the ranges are written to
+	 */
+	private static File getRangeFile(File write)
+	{
+		return new File(write.getParentFile(), "." + write.getName() + ".ranges");
+	}
+
+	/**
+	 * Sends the signature of the host's version of the file, receives the delta
+	 * from the client and rebuilds the new version into the temp file before
+	 * swapping it in. The client is told whether the file was rebuilt so it can
+	 * send the whole file instead if not.
+	 * @param old
+	 *     The host's version of the file
+	 * @param fileDate
+	 *     The date the client's file was last modified
+	 * @param send
+	 *     The packet to reuse for the response
+	 * @param comms
+	 *     The socket used to communicate with the client
+	 * @param encrypt
+	 *     The record cipher to encrypt sent files with, null to send unencrypted
+	 * @param decrypt
+	 *     The record cipher to decrypt received files with, null if unencrypted
 	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	public static void sendFileList(OutputStream out, File f, String pathRemove) throws IOException
+	private static void receiveDelta(File old, long fileDate, Packet send, Socket comms, RecordCipher encrypt, RecordCipher decrypt) throws IOException, InterruptedException
 	{
-		if(f.isDirectory())
+		File signature = File.createTempFile("signature", null);
+		File delta = File.createTempFile("delta", null);
+		File rebuilt = new File(old.getPath() + ".temp");
+		try
 		{
-			for(File ff : f.listFiles())
+			try
+			{
+				DeltaSync.writeSignature(old, signature);
+			}
+			catch(IOException e)
+			{
+				send.setCommand(Command.FAILED);
+				CommunicationHelp.sendPacket(send, comms);
+				return;
+			}
+
+			send.setCommand(Command.RECEIVE_DELTA);
+			CommunicationHelp.sendPacket(send, comms);
+			CommunicationHelp.sendFile(signature, comms, encrypt);
+			CommunicationHelp.receiveFile(delta, comms, decrypt);
+
+			try
+			{
+				DeltaSync.applyDelta(old, delta, rebuilt);
+				Files.move(rebuilt.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				old.setLastModified(fileDate);
+				updated(old);
+				send.setCommand(Command.SUCCESS);
+			}
+			catch(IOException e)
 			{
-				sendFileListRecursive(out, ff, pathRemove);
+				send.setCommand(Command.FAILED);
 			}
+			CommunicationHelp.sendPacket(send, comms);
+		}
+		finally
+		{
+			signature.delete();
+			delta.delete();
+			rebuilt.delete();
+		}
+	}
+
+	/**
+	 * Compares the given file on the host to the client's version of the file
+	 * described by the date and size. Dates closer than the storage location
+	 * keeps them are the same, and a file with the same date but a different size
+	 * was not fully written and is reported as an old version. When the client
+	 * knows the hash of a file of the same size and the index already has the
+	 * hash of the host's file the contents decide instead. The host's file is
+	 * never read here, its hash is made in the background if not known yet.
+	 * @param entry
+	 *     The index entry of the file on the host
+	 * @param fileDate
+	 *     The date the client's file was last modified
+	 * @param fileSize
+	 *     The size of the client's file or -1 if not known
+	 * @param fileHash
+	 *     The content hash of the client's file or null if not known
+	 * @param f
+	 *     The file on the host, only used with a hash
+	 * @return The status of the file on the host compared to the client's
+	 */
+	private static FileStatus getStatus(HostIndex.Entry entry, long fileDate, long fileSize, byte[] fileHash, File f)
+	{
+		if(null == entry)
+		{
+			return FileStatus.NOT_FOUND;
+		}
+
+		// Checks if the requested file is a directory, normally only used after
+		// checking for missing
+		if(entry.isDirectory())
+		{
+			return FileStatus.DIRECTORY;
+		}
+
+		FileStatus status = DateResolution.compare(entry.getFileDate(), entry.getFileSize(), fileDate, fileSize, dateTolerance);
+		if(null == fileHash || entry.getFileSize() != fileSize)
+		{
+			return status;
+		}
+
+		// Same contents need no transfer whatever the dates, different contents
+		// with dates too close to tell apart are sent again
+		byte[] hash = index.getKnownHash(f);
+		if(null == hash)
+		{
+			return status;
+		}
+		else if(MessageDigest.isEqual(hash, fileHash))
+		{
+			return FileStatus.SAME_VERSION;
+		}
+		else
+		{
+			return FileStatus.SAME_VERSION == status ? FileStatus.OLD_VERSION : status;
 		}
-		// Finished byte
-		out.write((byte) 0xFF);
 	}
 
 	/**
 	 * Sends a list of available files for backup to the client to check for any
-	 * missing ones.
+	 * missing ones. Every entry has its type, size and date last modified so the
+	 * client does not need to request them. The list is made from the index so
+	 * the backup drive is not read.
 	 * @param out
 	 *     The output stream used to send data to the client
 	 * @param f
@@ -501,25 +993,18 @@ public class HostApp
 	 *     The machine specific path to be removed before sending
 	 * @throws IOException
 	 */
-	private static void sendFileListRecursive(OutputStream out, File f, String pathRemove) throws IOException
+	public static void sendFileList(OutputStream out, File f, String pathRemove) throws IOException
 	{
-		if(f.isHidden() || (!f.isFile() && !f.isDirectory()) || (f.isDirectory() && null == f.listFiles()))
-		{
-			return;
-		}
-
-		String send = f.getPath().replace(pathRemove, "");
-		out.write(send.getBytes());
-		// File separation byte
-		out.write((byte) 0x0D);
-
-		if(f.isDirectory())
+		DataOutputStream list = new DataOutputStream(new BufferedOutputStream(out));
+		File root = new File(getFullPath(""));
+		for(Map.Entry<String, HostIndex.Entry> entry : index.list(f).entrySet())
 		{
-			for(File ff : f.listFiles())
-			{
-				sendFileListRecursive(out, ff, pathRemove);
-			}
+			HostIndex.Entry got = entry.getValue();
+			String send = new File(root, entry.getKey()).getPath().replace(pathRemove, "");
+			FileListing.write(list, send, got.isDirectory(), got.getFileSize(), got.getFileDate());
 		}
+		FileListing.writeEnd(list);
+		list.flush();
 	}
 
 	/**
@@ -0,0 +1,643 @@
+package networkBackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import communications.TransferCheckpoint;
+
+/**
+ * Index of every file and directory in the storage location with its type,
+ * size, date last modified and content hash so status checks and file lists are
+ * answered from memory instead of the backup drive. The index is kept in a log
+ * that every change is appended to and is read back when the host starts. A
+ * record that was only partly written when the host stopped is cut off, and the
+ * log is rewritten with only the current entries once most of it is out of
+ * date. If there is no log the storage location is read once to create it.
+ * Content hashes are made on a background thread the first time they are
+ * asked for, so answering a request never waits on reading a whole file.
+ *
+ * @author JoelNeppel
+ *
+ */
+class HostIndex
+{
+	/**
+	 * Record that adds or replaces an entry
+	 */
+	private static final byte PUT = 0x50;
+
+	/**
+	 * Record that removes an entry
+	 */
+	private static final byte REMOVE = 0x52;
+
+	/**
+	 * Type byte of a file entry
+	 */
+	private static final byte FILE = 0x46;
+
+	/**
+	 * Type byte of a directory entry
+	 */
+	private static final byte DIRECTORY = 0x44;
+
+	/**
+	 * The least number of records before the log is rewritten
+	 */
+	private static final int MIN_COMPACT_RECORDS = 4096;
+
+	/**
+	 * The storage location being indexed
+	 */
+	private Path root;
+
+	/**
+	 * The log file the index is saved in
+	 */
+	private File log;
+
+	/**
+	 * Stream appending records to the log
+	 */
+	private DataOutputStream out;
+
+	/**
+	 * The number of records in the log
+	 */
+	private int records;
+
+	/**
+	 * The entries by path relative to the storage location, sorted so a
+	 * directory comes right before everything in it
+	 */
+	private TreeMap<String, Entry> entries;
+
+	/**
+	 * Makes content hashes one file at a time in the background
+	 */
+	private ExecutorService hasher;
+
+	/**
+	 * The keys of the files waiting to be hashed
+	 */
+	private HashSet<String> hashing;
+
+	/**
+	 * Loads the index of the given storage location from the log, reading the
+	 * storage location if there is no log.
+	 * @param root
+	 *     The storage location to index
+	 * @param log
+	 *     The file the index is saved in
+	 * @throws IOException
+	 *     If the log could not be read or written
+	 */
+	HostIndex(File root, File log) throws IOException
+	{
+		this.root = root.toPath().toAbsolutePath().normalize();
+		this.log = log;
+		entries = new TreeMap<>();
+		hashing = new HashSet<>();
+		hasher = Executors.newSingleThreadExecutor(task->
+		{
+			Thread thread = new Thread(task, "Index hasher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		boolean saved = log.isFile();
+		if(saved)
+		{
+			replay();
+		}
+		else
+		{
+			scan();
+		}
+
+		if(!saved || isOutOfDate())
+		{
+			compact();
+		}
+		else
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+		}
+	}
+
+	/**
+	 * Returns the entry of the given file.
+	 * @param f
+	 *     The file in the storage location
+	 * @return The entry or null if the file does not exist
+	 */
+	synchronized Entry get(File f)
+	{
+		String key = getKey(f);
+		return null == key ? null : entries.get(key);
+	}
+
+	/**
+	 * Returns every entry in the given directory and the directories in it. A
+	 * directory comes right before the entries in it.
+	 * @param directory
+	 *     The directory in the storage location
+	 * @return The entries by path relative to the storage location
+	 */
+	synchronized TreeMap<String, Entry> list(File directory)
+	{
+		String key = getKey(directory);
+		if(null == key)
+		{
+			return new TreeMap<>();
+		}
+
+		// Every path in the directory starts with the directory and a separator
+		SortedMap<String, Entry> in = key.isEmpty() ? entries : entries.subMap(key + File.separatorChar, key + (char) (File.separatorChar + 1));
+		return new TreeMap<>(in);
+	}
+
+	/**
+	 * Reads the given file again after it was received or created along with any
+	 * directories it is in that are not in the index yet.
+	 * @param f
+	 *     The file that changed
+	 * @throws IOException
+	 *     If the change could not be saved
+	 */
+	synchronized void update(File f) throws IOException
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		if(!path.startsWith(root) || path.equals(root))
+		{
+			return;
+		}
+
+		// Directories made along with the file need to be added first
+		Path parent = path.getParent();
+		if(!parent.equals(root) && !entries.containsKey(root.relativize(parent).toString()))
+		{
+			update(parent.toFile());
+		}
+
+		String key = root.relativize(path).toString();
+		Entry entry = read(path);
+		if(null == entry)
+		{
+			if(null != entries.remove(key))
+			{
+				append(REMOVE, key, null);
+			}
+		}
+		else
+		{
+			entries.put(key, entry);
+			append(PUT, key, entry);
+		}
+		out.flush();
+		compactIfNeeded();
+	}
+
+	/**
+	 * Returns the content hash of the given file if it was already made. If not,
+	 * the file is hashed in the background so the hash is known next time.
+	 * @param f
+	 *     The file in the storage location
+	 * @return The SHA-256 hash of the file or null if not made yet
+	 */
+	synchronized byte[] getKnownHash(File f)
+	{
+		String key = getKey(f);
+		Entry entry = null == key ? null : entries.get(key);
+		if(null == entry || entry.directory)
+		{
+			return null;
+		}
+
+		if(null == entry.hash && hashing.add(key))
+		{
+			hasher.execute(()->
+			{
+				try
+				{
+					getHash(f);
+				}
+				catch(IOException e)
+				{
+					// Hashed again the next time it is asked for
+					e.printStackTrace();
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					synchronized(this)
+					{
+						hashing.remove(key);
+					}
+				}
+			});
+		}
+
+		return entry.hash;
+	}
+
+	/**
+	 * Returns the content hash of the given file. The hash is made the first time
+	 * it is needed and kept until the file changes. Reads the whole file if it was
+	 * not hashed yet.
+	 * @param f
+	 *     The file in the storage location
+	 * @return The SHA-256 hash of the file or null if it is not a file
+	 * @throws IOException
+	 *     If the file could not be read or the hash could not be saved
+	 * @throws InterruptedException
+	 *     If interrupted while waiting for a buffer
+	 */
+	private byte[] getHash(File f) throws IOException, InterruptedException
+	{
+		Entry entry = get(f);
+		if(null == entry || entry.directory)
+		{
+			return null;
+		}
+		if(null != entry.hash)
+		{
+			return entry.hash;
+		}
+
+		// Hash without holding the lock, the entry is replaced if the file changed meanwhile
+		MessageDigest digest = TransferCheckpoint.createDigest();
+		try(FileInputStream in = new FileInputStream(f))
+		{
+			TransferCheckpoint.hash(in.getChannel(), 0, entry.fileSize, digest);
+		}
+		byte[] hash = digest.digest();
+
+		synchronized(this)
+		{
+			String key = getKey(f);
+			if(entries.get(key) == entry)
+			{
+				Entry hashed = new Entry(false, entry.fileSize, entry.fileDate, hash);
+				entries.put(key, hashed);
+				append(PUT, key, hashed);
+				out.flush();
+				compactIfNeeded();
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Returns the path of the file relative to the storage location used as the
+	 * key of its entry.
+	 * @param f
+	 *     The file
+	 * @return The key or null if the file is not in the storage location
+	 */
+	private String getKey(File f)
+	{
+		Path path = f.toPath().toAbsolutePath().normalize();
+		return path.startsWith(root) ? root.relativize(path).toString() : null;
+	}
+
+	/**
+	 * Creates the entry for the given file.
+	 * @param path
+	 *     The file to read
+	 * @return The entry or null if the file does not exist or is left out of
+	 *     backups
+	 */
+	private static Entry read(Path path)
+	{
+		try
+		{
+			if(Files.isHidden(path))
+			{
+				return null;
+			}
+
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if(attributes.isDirectory() || attributes.isRegularFile())
+			{
+				return new Entry(attributes.isDirectory(), attributes.isDirectory() ? 0 : attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+			}
+		}
+		catch(IOException e)
+		{
+			// File does not exist or cannot be read
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads every record in the log. The log is cut off at the first record that
+	 * is not complete.
+	 * @throws IOException
+	 */
+	private void replay() throws IOException
+	{
+		long valid = 0;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log))))
+		{
+			CRC32 crc = new CRC32();
+			while(true)
+			{
+				int length = in.readInt();
+				if(length <= 0 || length > 1024 * 1024)
+				{
+					break;
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body);
+				if((int) crc.getValue() != in.readInt())
+				{
+					break;
+				}
+
+				apply(body);
+				valid += 2 * Integer.BYTES + length;
+				records++;
+			}
+		}
+		catch(EOFException e)
+		{
+			// End of log or a record that was not finished
+		}
+
+		if(valid < log.length())
+		{
+			try(RandomAccessFile cut = new RandomAccessFile(log, "rw"))
+			{
+				cut.setLength(valid);
+			}
+		}
+	}
+
+	/**
+	 * Applies one record from the log to the entries.
+	 * @param body
+	 *     The record without its length and checksum
+	 * @throws IOException
+	 *     If the record is not valid
+	 */
+	private void apply(byte[] body) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte op = in.readByte();
+		byte[] keyBytes = new byte[in.readInt()];
+		in.readFully(keyBytes);
+		String key = new String(keyBytes, StandardCharsets.UTF_8);
+		if(REMOVE == op)
+		{
+			entries.remove(key);
+			return;
+		}
+
+		boolean directory = DIRECTORY == in.readByte();
+		long fileSize = in.readLong();
+		long fileDate = in.readLong();
+		byte[] hash = null;
+		int hashLength = in.readByte();
+		if(hashLength > 0)
+		{
+			hash = new byte[hashLength];
+			in.readFully(hash);
+		}
+		entries.put(key, new Entry(directory, fileSize, fileDate, hash));
+	}
+
+	/**
+	 * Reads the whole storage location to create the entries and saves them.
+	 * @throws IOException
+	 */
+	private void scan() throws IOException
+	{
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+			{
+				if(dir.equals(root))
+				{
+					return FileVisitResult.CONTINUE;
+				}
+				if(Files.isHidden(dir))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				entries.put(root.relativize(dir).toString(), new Entry(true, 0, attributes.lastModifiedTime().toMillis(), null));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+			{
+				if(attributes.isRegularFile() && !Files.isHidden(file))
+				{
+					entries.put(root.relativize(file).toString(), new Entry(false, attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				// Leave out anything that cannot be read
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Returns whether most of the records in the log are out of date.
+	 * @return True if the log should be rewritten
+	 */
+	private boolean isOutOfDate()
+	{
+		return records >= MIN_COMPACT_RECORDS && records > 2 * entries.size();
+	}
+
+	/**
+	 * Rewrites the log if most of its records are out of date.
+	 * @throws IOException
+	 */
+	private void compactIfNeeded() throws IOException
+	{
+		if(isOutOfDate())
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the current entries. The new log is written to a
+	 * temp file first so the old log is kept if the host stops while writing.
+	 * @throws IOException
+	 */
+	private void compact() throws IOException
+	{
+		if(null != out)
+		{
+			out.close();
+		}
+
+		File temp = new File(log.getPath() + ".temp");
+		FileOutputStream tempOut = new FileOutputStream(temp);
+		out = new DataOutputStream(new BufferedOutputStream(tempOut));
+		records = 0;
+		for(Map.Entry<String, Entry> entry : entries.entrySet())
+		{
+			append(PUT, entry.getKey(), entry.getValue());
+		}
+		out.flush();
+		tempOut.getFD().sync();
+		out.close();
+		Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+	}
+
+	/**
+	 * Appends a record to the log.
+	 * @param op
+	 *     PUT or REMOVE
+	 * @param key
+	 *     The path of the entry
+	 * @param entry
+	 *     The entry to put, null to remove
+	 * @throws IOException
+	 */
+	private void append(byte op, String key, Entry entry) throws IOException
+	{
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + keyBytes.length);
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeByte(op);
+		body.writeInt(keyBytes.length);
+		body.write(keyBytes);
+		if(PUT == op)
+		{
+			body.writeByte(entry.directory ? DIRECTORY : FILE);
+			body.writeLong(entry.fileSize);
+			body.writeLong(entry.fileDate);
+			body.writeByte(null == entry.hash ? 0 : entry.hash.length);
+			if(null != entry.hash)
+			{
+				body.write(entry.hash);
+			}
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+		out.writeInt((int) crc.getValue());
+		records++;
+	}
+
+	/**
+	 * The type, size, date last modified and content hash of an indexed file.
+	 */
+	static class Entry
+	{
+		/**
+		 * True if the entry is a directory
+		 */
+		private final boolean directory;
+
+		/**
+		 * The size of the file in bytes, 0 for directories
+		 */
+		private final long fileSize;
+
+		/**
+		 * The date the file was last modified
+		 */
+		private final long fileDate;
+
+		/**
+		 * The SHA-256 hash of the file, null if not made yet
+		 */
+		private final byte[] hash;
+
+		/**
+		 * Creates an entry.
+		 * @param directory
+		 *     True if the entry is a directory
+		 * @param fileSize
+		 *     The size of the file
+		 * @param fileDate
+		 *     The date the file was last modified
+		 * @param hash
+		 *     The content hash or null if not known
+		 */
+		private Entry(boolean directory, long fileSize, long fileDate, byte[] hash)
+		{
+			this.directory = directory;
+			this.fileSize = fileSize;
+			this.fileDate = fileDate;
+			this.hash = hash;
+		}
+
+		/**
+		 * Returns whether the entry is a directory.
+		 * @return True if a directory
+		 */
+		boolean isDirectory()
+		{
+			return directory;
+		}
+
+		/**
+		 * Returns the size of the file.
+		 * @return The size in bytes
+		 */
+		long getFileSize()
+		{
+			return fileSize;
+		}
+
+		/**
+		 * Returns the date the file was last modified.
+		 * @return The date last modified
+		 */
+		long getFileDate()
+		{
+			return fileDate;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package networkBackup;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import communications.Command;
+import communications.CommunicationHelp;
+import communications.Packet;
+import communications.RecordCipher;
+
+/**
+ * A connection or multiplexed stream to the host along with the record ciphers
+ * and packets used for requests on it. Only one request is made on a session at
+ * a time. A session that failed in the middle of a request is out of step with
+ * the host and is never used again.
+ *
+ * @author JoelNeppel
+ *
+ */
+class HostSession
+{
+	/**
+	 * The connection or stream to the host
+	 */
+	private Socket comms;
+
+	/**
+	 * The record cipher to encrypt sent files with, null if unencrypted
+	 */
+	private RecordCipher encrypt;
+
+	/**
+	 * The record cipher to decrypt received files with, null if unencrypted
+	 */
+	private RecordCipher decrypt;
+
+	/**
+	 * Packet reused for every request sent to the host
+	 */
+	private Packet request;
+
+	/**
+	 * Packet reused for every response received from the host
+	 */
+	private Packet response;
+
+	/**
+	 * Opens another session like this one, null if a new connection is needed
+	 */
+	private Opener opener;
+
+	/**
+	 * True once a request failed part way through
+	 */
+	private volatile boolean broken;
+
+	/**
+	 * Creates a session on the given connection.
+	 * @param comms
+	 *     The connection to the host
+	 * @param encrypt
+	 *     The record cipher to encrypt sent files with, null if unencrypted
+	 * @param decrypt
+	 *     The record cipher to decrypt received files with, null if unencrypted
+	 */
+	HostSession(Socket comms, RecordCipher encrypt, RecordCipher decrypt)
+	{
+		this(comms, encrypt, decrypt, null);
+	}
+
+	/**
+	 * Creates a session on the given connection or stream.
+	 * @param comms
+	 *     The connection or stream to the host
+	 * @param encrypt
+	 *     The record cipher to encrypt sent files with, null if unencrypted
+	 * @param decrypt
+	 *     The record cipher to decrypt received files with, null if unencrypted
+	 * @param opener
+	 *     Opens another session like this one, null if a new connection is needed
+	 */
+	HostSession(Socket comms, RecordCipher encrypt, RecordCipher decrypt, Opener opener)
+	{
+		this.comms = comms;
+		this.encrypt = encrypt;
+		this.decrypt = decrypt;
+		this.opener = opener;
+		broken = false;
+		request = new Packet();
+		response = new Packet();
+	}
+
+	/**
+	 * Returns the connection or stream to the host.
+	 * @return The socket for the session
+	 */
+	Socket getComms()
+	{
+		return comms;
+	}
+
+	/**
+	 * Returns the record cipher to encrypt sent files with.
+	 * @return The cipher or null if unencrypted
+	 */
+	RecordCipher getEncrypt()
+	{
+		return encrypt;
+	}
+
+	/**
+	 * Returns the record cipher to decrypt received files with.
+	 * @return The cipher or null if unencrypted
+	 */
+	RecordCipher getDecrypt()
+	{
+		return decrypt;
+	}
+
+	/**
+	 * Returns the packet reused for requests.
+	 * @return The request packet
+	 */
+	Packet getRequest()
+	{
+		return request;
+	}
+
+	/**
+	 * Returns the packet reused for responses.
+	 * @return The response packet
+	 */
+	Packet getResponse()
+	{
+		return response;
+	}
+
+	/**
+	 * Marks the session as out of step with the host after a request failed part
+	 * way through.
+	 */
+	void fail()
+	{
+		broken = true;
+	}
+
+	/**
+	 * Returns whether a request failed part way through on the session.
+	 * @return True if the session cannot be used again
+	 */
+	boolean isBroken()
+	{
+		return broken;
+	}
+
+	/**
+	 * Opens another session to replace this one.
+	 * @return The new session, null if a new connection is needed instead
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	HostSession reopen() throws IOException, GeneralSecurityException
+	{
+		return null == opener ? null : opener.open();
+	}
+
+	/**
+	 * Tells the host the session is done and closes it. A broken session is
+	 * closed without telling the host since it would not read the request.
+	 * @throws IOException
+	 */
+	void close() throws IOException
+	{
+		if(!broken)
+		{
+			CommunicationHelp.forceSendPacket(new Packet(Command.CLOSE), comms);
+		}
+		comms.close();
+	}
+
+	/**
+	 * Opens a new session.
+	 */
+	interface Opener
+	{
+		/**
+		 * Opens the session.
+		 * @return The new session
+		 * @throws IOException
+		 * @throws GeneralSecurityException
+		 */
+		HostSession open() throws IOException, GeneralSecurityException;
+	}
+}
@@ -2,11 +2,15 @@ package networkBackup;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -14,7 +18,18 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -23,9 +38,18 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
+import communications.ByteHelp;
 import communications.Command;
 import communications.CommunicationHelp;
+import communications.DeltaSync;
+import communications.FileListing;
+import communications.HashCache;
 import communications.Packet;
+import communications.RangeCheckpoint;
+import communications.RecordCipher;
+import communications.StatusBatch;
+import communications.StreamMultiplexer;
+import communications.TransferCheckpoint;
 import exceptions.ItemNotFoundException;
 import exceptions.SystemErrorException;
 import fileBackup.BackupInitilizer;
@@ -33,6 +57,7 @@ import fileBackup.BackupPreparer;
 import fileBackup.FileChecker;
 import fileUsage.BackupItem;
 import fileUsage.FileStatus;
+import fileUsage.HashTree;
 import fileUsage.SystemFileReader;
 import lists.SinglyLinkedList;
 
@@ -42,13 +67,91 @@ import lists.SinglyLinkedList;
  */
 public class NetworkBackup extends FileChecker implements BackupPreparer, BackupInitilizer
 {
+	/**
+	 * The most files to request the status of in a single batch
+	 */
+	private static final int BATCH_SIZE = 4096;
+
+	/**
+	 * The smallest file to send in ranges over several sessions at once
+	 */
+	private static final long RANGE_MIN_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * The number of bytes in each range of a file sent in ranges
+	 */
+	private static final long RANGE_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * The most idle sessions to borrow to send one file in ranges
+	 */
+	private static final int MAX_RANGE_HELPERS = 3;
+
+	/**
+	 * How long to wait for an idle session before checking if any are left
+	 */
+	private static final long IDLE_WAIT = 1000;
+
 	String name;
 
-	private Socket comms;
+	/**
+	 * The settings the connections were opened with, used to replace broken ones
+	 */
+	private SystemFileReader settings;
+
+	/**
+	 * The number of sessions for transfers that are open, idle or not
+	 */
+	private AtomicInteger numSessions;
 
-	private Cipher encrypt;
+	/**
+	 * Every connection to the host in the pool, the first carries the control
+	 * session
+	 */
+	private SinglyLinkedList<Socket> connections;
 
-	private Cipher decrypt;
+	/**
+	 * The multiplexers of the connections that carry streams
+	 */
+	private SinglyLinkedList<StreamMultiplexer> multiplexers;
+
+	/**
+	 * Session used for status checks, directories and file lists, used by one
+	 * thread at a time
+	 */
+	private HostSession control;
+
+	/**
+	 * Runs file transfers on the idle sessions, null to make transfers on the
+	 * control session as they are requested
+	 */
+	private ExecutorService transfers;
+
+	/**
+	 * Sessions on every connection waiting for a file transfer
+	 */
+	private LinkedBlockingQueue<HostSession> idle;
+
+	/**
+	 * Sends ranges of large files on borrowed idle sessions, null when there are
+	 * no sessions to borrow
+	 */
+	private ExecutorService ranges;
+
+	/**
+	 * A file transfer made on a session
+	 */
+	private interface Transfer
+	{
+		/**
+		 * Makes the transfer on the given session.
+		 * @param session
+		 *     The session to use
+		 * @return True if the transfer was successful, false otherwise
+		 * @throws InterruptedException
+		 */
+		boolean run(HostSession session) throws InterruptedException;
+	}
 
 	@Override
 	public void initilize(LinkedList<String> got)
@@ -59,111 +162,321 @@ public class NetworkBackup extends FileChecker implements BackupPreparer, Backup
 	@Override
 	public void setUp()
 	{
+		connections = new SinglyLinkedList<>();
+		multiplexers = new SinglyLinkedList<>();
+		idle = new LinkedBlockingQueue<>();
 		try
 		{
 			// Get settings
-			SystemFileReader settings = new SystemFileReader("NetworkBackupSettings\\" + name + ".txt");
+			settings = new SystemFileReader("NetworkBackupSettings\\" + name + ".txt");
 
-			// Connect to host
-			try
-			{
-				comms = new Socket(settings.get("Host"), Integer.parseInt(settings.get("Port")));
-			}
-			catch(ItemNotFoundException e)
+			// Open every connection in the pool, each one is authenticated separately
+			int numConnections = Math.max(1, getNumber(settings, "Connections"));
+			for(int i = 0; i < numConnections; i++)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				connect(settings);
 			}
-
-			// Share AES cipher with host to securely send files
-			// Get Host RSA public key and create cipher
-			File encodedKey = new File("RSAPublicEncodedKey");
-			FileInputStream in = new FileInputStream(encodedKey);
-			byte[] read = new byte[(int) encodedKey.length()];
-			in.read(read);
-			in.close();
-			X509EncodedKeySpec spec = new X509EncodedKeySpec(read);
-			KeyFactory kf = KeyFactory.getInstance("RSA");
-			PublicKey publicKey = kf.generatePublic(spec);
-			Cipher publicHost = Cipher.getInstance("RSA");
-			publicHost.init(Cipher.WRAP_MODE, publicKey);
-			// Create AES key to share with host
-			KeyGenerator keygen = KeyGenerator.getInstance("AES");
-			keygen.init(128);
-			SecretKey aeskey = keygen.generateKey();
-			// Create cipher using AES key
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			cipher.init(Cipher.WRAP_MODE, aeskey);
-			// Send host 16 byte cipher IV, wrapped key length, and wrapped key
-			byte[] wrappedKey = publicHost.wrap(aeskey); // Wrap using host's public key
-			ByteBuffer buffer = ByteBuffer.allocate(16 + Integer.BYTES + wrappedKey.length);
-			buffer.put(cipher.getIV());
-			buffer.putInt(wrappedKey.length);
-			buffer.put(wrappedKey);
-			OutputStream out = comms.getOutputStream();
-			out.write(buffer.array());
-
-			// Create encryption and decryption cipher using shared AES key and IV
-			encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			encrypt.init(Cipher.ENCRYPT_MODE, aeskey, cipher.getParameters());
-			decrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
-			decrypt.init(Cipher.DECRYPT_MODE, aeskey, cipher.getParameters());
-
-			// Send host AES encrypted username and password for login
-			byte[] username = encrypt.doFinal(settings.get("Username").getBytes());
-			byte[] password = encrypt.doFinal(settings.get("Password").getBytes());
-			buffer = ByteBuffer.allocate(2 * Integer.BYTES + username.length + password.length);
-			buffer.putInt(username.length);
-			buffer.put(username);
-			buffer.putInt(password.length);
-			buffer.put(password);
-			out.write(buffer.array());
 		}
 		catch(IOException | NoSuchAlgorithmException | IllegalBlockSizeException | BadPaddingException | ItemNotFoundException | InvalidKeyException | InvalidAlgorithmParameterException
 				| NoSuchPaddingException | InvalidKeySpecException e)
 		{
 			// TODO clean up this mess
 		}
+
+		// Transfers only run on their own when there are sessions besides the control session
+		numSessions = new AtomicInteger(idle.size());
+		if(!idle.isEmpty())
+		{
+			transfers = Executors.newFixedThreadPool(idle.size());
+			ranges = Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Opens and authenticates a new connection to the host and adds its sessions
+	 * to the pool. The first session opened is used as the control session.
+	 * @param settings
+	 *     The settings for the host
+	 * @throws IOException
+	 * @throws ItemNotFoundException
+	 *     If a required setting is missing
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws InvalidKeySpecException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	private void connect(SystemFileReader settings) throws IOException, ItemNotFoundException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+			InvalidKeySpecException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException
+	{
+		// Connect to host
+		// Socket is created from a channel so files can be transferred directly
+		Socket comms = SocketChannel.open(new InetSocketAddress(settings.get("Host"), Integer.parseInt(settings.get("Port")))).socket();
+		connections.add(comms);
+
+		// Share AES cipher with host to securely send files
+		// Get Host RSA public key and create cipher
+		File encodedKey = new File("RSAPublicEncodedKey");
+		FileInputStream in = new FileInputStream(encodedKey);
+		byte[] read = new byte[(int) encodedKey.length()];
+		in.read(read);
+		in.close();
+		X509EncodedKeySpec spec = new X509EncodedKeySpec(read);
+		KeyFactory kf = KeyFactory.getInstance("RSA");
+		PublicKey publicKey = kf.generatePublic(spec);
+		Cipher publicHost = Cipher.getInstance("RSA");
+		publicHost.init(Cipher.WRAP_MODE, publicKey);
+		// Create AES key to share with host
+		KeyGenerator keygen = KeyGenerator.getInstance("AES");
+		keygen.init(128);
+		SecretKey aeskey = keygen.generateKey();
+		// Create cipher using AES key
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.WRAP_MODE, aeskey);
+		// Send host 16 byte cipher IV, wrapped key length, and wrapped key
+		byte[] wrappedKey = publicHost.wrap(aeskey); // Wrap using host's public key
+		ByteBuffer buffer = ByteBuffer.allocate(16 + Integer.BYTES + wrappedKey.length);
+		buffer.put(cipher.getIV());
+		buffer.putInt(wrappedKey.length);
+		buffer.put(wrappedKey);
+		OutputStream out = comms.getOutputStream();
+		out.write(buffer.array());
+
+		// Create login cipher using shared AES key and IV
+		Cipher login = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		login.init(Cipher.ENCRYPT_MODE, aeskey, cipher.getParameters());
+
+		// Send host AES encrypted username and password for login
+		byte[] username = login.doFinal(settings.get("Username").getBytes());
+		byte[] password = login.doFinal(settings.get("Password").getBytes());
+		buffer = ByteBuffer.allocate(2 * Integer.BYTES + username.length + password.length);
+		buffer.putInt(username.length);
+		buffer.put(username);
+		buffer.putInt(password.length);
+		buffer.put(password);
+		out.write(buffer.array());
+
+		// Request the transfer options and use the ones the host allows
+		byte options = 0;
+		if(isEnabled(settings, "Plaintext Transfers"))
+		{
+			options |= CommunicationHelp.PLAINTEXT_TRANSFER;
+		}
+		if(isEnabled(settings, "Compression"))
+		{
+			options |= CommunicationHelp.DEFLATE_COMPRESSION;
+		}
+		int numStreams = getNumber(settings, "Streams");
+		if(numStreams > 0)
+		{
+			options |= CommunicationHelp.MULTIPLEXED_STREAMS;
+		}
+		out.write(options);
+		int got = comms.getInputStream().read();
+		if(-1 != got && 0 != (got & ~options & 0xFF))
+		{
+			// The reply is not authenticated, an option that was not requested means it was changed
+			comms.close();
+			throw new IOException("Host allowed transfer options that were not requested.");
+		}
+		byte allowed = -1 == got ? 0 : (byte) (got & options);
+
+		if(0 != (allowed & CommunicationHelp.MULTIPLEXED_STREAMS))
+		{
+			// Transfers are made on their own streams so small files are not held up by large ones
+			StreamMultiplexer streams = new StreamMultiplexer(comms, true);
+			multiplexers.add(streams);
+			if(null == control)
+			{
+				control = openStream(streams, aeskey, allowed);
+			}
+			for(int i = 0; i < numStreams; i++)
+			{
+				idle.add(openStream(streams, aeskey, allowed));
+			}
+		}
+		else
+		{
+			// Derive a separate key for each direction to encrypt files with
+			RecordCipher encrypt = RecordCipher.create(aeskey, RecordCipher.CLIENT_TO_HOST, Cipher.ENCRYPT_MODE, allowed);
+			RecordCipher decrypt = RecordCipher.create(aeskey, RecordCipher.HOST_TO_CLIENT, Cipher.DECRYPT_MODE, allowed);
+			HostSession session = new HostSession(comms, encrypt, decrypt);
+			if(null == control)
+			{
+				control = session;
+			}
+			else
+			{
+				idle.add(session);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given setting is set to true.
+	 * @param settings
+	 *     The settings to check
+	 * @param key
+	 *     The key for the setting
+	 * @return True if the setting is true, false if it is not or is not set
+	 */
+	private static boolean isEnabled(SystemFileReader settings, String key)
+	{
+		try
+		{
+			return Boolean.parseBoolean(settings.get(key));
+		}
+		catch(ItemNotFoundException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the given setting as a number.
+	 * @param settings
+	 *     The settings to check
+	 * @param key
+	 *     The key for the setting
+	 * @return The number or 0 if it is not a number or is not set
+	 */
+	private static int getNumber(SystemFileReader settings, String key)
+	{
+		try
+		{
+			return Integer.parseInt(settings.get(key));
+		}
+		catch(ItemNotFoundException | NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Opens a new stream to the host with its own record ciphers.
+	 * @param streams
+	 *     The multiplexer of the connection to open the stream on
+	 * @param aeskey
+	 *     The key shared with the host
+	 * @param options
+	 *     The transfer options the host allowed
+	 * @return The session for the stream
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 */
+	private static HostSession openStream(StreamMultiplexer streams, SecretKey aeskey, byte options) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException
+	{
+		StreamMultiplexer.Stream stream = streams.openStream();
+		// Each stream has its own keys so records on different streams never share a nonce
+		RecordCipher encrypt = RecordCipher.create(aeskey, RecordCipher.CLIENT_TO_HOST + " " + stream.getId(), Cipher.ENCRYPT_MODE, options);
+		RecordCipher decrypt = RecordCipher.create(aeskey, RecordCipher.HOST_TO_CLIENT + " " + stream.getId(), Cipher.DECRYPT_MODE, options);
+		return new HostSession(stream, encrypt, decrypt, ()->openStream(streams, aeskey, options));
 	}
 
 	@Override
 	public void tearDown()
 	{
-		if(null != comms)
+		try
 		{
-			try
+			if(null != transfers)
+			{
+				// Let every requested transfer finish before closing
+				transfers.shutdown();
+				try
+				{
+					transfers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				}
+				catch(InterruptedException e)
+				{
+					transfers.shutdownNow();
+				}
+				ranges.shutdown();
+			}
+
+			if(null != idle)
 			{
-				CommunicationHelp.forceSendPacket(new Packet(Command.CLOSE), comms);
-				comms.close();
-				comms = null;
+				for(HostSession session : idle)
+				{
+					session.close();
+				}
 			}
-			catch(IOException e)
+
+			if(null != control)
+			{
+				control.close();
+			}
+
+			if(null != connections)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				for(StreamMultiplexer streams : multiplexers)
+				{
+					streams.close();
+				}
+				for(Socket comms : connections)
+				{
+					comms.close();
+				}
 			}
 		}
+		catch(IOException e)
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
 
-		encrypt = null;
-		decrypt = null;
+		connections = null;
+		multiplexers = null;
+		control = null;
+		transfers = null;
+		ranges = null;
+		idle = null;
 	}
 
 	@Override
 	public boolean checkSystemReady()
 	{
-		// True only if the socket is connected and not closed
-		return null != comms && comms.isConnected() && !comms.isClosed();
+		// True only if the control session is connected and not closed
+		return null != control && control.getComms().isConnected() && !control.getComms().isClosed();
 	}
 
 	@Override
 	public FileStatus getStatus(BackupItem head, File check) throws InterruptedException, SystemErrorException
 	{
+		return getStatus(head, check, check.lastModified());
+	}
+
+	@Override
+	public FileStatus getStatus(BackupItem head, File check, BasicFileAttributes attributes) throws InterruptedException, SystemErrorException
+	{
+		return getStatus(head, check, attributes.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Requests the status of the file from the host.
+	 * @param head
+	 *     The backup item the file is in
+	 * @param check
+	 *     The file to check the status of
+	 * @param fileDate
+	 *     The date the file was last modified
+	 * @return The status of the file on the host, null if it could not be checked
+	 * @throws InterruptedException
+	 */
+	private synchronized FileStatus getStatus(BackupItem head, File check, long fileDate) throws InterruptedException
+	{
+		Socket comms = control.getComms();
+		Packet request = control.getRequest();
+		Packet response = control.getResponse();
+
 		try
 		{
-			Packet send = new Packet(Command.GET_STATUS, check.lastModified(), head.getPathToSend(check));
-			CommunicationHelp.sendPacket(send, comms);
-			Packet got = CommunicationHelp.receivePacket(comms);
-			return got.getStatus();
+			request.set(Command.GET_STATUS, FileStatus.UNKNOWN, fileDate, head.getPathToSend(check));
+			CommunicationHelp.sendPacket(request, comms);
+			return CommunicationHelp.receivePacket(comms, response).getStatus();
 		}
 		catch(IOException e)
 		{
@@ -174,13 +487,44 @@ public class NetworkBackup extends FileChecker implements BackupPreparer, Backup
 	}
 
 	@Override
-	public boolean createDirectory(BackupItem head, File directory) throws InterruptedException, SystemErrorException
+	public synchronized FileStatus[] getStatus(BackupItem head, File[] check, BasicFileAttributes[] attributes, long[] peerDates) throws InterruptedException, SystemErrorException
 	{
-		Packet got = new Packet();
+		Socket comms = control.getComms();
+		Packet request = control.getRequest();
+		Packet response = control.getResponse();
+
+		FileStatus[] statuses = new FileStatus[check.length];
 		try
 		{
-			CommunicationHelp.sendPacket(new Packet(Command.CREATE_DIRECTORY, head.getPathToSend(directory)), comms);
-			got = CommunicationHelp.receivePacket(comms);
+			// Split into multiple batches to limit the size of each frame
+			for(int start = 0; start < check.length; start += BATCH_SIZE)
+			{
+				int end = Math.min(check.length, start + BATCH_SIZE);
+				StatusBatch batch = new StatusBatch(end - start);
+				for(int i = start; i < end; i++)
+				{
+					// The hash lets the host tell apart files whose dates are too close
+					batch.add(head.getPathToSend(check[i]), attributes[i].lastModifiedTime().toMillis(), attributes[i].size(), HashCache.get(check[i], attributes[i]));
+				}
+
+				CommunicationHelp.sendPacket(request.set(Command.BATCH_STATUS, FileStatus.UNKNOWN, 0, null), comms);
+				CommunicationHelp.sendFrame(batch.byteData(), comms);
+				if(CommunicationHelp.receivePacket(comms, response).getCmd() != Command.BATCH_STATUS)
+				{
+					return statuses;
+				}
+
+				// One status for each file followed by the date of each file on the host
+				ByteBuffer packed = ByteBuffer.wrap(CommunicationHelp.receiveFrame(comms));
+				for(int i = start; i < end; i++)
+				{
+					statuses[i] = FileStatus.byteToStatus(packed.get());
+				}
+				for(int i = start; i < end && packed.remaining() >= Long.BYTES; i++)
+				{
+					peerDates[i] = packed.getLong();
+				}
+			}
 		}
 		catch(IOException e)
 		{
@@ -188,99 +532,593 @@ public class NetworkBackup extends FileChecker implements BackupPreparer, Backup
 			e.printStackTrace();
 		}
 
-		return got.getCmd() == Command.SUCCESS;
+		return statuses;
+	}
+
+	@Override
+	public synchronized boolean createDirectory(BackupItem head, File directory) throws InterruptedException, SystemErrorException
+	{
+		Socket comms = control.getComms();
+		Packet request = control.getRequest();
+		Packet response = control.getResponse();
+
+		// Clear previous response in case nothing is received
+		response.setCommand(null);
+		try
+		{
+			CommunicationHelp.sendPacket(request.set(Command.CREATE_DIRECTORY, FileStatus.UNKNOWN, 0, head.getPathToSend(directory)), comms);
+			CommunicationHelp.receivePacket(comms, response);
+		}
+		catch(IOException e)
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return response.getCmd() == Command.SUCCESS;
+	}
+
+	@Override
+	public synchronized HashTree.Level getTreeLevel(BackupItem head, File directory) throws InterruptedException, SystemErrorException
+	{
+		Socket comms = control.getComms();
+
+		try
+		{
+			CommunicationHelp.sendPacket(control.getRequest().set(Command.GET_TREE, FileStatus.UNKNOWN, 0, head.getPathToSend(directory)), comms);
+			if(CommunicationHelp.receivePacket(comms, control.getResponse()).getCmd() == Command.GET_TREE)
+			{
+				return new HashTree.Level(CommunicationHelp.receiveFrame(comms));
+			}
+		}
+		catch(IOException e)
+		{
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+
+		return null;
 	}
 
 	@Override
 	public boolean getUpdatedFile(BackupItem head, File receive) throws InterruptedException, SystemErrorException
 	{
+		return await(getUpdatedFileAsync(head, receive));
+	}
+
+	@Override
+	public boolean sendUpdatedFile(BackupItem head, File send) throws InterruptedException, SystemErrorException
+	{
+		return await(sendUpdatedFileAsync(head, send));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> getUpdatedFileAsync(BackupItem head, File receive) throws InterruptedException, SystemErrorException
+	{
+		return submit(session->getUpdatedFile(session, head, receive));
+	}
+
+	@Override
+	public CompletableFuture<Boolean> sendUpdatedFileAsync(BackupItem head, File send) throws InterruptedException, SystemErrorException
+	{
+		return submit(session->sendUpdatedFile(session, head, send));
+	}
+
+	/**
+	 * Makes the transfer on the next idle session when transfers run on their own
+	 * streams, otherwise makes the transfer now on the control session.
+	 * @param transfer
+	 *     The transfer to make
+	 * @return The result of the transfer, completed once the transfer was made
+	 * @throws InterruptedException
+	 */
+	private CompletableFuture<Boolean> submit(Transfer transfer) throws InterruptedException
+	{
+		if(null == transfers)
+		{
+			synchronized(this)
+			{
+				return CompletableFuture.completedFuture(transfer.run(control));
+			}
+		}
+
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		transfers.execute(()->
+		{
+			try
+			{
+				HostSession session = takeSession();
+				if(null == session)
+				{
+					// Every transfer session broke and could not be replaced
+					synchronized(this)
+					{
+						result.complete(transfer.run(control));
+					}
+					return;
+				}
+
+				try
+				{
+					result.complete(transfer.run(session));
+				}
+				finally
+				{
+					release(session);
+				}
+			}
+			catch(InterruptedException e)
+			{
+				result.complete(false);
+				Thread.currentThread().interrupt();
+			}
+			catch(RuntimeException e)
+			{
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Waits for the next idle session.
+	 * @return The session, null if there are no sessions for transfers left
+	 * @throws InterruptedException
+	 */
+	private HostSession takeSession() throws InterruptedException
+	{
+		HostSession session = idle.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+		while(null == session && numSessions.get() > 0)
+		{
+			session = idle.poll(IDLE_WAIT, TimeUnit.MILLISECONDS);
+		}
+
+		return session;
+	}
+
+	/**
+	 * Puts the session back with the idle sessions once its transfer is done. A
+	 * broken session is closed and replaced with a new one instead, opened on the
+	 * same connection for streams or as a new connection otherwise.
+	 * @param session
+	 *     The session that is done
+	 */
+	private void release(HostSession session)
+	{
+		if(!session.isBroken())
+		{
+			idle.add(session);
+			return;
+		}
+
+		numSessions.decrementAndGet();
+		try
+		{
+			session.close();
+		}
+		catch(IOException e)
+		{
+			// Already closed by the failure
+		}
+
 		try
 		{
-			CommunicationHelp.sendPacket(new Packet(Command.SEND_FILE, head.getPathToSend(receive)), comms);
-			Packet got = CommunicationHelp.receivePacket(comms);
+			HostSession replacement = session.reopen();
+			if(null != replacement)
+			{
+				idle.add(replacement);
+			}
+			else
+			{
+				// Adds the session of the new connection to the idle sessions
+				synchronized(connections)
+				{
+					connect(settings);
+				}
+			}
+			numSessions.incrementAndGet();
+		}
+		catch(IOException | GeneralSecurityException | ItemNotFoundException e)
+		{
+			// Transfers go on with the sessions that are left
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Waits for the transfer to be made.
+	 * @param result
+	 *     The result of the transfer
+	 * @return True if the transfer was successful, false otherwise
+	 * @throws InterruptedException
+	 */
+	private static boolean await(CompletableFuture<Boolean> result) throws InterruptedException
+	{
+		try
+		{
+			return result.get();
+		}
+		catch(ExecutionException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the file from the host using the given session.
+	 * @param session
+	 *     The session to use
+	 * @param head
+	 *     The backup item the file is in
+	 * @param receive
+	 *     The file to copy to
+	 * @return True if the file was received, false otherwise
+	 * @throws InterruptedException
+	 */
+	private boolean getUpdatedFile(HostSession session, BackupItem head, File receive) throws InterruptedException
+	{
+		Socket comms = session.getComms();
+		Packet request = session.getRequest();
+		Packet response = session.getResponse();
+
+		try
+		{
+			// Send checkpoint of partial file from an earlier interrupted transfer to resume from
+			TransferCheckpoint checkpoint = TransferCheckpoint.load(receive);
+			CommunicationHelp.sendPacket(request.set(Command.SEND_FILE, FileStatus.UNKNOWN, 0, head.getPathToSend(receive)), comms);
+			CommunicationHelp.sendFrame(null == checkpoint ? new byte[0] : checkpoint.byteData(), comms);
+			Packet got = CommunicationHelp.receivePacket(comms, response);
 			if(got.getCmd() == Command.RECEIVE_FILE)
 			{
-				CommunicationHelp.receiveFile(receive, comms, decrypt);
+				CommunicationHelp.receiveFile(receive, comms, session.getDecrypt());
 				receive.setLastModified(got.getFileDate());
 				return true;
 			}
 		}
 		catch(IOException e)
 		{
-			// TODO
+			// The host may still be sending the rest of the file
+			session.fail();
 			e.printStackTrace();
 		}
 		return false;
 	}
 
-	@Override
-	public boolean sendUpdatedFile(BackupItem head, File send) throws InterruptedException, SystemErrorException
+	/**
+	 * Sends the file to the host using the given session.
+	 * @param session
+	 *     The session to use
+	 * @param head
+	 *     The backup item the file is in
+	 * @param send
+	 *     The file to send
+	 * @return True if the file was sent, false otherwise
+	 * @throws InterruptedException
+	 */
+	private boolean sendUpdatedFile(HostSession session, BackupItem head, File send) throws InterruptedException
 	{
+		Socket comms = session.getComms();
+		Packet request = session.getRequest();
+		Packet response = session.getResponse();
+
 		try
 		{
-			CommunicationHelp.sendPacket(new Packet(Command.RECEIVE_FILE, send.lastModified(), head.getPathToSend(send)), comms);
-			CommunicationHelp.sendFile(send, comms, encrypt);
-			Packet got = CommunicationHelp.receivePacket(comms);
-			return got.getCmd() == Command.SUCCESS;
+			// Only send the changes to large files the host already has
+			if(send.length() >= DeltaSync.MIN_SIZE && sendDelta(session, head, send))
+			{
+				return true;
+			}
+
+			long offset = getCommittedOffset(session, head, send);
+			// Split large files over idle sessions unless the host already has part of it
+			if(0 == offset && null != ranges && send.length() >= RANGE_MIN_SIZE)
+			{
+				return sendRanges(session, head, send);
+			}
+
+			CommunicationHelp.sendPacket(request.set(Command.RECEIVE_FILE, FileStatus.UNKNOWN, send.lastModified(), head.getPathToSend(send)), comms);
+			CommunicationHelp.sendFile(send, comms, session.getEncrypt(), offset);
+			return CommunicationHelp.receivePacket(comms, response).getCmd() == Command.SUCCESS;
 		}
 		catch(IOException e)
 		{
-			// TODO Auto-generated catch block
+			// The host may still be waiting for the rest of the file
+			session.fail();
 			e.printStackTrace();
 		}
 
 		return false;
 	}
 
+	/**
+	 * Sends the file in ranges over the given session and any idle sessions at
+	 * once. The host writes each range into a file of the full size and only
+	 * replaces its version once every range was received. The host keeps the
+	 * ranges it received from an interrupted transfer, so only the ranges it does
+	 * not have or that changed since are sent.
+	 * @param session
+	 *     The session to use
+	 * @param head
+	 *     The backup item the file is in
+	 * @param send
+	 *     The file to send
+	 * @return True if the file was sent, false otherwise
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean sendRanges(HostSession session, BackupItem head, File send) throws IOException, InterruptedException
+	{
+		Socket comms = session.getComms();
+		Packet request = session.getRequest();
+		Packet response = session.getResponse();
+		String path = head.getPathToSend(send);
+		long fileSize = send.length();
+		long fileDate = send.lastModified();
+
+		CommunicationHelp.sendPacket(request.set(Command.PREPARE_RANGES, FileStatus.UNKNOWN, 0, path), comms);
+		CommunicationHelp.sendFrame(ByteHelp.toBytes(fileSize), comms);
+		if(CommunicationHelp.receivePacket(comms, response).getCmd() != Command.SUCCESS)
+		{
+			return false;
+		}
+
+		// Only send the ranges the host does not already have
+		RangeCheckpoint received = new RangeCheckpoint(CommunicationHelp.receiveFrame(comms));
+		long[] positions = new long[(int) ((fileSize + RANGE_SIZE - 1) / RANGE_SIZE)];
+		int numPositions = 0;
+		for(long position = 0; position < fileSize; position += RANGE_SIZE)
+		{
+			if(received.getFileSize() != fileSize || !received.isReceived(send, position, Math.min(RANGE_SIZE, fileSize - position)))
+			{
+				positions[numPositions] = position;
+				numPositions++;
+			}
+		}
+		long[] missing = Arrays.copyOf(positions, numPositions);
+
+		// Borrow sessions that are not busy, never wait for one
+		AtomicInteger next = new AtomicInteger();
+		AtomicBoolean failed = new AtomicBoolean();
+		SinglyLinkedList<HostSession> helpers = new SinglyLinkedList<>();
+		SinglyLinkedList<Future<Boolean>> sent = new SinglyLinkedList<>();
+		HostSession helper = missing.length > 1 ? idle.poll() : null;
+		while(null != helper)
+		{
+			HostSession use = helper;
+			helpers.add(use);
+			sent.add(ranges.submit(()->sendRangesFrom(use, path, send, fileSize, missing, next, failed)));
+			helper = helpers.getSize() < Math.min(MAX_RANGE_HELPERS, missing.length - 1) ? idle.poll() : null;
+		}
+
+		boolean allSent = sendRangesFrom(session, path, send, fileSize, missing, next, failed);
+		try
+		{
+			for(Future<Boolean> result : sent)
+			{
+				allSent &= result.get();
+			}
+		}
+		catch(ExecutionException e)
+		{
+			allSent = false;
+		}
+		finally
+		{
+			for(HostSession use : helpers)
+			{
+				release(use);
+			}
+		}
+
+		if(!allSent)
+		{
+			// The host keeps the ranges it received for the next try
+			return false;
+		}
+
+		CommunicationHelp.sendPacket(request.set(Command.COMMIT_RANGES, FileStatus.UNKNOWN, fileDate, path), comms);
+		return CommunicationHelp.receivePacket(comms, response).getCmd() == Command.SUCCESS;
+	}
+
+	/**
+	 * Sends the next range of the file not taken by another session until every
+	 * range was taken or one failed.
+	 * @param session
+	 *     The session to send on
+	 * @param path
+	 *     The path of the file on the host
+	 * @param send
+	 *     The file to send
+	 * @param fileSize
+	 *     The size the host prepared for the file
+	 * @param missing
+	 *     The positions of the ranges the host does not have
+	 * @param next
+	 *     The index of the next range to send, shared by every session
+	 * @param failed
+	 *     Set when a range was not received, shared by every session
+	 * @return True if every range this session took was received, false otherwise
+	 * @throws InterruptedException
+	 */
+	private static boolean sendRangesFrom(HostSession session, String path, File send, long fileSize, long[] missing, AtomicInteger next, AtomicBoolean failed)
+			throws InterruptedException
+	{
+		Socket comms = session.getComms();
+		try
+		{
+			int index = next.getAndIncrement();
+			while(index < missing.length && !failed.get())
+			{
+				long position = missing[index];
+				CommunicationHelp.sendPacket(session.getRequest().set(Command.RECEIVE_RANGE, FileStatus.UNKNOWN, 0, path), comms);
+				CommunicationHelp.sendRange(send, comms, session.getEncrypt(), position, Math.min(RANGE_SIZE, fileSize - position));
+				if(CommunicationHelp.receivePacket(comms, session.getResponse()).getCmd() != Command.SUCCESS)
+				{
+					failed.set(true);
+					return false;
+				}
+				index = next.getAndIncrement();
+			}
+		}
+		catch(IOException e)
+		{
+			session.fail();
+			failed.set(true);
+			e.printStackTrace();
+			return false;
+		}
+
+		return !failed.get();
+	}
+
+	/**
+	 * Returns how much of the file the host already received in an earlier
+	 * interrupted transfer. The host's checkpoint is only used if this file still
+	 * starts with the same bytes.
+	 * @param session
+	 *     The session to use
+	 * @param head
+	 *     The backup item the file is in
+	 * @param send
+	 *     The file to send
+	 * @return The offset to send the file from, 0 to send the whole file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private long getCommittedOffset(HostSession session, BackupItem head, File send) throws IOException, InterruptedException
+	{
+		Socket comms = session.getComms();
+		// Files smaller than a checkpoint are never partly kept
+		if(send.length() < TransferCheckpoint.CHECKPOINT_INTERVAL)
+		{
+			return 0;
+		}
+
+		CommunicationHelp.sendPacket(session.getRequest().set(Command.GET_OFFSET, FileStatus.UNKNOWN, 0, head.getPathToSend(send)), comms);
+		if(CommunicationHelp.receivePacket(comms, session.getResponse()).getCmd() != Command.GET_OFFSET)
+		{
+			return 0;
+		}
+
+		byte[] checkpoint = CommunicationHelp.receiveFrame(comms);
+		return 0 == checkpoint.length ? 0 : new TransferCheckpoint(checkpoint).getResumeOffset(send);
+	}
+
+	/**
+	 * Sends only the parts of the file that changed from the host's version. The
+	 * host sends a signature of its version which is used to create a delta of
+	 * block references and changed bytes for the host to rebuild the file from.
+	 * @param session
+	 *     The session to use
+	 * @param head
+	 *     The backup item the file is in
+	 * @param send
+	 *     The file to send
+	 * @return True if the host rebuilt the file, false if the whole file needs to
+	 *     be sent
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean sendDelta(HostSession session, BackupItem head, File send) throws IOException, InterruptedException
+	{
+		Socket comms = session.getComms();
+		Packet request = session.getRequest();
+		Packet response = session.getResponse();
+
+
+		CommunicationHelp.sendPacket(request.set(Command.RECEIVE_DELTA, FileStatus.UNKNOWN, send.lastModified(), head.getPathToSend(send)), comms);
+		if(CommunicationHelp.receivePacket(comms, response).getCmd() != Command.RECEIVE_DELTA)
+		{
+			// Host does not have a version to build from
+			return false;
+		}
+
+		File signature = File.createTempFile("signature", null);
+		File delta = File.createTempFile("delta", null);
+		try
+		{
+			CommunicationHelp.receiveFile(signature, comms, session.getDecrypt());
+			try
+			{
+				DeltaSync.writeDelta(signature, send, delta);
+			}
+			catch(IOException e)
+			{
+				// Send an empty delta so the host fails and the whole file is sent
+				new FileOutputStream(delta).close();
+			}
+			CommunicationHelp.sendFile(delta, comms, session.getEncrypt());
+			return CommunicationHelp.receivePacket(comms, response).getCmd() == Command.SUCCESS;
+		}
+		finally
+		{
+			signature.delete();
+			delta.delete();
+		}
+	}
+
 	@Override
-	public boolean getMissing(BackupItem check) throws InterruptedException, SystemErrorException
+	public synchronized boolean getMissing(BackupItem check) throws InterruptedException, SystemErrorException
 	{
+		Socket comms = control.getComms();
+		Packet request = control.getRequest();
+		Packet response = control.getResponse();
+
 		try
 		{
-			CommunicationHelp.sendPacket(new Packet(Command.SEND_FILE_LIST, check.getPathToSend()), comms);
+			CommunicationHelp.sendPacket(request.set(Command.SEND_FILE_LIST, FileStatus.UNKNOWN, 0, check.getPathToSend()), comms);
+			// Files can only be requested on the control session after the whole list is received
 			SinglyLinkedList<File> missing = new SinglyLinkedList<>();
-			InputStream in = comms.getInputStream();
-
-			String cur = "";
-			int got = in.read();
-			while(0xFF != got)
+			SinglyLinkedList<CompletableFuture<Boolean>> received = new SinglyLinkedList<>();
+			// Directories that could not be created along with every directory in them
+			HashSet<File> failed = new HashSet<>();
+			FileListing list = new FileListing(comms.getInputStream());
+			while(list.next())
 			{
-				if(0x0D == got)
+				File f = new File(check.getFullPath(list.getPath()));
+				if(failed.contains(f.getParentFile()))
 				{
-					File f = new File(check.getFullPath(cur));
-					if(!f.exists())
+					// Keep reading the rest of the list, directories come before what is in them
+					if(list.isDirectory())
 					{
-						missing.add(f);
+						failed.add(f);
 					}
-					cur = "";
+					continue;
 				}
-				else
+				if(f.exists())
 				{
-					cur += (char) got;
+					continue;
 				}
 
-				got = in.read();
-			}
-
-			for(File f : missing)
-			{
-				FileStatus status = getStatus(check, f);
-				if(FileStatus.DIRECTORY == status)
+				if(list.isDirectory())
 				{
-					// File is a directory, create directory
+					// Upcoming files in the directory depend on it being created
 					if(!f.mkdir())
 					{
-						// Return if directory could not be created, upcoming files depend on creation
-						return false;
+						failed.add(f);
 					}
 				}
+				else if(null != transfers)
+				{
+					received.add(getUpdatedFileAsync(check, f));
+				}
 				else
 				{
-					getUpdatedFile(check, f);
+					missing.add(f);
 				}
 			}
 
-			return true;
+			boolean allReceived = true;
+			for(CompletableFuture<Boolean> result : received)
+			{
+				allReceived &= await(result);
+			}
+			for(File f : missing)
+			{
+				allReceived &= getUpdatedFile(check, f);
+			}
+
+			return allReceived && failed.isEmpty();
 		}
 		catch(IOException e)
 		{